@@ -0,0 +1,97 @@
+// ChatCellScrollBenchmark.java
+// Scrolls a chat list of 100k messages and reports frames per second, with and without the shared
+// height cache. Needs a display (or Monocle) and JavaFX on the class path. Run after `mvn compile`:
+//   mvn -q dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+//   java -cp target/classes:$(cat target/cp.txt) bench/ChatCellScrollBenchmark.java [messages] [seconds]
+
+import com.example.udpchat.ChatCell;
+import com.example.udpchat.ChatMessage;
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.scene.Scene;
+import javafx.scene.control.ListView;
+import javafx.stage.Stage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class ChatCellScrollBenchmark extends Application {
+
+    private static int messageCount = 100_000;
+    private static long runNanos = 5_000_000_000L;
+    // Rows scrolled per frame, about a page at a time as when dragging the scroll bar
+    private static final int ROWS_PER_FRAME = 7;
+
+    private final List<String> results = new ArrayList<>();
+    private ObservableList<ChatMessage> messages;
+    private Stage stage;
+
+    public static void main(String[] args) {
+        if (args.length > 0) messageCount = Integer.parseInt(args[0]);
+        if (args.length > 1) runNanos = Long.parseLong(args[1]) * 1_000_000_000L;
+        // Frames are otherwise capped at the 60 Hz pulse
+        System.setProperty("javafx.animation.fullspeed", "true");
+        launch(ChatCellScrollBenchmark.class, args);
+    }
+
+    @Override
+    public void start(Stage stage) {
+        this.stage = stage;
+        Random random = new Random(42);
+        List<ChatMessage> generated = new ArrayList<>(messageCount);
+        for (int i = 0; i < messageCount; i++) {
+            String text = "message " + i + " " + "lorem ipsum dolor sit amet ".repeat(1 + random.nextInt(12));
+            generated.add(ChatMessage.restored("user" + (i % 50), "10.0.0." + (i % 50), text, "12:00:00", i % 7 == 0));
+        }
+        messages = FXCollections.observableArrayList(generated);
+        runMode("no height cache", null, () -> runMode("height cache", new ChatCell.HeightCache(1000), this::finish));
+    }
+
+    private void runMode(String name, ChatCell.HeightCache heightCache, Runnable next) {
+        ListView<ChatMessage> listView = new ListView<>(messages);
+        listView.setCellFactory(lv -> new ChatCell(heightCache));
+        stage.setScene(new Scene(listView, 480, 720));
+        stage.show();
+
+        long[] frameNanos = new long[(int) (runNanos / 1_000_000) + 1];
+        new AnimationTimer() {
+            private long start = -1;
+            private long last;
+            private int frames;
+            private int index;
+
+            @Override
+            public void handle(long now) {
+                if (start < 0) {
+                    start = now;
+                    last = now;
+                    return;
+                }
+                if (frames < frameNanos.length) frameNanos[frames] = now - last;
+                frames++;
+                last = now;
+                index = (index + ROWS_PER_FRAME) % messages.size();
+                listView.scrollTo(index);
+                if (now - start < runNanos) return;
+                stop();
+                long[] measured = Arrays.copyOf(frameNanos, Math.min(frames, frameNanos.length));
+                Arrays.sort(measured);
+                results.add(String.format("%s: %.1f fps, frame p50 %.2f ms, p99 %.2f ms, %d rows scrolled",
+                        name, frames * 1e9 / (now - start), measured[measured.length / 2] / 1e6,
+                        measured[Math.min(measured.length - 1, measured.length * 99 / 100)] / 1e6, (long) frames * ROWS_PER_FRAME));
+                Platform.runLater(next);
+            }
+        }.start();
+    }
+
+    private void finish() {
+        System.out.println(messageCount + " messages, " + runNanos / 1_000_000_000L + " s per mode");
+        results.forEach(System.out::println);
+        Platform.exit();
+    }
+}
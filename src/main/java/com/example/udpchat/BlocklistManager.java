@@ -1,59 +1,338 @@
 // BlocklistManager.java
 package com.example.udpchat;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 
 /**
- * Manages a simple, in-memory blocklist of IP addresses.
+ * Manages an in-memory blocklist of IP addresses and CIDR subnets, e.g. {@code 192.168.1.7},
+ * {@code 10.0.0.0/8} or {@code fe80::/10}.
+ * <p>
+ * The blocklist is published as an immutable {@link Snapshot}, which is replaced as a whole on every
+ * change, so checks read a volatile field and take no lock. A snapshot stores its prefixes in a
+ * path-compressed binary trie held in primitive arrays, keyed by the 128-bit address (IPv4 as
+ * IPv4-mapped IPv6): a check follows at most one node per prefix bit, compares up to two longs per
+ * node and allocates nothing for IPv4.
  * This class is thread-safe.
  */
 public class BlocklistManager {
 
-    private final Set<String> blockedIpSet = Collections.synchronizedSet(new HashSet<>());
+    /**
+     * An immutable set of blocked prefixes.
+     */
+    public static final class Snapshot {
+
+        public static final Snapshot EMPTY = new Snapshot(new Prefix[0]);
+
+        // A node is NODE_SIZE consecutive longs (32 bytes): the high and low bits of its key, its
+        // prefix length plus TERMINAL if the prefix itself is blocked, and the offsets of its children
+        // for the next bit being 0 (upper half) and 1 (lower half), or -1. A node matches an address if
+        // the first prefix length bits of both are equal.
+        private static final int NODE_SIZE = 4;
+        private static final int KEY_HIGH = 0;
+        private static final int KEY_LOW = 1;
+        private static final int LENGTH = 2;
+        private static final int CHILDREN = 3;
+        private static final long TERMINAL = 1L << 8;
+        private static final long NO_CHILDREN = -1L;
+
+        private final List<String> entries;
+        private final long[] nodes;
+        private int nodeCount = 0;
+        private int root = -1;
+
+        private Snapshot(Prefix[] prefixes) {
+            Arrays.sort(prefixes);
+            List<String> display = new ArrayList<>(prefixes.length);
+            nodes = new long[(prefixes.length * 2 + 1) * NODE_SIZE]; // A Patricia trie has fewer than 2n nodes
+            for (Prefix prefix : prefixes) {
+                display.add(prefix.toString());
+                insert(prefix.high, prefix.low, prefix.length);
+            }
+            this.entries = Collections.unmodifiableList(display);
+        }
+
+        /**
+         * Builds a snapshot from address and subnet strings; invalid entries are skipped.
+         */
+        public static Snapshot of(Collection<String> entries) {
+            List<Prefix> prefixes = new ArrayList<>(entries.size());
+            for (String entry : entries) {
+                Prefix prefix = Prefix.parse(entry);
+                if (prefix != null && !prefixes.contains(prefix)) prefixes.add(prefix);
+            }
+            return prefixes.isEmpty() ? EMPTY : new Snapshot(prefixes.toArray(new Prefix[0]));
+        }
+
+        /**
+         * Returns the blocked entries in address order, in canonical form. The list is not copied
+         * and cannot be modified.
+         */
+        public List<String> entries() {
+            return entries;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public boolean contains(InetAddress address) {
+            if (root < 0 || address == null) return false;
+            if (address instanceof Inet4Address) {
+                // Inet4Address.hashCode() is the address itself, which avoids copying it out with getAddress()
+                return containsIpv4(address.hashCode());
+            }
+            byte[] bytes = address.getAddress();
+            return contains(toLong(bytes, 0), toLong(bytes, 8));
+        }
+
+        /**
+         * Checks an IPv4 address given as an int in network byte order.
+         */
+        public boolean containsIpv4(int address) {
+            return contains(0L, Prefix.IPV4_MAPPED | (address & 0xFFFFFFFFL));
+        }
+
+        /**
+         * Checks a 128-bit address given as its high and low 64 bits.
+         */
+        public boolean contains(long high, long low) {
+            long[] trie = nodes;
+            int node = root;
+            while (node >= 0) {
+                long lengthAndFlags = trie[node + LENGTH];
+                int length = (int) lengthAndFlags & 0xFF;
+                // The key of every descendant extends this node's key, so only blocked nodes need the
+                // full comparison: if the address differs from a blocked prefix, it differs from all below it
+                if ((lengthAndFlags & TERMINAL) != 0) return matches(trie[node + KEY_HIGH], trie[node + KEY_LOW], high, low, length);
+                node = (int) (trie[node + CHILDREN] >> ((1 - bitAt(high, low, length)) << 5));
+            }
+            return false;
+        }
+
+        private void insert(long high, long low, int length) {
+            if (root < 0) {
+                root = newNode(high, low, length, true);
+                return;
+            }
+            int parent = -1;
+            int node = root;
+            while (true) {
+                long nodeHigh = nodes[node + KEY_HIGH];
+                long nodeLow = nodes[node + KEY_LOW];
+                int nodeLength = (int) nodes[node + LENGTH] & 0xFF;
+                int common = Math.min(commonPrefixLength(nodeHigh, nodeLow, high, low), Math.min(nodeLength, length));
+                if (common < nodeLength) {
+                    // The new prefix branches off inside this node's key: split it
+                    int split = newNode(high, low, common, common == length);
+                    setChild(split, bitAt(nodeHigh, nodeLow, common), node);
+                    if (common < length) setChild(split, bitAt(high, low, common), newNode(high, low, length, true));
+                    if (parent < 0) root = split;
+                    else setChild(parent, bitAt(high, low, (int) nodes[parent + LENGTH] & 0xFF), split);
+                    return;
+                }
+                if (nodeLength == length) {
+                    nodes[node + LENGTH] |= TERMINAL;
+                    return;
+                }
+                int bit = bitAt(high, low, nodeLength);
+                int child = (int) (nodes[node + CHILDREN] >> ((1 - bit) << 5));
+                if (child < 0) {
+                    setChild(node, bit, newNode(high, low, length, true));
+                    return;
+                }
+                parent = node;
+                node = child;
+            }
+        }
+
+        /**
+         * Appends a node and returns its offset in the node array.
+         */
+        private int newNode(long high, long low, int length, boolean isTerminal) {
+            int node = nodeCount++ * NODE_SIZE;
+            nodes[node + KEY_HIGH] = high & Prefix.highMask(length);
+            nodes[node + KEY_LOW] = low & Prefix.lowMask(length);
+            nodes[node + LENGTH] = length | (isTerminal ? TERMINAL : 0);
+            nodes[node + CHILDREN] = NO_CHILDREN;
+            return node;
+        }
+
+        private void setChild(int node, int bit, int child) {
+            long children = nodes[node + CHILDREN];
+            nodes[node + CHILDREN] = bit == 0
+                    ? (children & 0xFFFFFFFFL) | ((long) child << 32)
+                    : (children & 0xFFFFFFFF00000000L) | (child & 0xFFFFFFFFL);
+        }
+
+        private static boolean matches(long keyHigh, long keyLow, long high, long low, int length) {
+            return ((high ^ keyHigh) & Prefix.highMask(length)) == 0 && ((low ^ keyLow) & Prefix.lowMask(length)) == 0;
+        }
+
+        private static int commonPrefixLength(long high1, long low1, long high2, long low2) {
+            long high = high1 ^ high2;
+            if (high != 0) return Long.numberOfLeadingZeros(high);
+            return 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+        }
+
+        private static int bitAt(long high, long low, int index) {
+            return index < 64 ? (int) (high >>> (63 - index)) & 1 : (int) (low >>> (127 - index)) & 1;
+        }
+    }
 
     /**
-     * Checks if a given IP address is in the blocklist.
+     * A parsed address or subnet as a 128-bit key and a prefix length.
+     */
+    private record Prefix(long high, long low, int length, boolean ipv4) implements Comparable<Prefix> {
+
+        static final long IPV4_MAPPED = 0xFFFFL << 32;
+
+        /**
+         * Parses an IP literal with an optional {@code /length}; returns null if it is not valid.
+         * Host names are rejected rather than resolved.
+         */
+        static Prefix parse(String entry) {
+            if (entry == null) return null;
+            String text = entry.trim();
+            int slash = text.indexOf('/');
+            String addressText = slash < 0 ? text : text.substring(0, slash);
+            if (addressText.isEmpty() || !(addressText.indexOf(':') >= 0 || addressText.matches("[0-9.]+"))) return null;
+            try {
+                byte[] bytes = InetAddress.getByName(addressText).getAddress();
+                boolean ipv4 = bytes.length == 4;
+                int maxLength = ipv4 ? 32 : 128;
+                int length = slash < 0 ? maxLength : Integer.parseInt(text.substring(slash + 1).trim());
+                if (length < 0 || length > maxLength) return null;
+                long high = ipv4 ? 0L : toLong(bytes, 0);
+                long low = ipv4 ? IPV4_MAPPED | (toLong(bytes, 0) >>> 32) : toLong(bytes, 8);
+                if (ipv4) length += 96;
+                return new Prefix(high & highMask(length), low & lowMask(length), length, ipv4);
+            } catch (UnknownHostException | NumberFormatException e) {
+                return null;
+            }
+        }
+
+        static long highMask(int length) {
+            return length >= 64 ? -1L : length == 0 ? 0L : -1L << (64 - length);
+        }
+
+        static long lowMask(int length) {
+            return length <= 64 ? 0L : length >= 128 ? -1L : -1L << (128 - length);
+        }
+
+        @Override
+        public int compareTo(Prefix other) {
+            if (ipv4 != other.ipv4) return ipv4 ? -1 : 1;
+            int compare = Long.compareUnsigned(high, other.high);
+            if (compare == 0) compare = Long.compareUnsigned(low, other.low);
+            return compare != 0 ? compare : Integer.compare(length, other.length);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes;
+            if (ipv4) {
+                int address = (int) low;
+                bytes = new byte[]{(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address};
+            } else {
+                bytes = new byte[16];
+                for (int i = 0; i < 8; i++) {
+                    bytes[i] = (byte) (high >>> (56 - i * 8));
+                    bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+                }
+            }
+            int displayLength = ipv4 ? length - 96 : length;
+            try {
+                String address = InetAddress.getByAddress(bytes).getHostAddress();
+                return displayLength == bytes.length * 8 ? address : address + "/" + displayLength;
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e); // Only thrown for an invalid array length
+            }
+        }
+    }
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    /**
+     * Returns the current blocklist. It is not copied and does not change.
+     */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Checks if an address is blocked, either directly or by a blocked subnet.
+     */
+    public boolean isBlocked(InetAddress address) {
+        return snapshot.contains(address);
+    }
+
+    /**
+     * Checks if a given IP address is blocked, either directly or by a blocked subnet.
      *
      * @param ipAddress The IP address string to check.
      * @return true if the IP is blocked, false otherwise.
      */
     public boolean isIpBlocked(String ipAddress) {
-        if (ipAddress == null) {
+        Snapshot current = snapshot;
+        if (ipAddress == null || current.size() == 0) {
             return false;
         }
-        return blockedIpSet.contains(ipAddress);
+        Prefix prefix = Prefix.parse(ipAddress);
+        return prefix != null && current.contains(prefix.high(), prefix.low());
     }
 
     /**
-     * Adds an IP address to the blocklist.
+     * Adds an IP address or a CIDR subnet to the blocklist.
      *
-     * @param ipAddress The IP address to block.
+     * @param entry The address or subnet to block.
+     * @return false if the entry is not a valid IP address or subnet.
      */
-    public void block(String ipAddress) {
-        if (ipAddress != null && !ipAddress.isBlank()) {
-            blockedIpSet.add(ipAddress);
+    public synchronized boolean block(String entry) {
+        Prefix prefix = Prefix.parse(entry);
+        if (prefix == null) return false;
+        List<String> entries = new ArrayList<>(snapshot.entries());
+        if (!entries.contains(prefix.toString())) {
+            entries.add(prefix.toString());
+            snapshot = Snapshot.of(entries);
         }
+        return true;
     }
 
     /**
-     * Removes an IP address from the blocklist.
+     * Removes an IP address or a CIDR subnet from the blocklist. An address inside a blocked subnet
+     * stays blocked until the subnet is removed.
      *
-     * @param ipAddress The IP address to unblock.
+     * @param entry The address or subnet to unblock.
+     * @return true if the entry was in the blocklist.
      */
-    public void unblock(String ipAddress) {
-        if (ipAddress != null) {
-            blockedIpSet.remove(ipAddress);
-        }
+    public synchronized boolean unblock(String entry) {
+        Prefix prefix = Prefix.parse(entry);
+        if (prefix == null) return false;
+        List<String> entries = new ArrayList<>(snapshot.entries());
+        if (!entries.remove(prefix.toString())) return false;
+        snapshot = Snapshot.of(entries);
+        return true;
     }
 
     /**
-     * Returns a copy of the current set of blocked IP addresses.
-     *
-     * @return A new Set containing all blocked IPs.
+     * Replaces the whole blocklist; invalid entries are skipped.
      */
-    public Set<String> getBlockedIpSnapshot() {
-        return new HashSet<>(blockedIpSet);
+    public synchronized void replaceAll(Collection<String> entries) {
+        snapshot = Snapshot.of(entries);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (i + offset < bytes.length ? bytes[i + offset] & 0xFF : 0);
+        }
+        return value;
     }
-}
\ No newline at end of file
+}
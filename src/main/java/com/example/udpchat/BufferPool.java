@@ -0,0 +1,45 @@
+// BufferPool.java
+package com.example.udpchat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of reusable direct byte buffers of a fixed size.
+ * This class is thread-safe.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.freeBuffers = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer, allocating a new one if the pool is empty.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers beyond the pool capacity are left to the garbage collector.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            freeBuffers.offer(buffer);
+        }
+    }
+}
@@ -9,45 +9,97 @@ import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
 import javafx.util.Duration;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class ChatCell extends ListCell<ChatMessage> {
+
+    /**
+     * The measured heights of recently shown messages, shared by the cells of one list. Because the
+     * text wraps at a fixed width, a message's height never changes, so a message that scrolls back
+     * into view, or is measured again after the list shifted, is not laid out again just to be sized.
+     * Must only be used on the JavaFX application thread.
+     */
+    public static final class HeightCache {
+        private final Map<ChatMessage, Double> heights;
+
+        /**
+         * @param capacity The number of messages to remember; the least recently used ones are forgotten.
+         */
+        public HeightCache(int capacity) {
+            final int maxSize = Math.max(1, capacity);
+            this.heights = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ChatMessage, Double> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+    }
+
+    private static final double WRAPPING_WIDTH = 350;
+    // Only messages younger than the fade are animated, so recycled and restored cells appear at once
+    private static final Duration FADE_DURATION = Duration.millis(500);
+    private static final long FADE_NANOS = 500_000_000L;
+
     private final VBox container = new VBox();
     private final Label authorLabel = new Label();
     private final Text messageText = new Text();
     private final Label timeLabel = new Label();
+    private final FadeTransition fade = new FadeTransition(FADE_DURATION, container);
+    private final HeightCache heightCache;
+    private ChatMessage boundItem;
 
-    public ChatCell() {
+    public ChatCell(HeightCache heightCache) {
+        this.heightCache = heightCache;
         container.setSpacing(4);
-        messageText.setWrappingWidth(350); // Limit the wrapping width of the text
+        messageText.setWrappingWidth(WRAPPING_WIDTH); // Limit the wrapping width of the text
         container.getChildren().addAll(authorLabel, messageText, timeLabel);
+        fade.setFromValue(0.0);
+        fade.setToValue(1.0);
     }
 
     @Override
     protected void updateItem(ChatMessage item, boolean empty) {
         super.updateItem(item, empty);
         if (empty || item == null) {
+            boundItem = null;
+            fade.stop();
             setGraphic(null);
+            return;
+        }
+        // Cells are re-bound to the same message on many layout passes; nothing changes then
+        if (item == boundItem) return;
+        boundItem = item;
+
+        authorLabel.setText(item.header());
+        messageText.setText(item.text());
+        timeLabel.setText(item.timestamp());
+
+        final Pos alignment = item.isSelf() ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT;
+        container.setAlignment(alignment);
+        authorLabel.setAlignment(alignment);
+        timeLabel.setAlignment(alignment);
+        setGraphic(container);
+
+        // Animate the appearance of a new message
+        fade.stop();
+        if (item.isNewerThan(FADE_NANOS)) {
+            fade.playFromStart();
         } else {
-            authorLabel.setText(item.author() + " @" + item.ip());
-            messageText.setText(item.text());
-            timeLabel.setText(item.timestamp());
-
-            if (item.isSelf()) {
-                container.setAlignment(Pos.CENTER_RIGHT);
-                authorLabel.setAlignment(Pos.CENTER_RIGHT);
-                timeLabel.setAlignment(Pos.CENTER_RIGHT);
-                // A style could be added here, but we'll do it via CSS in the ListView
-            } else {
-                container.setAlignment(Pos.CENTER_LEFT);
-                authorLabel.setAlignment(Pos.CENTER_LEFT);
-                timeLabel.setAlignment(Pos.CENTER_LEFT);
-            }
-            setGraphic(container);
-
-            // Animate the appearance of a new message
-            FadeTransition ft = new FadeTransition(Duration.millis(500), container);
-            ft.setFromValue(0.0);
-            ft.setToValue(1.0);
-            ft.play();
+            container.setOpacity(1.0);
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    protected double computePrefHeight(double width) {
+        final ChatMessage item = getItem();
+        // Not cached before the skin and styles are in place, when the measured height is not final yet
+        if (isEmpty() || item == null || heightCache == null || getSkin() == null) return super.computePrefHeight(width);
+        final Double cached = heightCache.heights.get(item);
+        if (cached != null) return cached;
+        final double height = super.computePrefHeight(width);
+        heightCache.heights.put(item, height);
+        return height;
+    }
+}
@@ -2,6 +2,7 @@
 package com.example.udpchat;
 
 import javafx.animation.FadeTransition;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -12,13 +13,21 @@ import javafx.util.Duration;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Path;
+import java.security.PublicKey;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Main controller for the UDP Chat application UI.
@@ -44,108 +53,373 @@ public class ChatFxmlUI implements UdpMessageListener {
     @FXML private TextField portField;
     @FXML private Button joinGroupButton;
     @FXML private Button leaveGroupButton;
+    @FXML private Button trustHostButton;
     @FXML private CheckBox isHostCheckBox;
     @FXML private Label localIpLabel;
     @FXML private Label broadcastAddressLabel;
     @FXML private ListView<String> participantsListView;
     @FXML private Button refreshParticipantsButton;
     @FXML private ListView<String> bannedUsersListView;
+    @FXML private TextField ignoreAddressField;
+    @FXML private ListView<String> ignoredListView;
+    @FXML private TextField searchField;
+    @FXML private ChoiceBox<String> searchRangeBox;
+    @FXML private Label searchStatusLabel;
+    @FXML private ListView<String> searchResultsListView;
     @FXML private TextField nicknameField;
+    @FXML private ChoiceBox<GroupRoom> joinedGroupsChoiceBox;
 
     // --- Data Lists for UI ---
-    private final ObservableList<ChatMessage> broadcastMessages = FXCollections.observableArrayList();
-    private final ObservableList<ChatMessage> multicastMessages = FXCollections.observableArrayList();
+    private final MessageHistory broadcastHistory = new MessageHistory(CHAT_WINDOW_SIZE);
+    // Shown in the multicast tab while no group is joined
+    private final MessageHistory multicastHistory = new MessageHistory(CHAT_WINDOW_SIZE);
     private final ObservableList<String> participants = FXCollections.observableArrayList();
     private final ObservableList<String> bannedIpList = FXCollections.observableArrayList();
+    private final ObservableList<String> ignoredList = FXCollections.observableArrayList();
+    // Network threads post UI changes here instead of one Platform.runLater each
+    private final UiUpdateBatcher uiUpdates = new UiUpdateBatcher(participants, UI_MAX_BATCH_SIZE, this::scrollToLatest);
+    private final Runnable bannedListRefresh = this::synchronizeBannedListView;
+    private final Runnable modeControlsRefresh = this::updateUIForCurrentMode;
 
     // --- Network & Service Components ---
     private final Map<String, String> nicknameByIpMap = new ConcurrentHashMap<>();
     private final BlocklistManager localBlocklist = new BlocklistManager();
+    // Drop datagrams from self, ignored peers and (multicast only) banned peers before decoding
+    private final SourceFilter broadcastSourceFilter = new SourceFilter();
+    private final SourceFilter multicastSourceFilter = new SourceFilter();
+    // Every broadcast message arrives once per destination before duplicates are filtered, so its limits are scaled
+    private final SourceRateLimiter broadcastRateLimiter = new SourceRateLimiter(
+            scaleRateLimits(RATE_LIMITS, UdpBroadcastService.MAX_DESTINATION_COUNT),
+            DEFAULT_RATE_LIMIT.times(UdpBroadcastService.MAX_DESTINATION_COUNT),
+            FLOOD_BLOCK_THRESHOLD, FLOOD_BLOCK_MILLIS, this::onSourceFlooding);
+    private final SourceRateLimiter multicastRateLimiter = new SourceRateLimiter(RATE_LIMITS, DEFAULT_RATE_LIMIT,
+            FLOOD_BLOCK_THRESHOLD, FLOOD_BLOCK_MILLIS, this::onSourceFlooding);
+    // Entries of the local blocklist added for flooding; they are removed again when their block expires
+    private final Set<String> temporaryBlocks = new HashSet<>();
     private final RecentMessageCache duplicateFilter = new RecentMessageCache(4096, 30_000);
     private NetworkUtils.InterfaceInfo currentNetworkInterface;
+    private DatagramEngine datagramEngine;
+    private DatagramSender datagramSender;
     private UdpBroadcastService broadcastService;
     private UdpMulticastService multicastService;
     private PeerDiscoveryService peerDiscoveryService;
+    private ReliableDelivery reliableDelivery;
+    private MessageJournal journal; // Null if the journal could not be opened
+    private final MessageSearchIndex searchIndex = new MessageSearchIndex();
+    private final AtomicLong searchGeneration = new AtomicLong();
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Chat-Search-Thread");
+        t.setDaemon(true);
+        return t;
+    });
+    // Appends to the journal and the index, which may roll a segment, so receive threads only queue the message.
+    // When the queue is full the caller writes itself, slowing intake instead of dropping history
+    private final ExecutorService journalExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(JOURNAL_QUEUE_CAPACITY), r -> {
+        Thread t = new Thread(r, "Journal-Writer-Thread");
+        t.setDaemon(true);
+        return t;
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
 
     // --- Chat State ---
-    private final AtomicBoolean isJoinedToGroup = new AtomicBoolean(false);
-    private String currentMulticastGroupAddress = null;
-    private final Set<String> groupBannedIpSet = ConcurrentHashMap.newKeySet();
-    private volatile boolean isMutedByHost = false;
-    private volatile String currentGroupHostIp = null;
+    private final Map<InetAddress, GroupRoom> joinedRooms = new ConcurrentHashMap<>();
+    // Ban lists of groups we hosted, kept when the group is left so that rejoining keeps its bans and version
+    private final Map<InetAddress, GroupBanList> hostedBanLists = new ConcurrentHashMap<>();
+    private final HostCommandAuthenticator hostAuthenticator = new HostCommandAuthenticator(HOST_KEY_FILE);
+    private final KnownHosts knownHosts = new KnownHosts(KNOWN_HOSTS_FILE);
+    private volatile GroupRoom activeRoom = null;
 
     // --- Constants ---
     private static final int DEFAULT_LISTENING_PORT = 50000;
+    private static final int SEND_QUEUE_CAPACITY = 1024;
+    private static final int RECEIVE_WORKER_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int RECEIVE_QUEUE_CAPACITY = 512;
+    private static final int UI_MAX_BATCH_SIZE = 256;
+    private static final int CHAT_WINDOW_SIZE = 500;
+    private static final int CHAT_PAGE_SIZE = 100;
+    // Twice the window, so messages paged out and back in are still measured
+    private static final int CHAT_HEIGHT_CACHE_SIZE = CHAT_WINDOW_SIZE * 2;
+    private static final Path JOURNAL_DIRECTORY = Path.of(System.getProperty("user.home"), ".udpchat", "journal");
+    // Kept across restarts so members that pinned our key keep accepting our commands
+    private static final Path HOST_KEY_FILE = Path.of(System.getProperty("user.home"), ".udpchat", "host-key");
+    // One file per hosted group, so a restarted host continues its lists' versions
+    // The host keys pinned per group, so a rejoined group trusts the same host as before
+    private static final Path KNOWN_HOSTS_FILE = Path.of(System.getProperty("user.home"), ".udpchat", "known-hosts");
+    private static final Path HOSTED_BANS_DIRECTORY = Path.of(System.getProperty("user.home"), ".udpchat", "hosted-bans");
+    private static final int JOURNAL_SEGMENT_SIZE = 16 << 20;
+    private static final long JOURNAL_MAX_BYTES = 256L << 20;
+    private static final long JOURNAL_MAX_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    private static final int JOURNAL_REPLAY_COUNT = 200;
+    private static final int JOURNAL_QUEUE_CAPACITY = 4096;
+    private static final long JOURNAL_SHUTDOWN_TIMEOUT_MILLIS = 2000;
+    private static final String BROADCAST_JOURNAL_ROOM = "broadcast";
+    // Chat bursts cover NACK retransmissions; a 1 MB message is about 875 fragments. Fragments are limited
+    // after duplicates are discarded, so the second broadcast copy of a fragment takes no token
+    private static final Map<String, SourceRateLimiter.Limit> RATE_LIMITS = Map.of(
+            MessageProtocol.CMD_POST_USER_MESSAGE, new SourceRateLimiter.Limit(10, 80),
+            MessageProtocol.CMD_ANNOUNCE_PRESENCE, new SourceRateLimiter.Limit(5, 20),
+            MessageProtocol.CMD_FRAGMENT, new SourceRateLimiter.Limit(500, 1000));
+    private static final SourceRateLimiter.Limit DEFAULT_RATE_LIMIT = new SourceRateLimiter.Limit(50, 200);
+    private static final int FLOOD_BLOCK_THRESHOLD = 200;
+    private static final long FLOOD_BLOCK_MILLIS = 60_000;
+    private static final int SEARCH_RESULT_LIMIT = 200;
+    private static final int SEARCH_REINDEX_CHUNK = 1000;
+    private static final Map<String, Long> SEARCH_RANGES = new LinkedHashMap<>();
+    private static final DateTimeFormatter SEARCH_RESULT_FORMATTER = DateTimeFormatter.ofPattern("dd.MM HH:mm");
+
+    static {
+        SEARCH_RANGES.put("Any time", Long.MAX_VALUE);
+        SEARCH_RANGES.put("Last hour", 60L * 60 * 1000);
+        SEARCH_RANGES.put("Last 24 hours", 24L * 60 * 60 * 1000);
+        SEARCH_RANGES.put("Last 7 days", 7L * 24 * 60 * 60 * 1000);
+    }
+    private static final int MIN_DISCOVERY_INTERVAL_MILLIS = 2000;
+    // Chosen at launch with -Dudpchat.membership=BEACON or SWIM
+    private static final PeerDiscoveryService.MembershipMode MULTICAST_MEMBERSHIP_MODE = membershipModeProperty("udpchat.membership",
+            PeerDiscoveryService.MembershipMode.SWIM);
+    private static final boolean RELIABLE_DELIVERY_ENABLED = true;
+    // The preferred format; text is sent until every peer of the transport announces binary, and compressed until all announce compression
+    private static final MessageProtocol.WireFormat OUTGOING_WIRE_FORMAT = MessageProtocol.WireFormat.BINARY_COMPRESSED;
+    private static final String PAGING_PENDING = "udpchat.pagingPending";
     private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss");
 
     @Override
     public void onMessageReceived(final UdpTransport transport, final InetAddress source, final MessageProtocol.DecodedMessage message, final InetAddress group) {
-        final String sourceIp = source.getHostAddress();
-        if (currentNetworkInterface != null && sourceIp.equals(currentNetworkInterface.address().getHostAddress())) {
+        if (currentNetworkInterface != null && source.equals(currentNetworkInterface.address())) {
             return; // Ignore messages from self
         }
-        if (duplicateFilter.isDuplicateAndRecord(message.headers.get("id"))) {
+        if (duplicateFilter.isDuplicateAndRecord(message.idHash())) {
             return; // Ignore duplicate messages
         }
 
-        peerDiscoveryService.recordPeerActivity(transport, source);
-        final String nicknameHeader = message.headers.get("nick");
+        if (isSwimMessage(message.type())) {
+            // Sent unicast, so it may arrive on the broadcast socket; membership is handled by discovery
+            peerDiscoveryService.onSwimMessage(source, message);
+            return;
+        }
+        if (isBanSyncMessage(message.type())) {
+            // Also sent unicast; the group comes from the header
+            processBanSyncMessage(source, message);
+            return;
+        }
+
+        final String sourceIp = source.getHostAddress();
+        peerDiscoveryService.recordPeerActivity(transport, source, group);
+        if (MessageProtocol.CMD_ANNOUNCE_PRESENCE.equals(message.type())) {
+            peerDiscoveryService.onAnnounceReceived(transport, group, source, message);
+        }
+        final String nicknameHeader = message.header("nick");
         if (nicknameHeader != null && !nicknameHeader.isBlank()) {
             nicknameByIpMap.put(sourceIp, nicknameHeader);
         }
 
         // Filter messages based on current mode
         if (isCurrentModeMulticast() ? transport == UdpTransport.BROADCAST : transport == UdpTransport.MULTICAST) return;
-        final String groupHeader = message.headers.get("grp");
-        if (transport == UdpTransport.MULTICAST && currentMulticastGroupAddress != null && !currentMulticastGroupAddress.equals(groupHeader)) return;
-
-        // Host discovery
-        if ("1".equals(message.headers.get("host")) && currentGroupHostIp == null) {
-            currentGroupHostIp = sourceIp;
-            appendSystemMessage("Group host identified: " + formatPeerForDisplay(currentGroupHostIp));
+        final GroupRoom room = (transport == UdpTransport.MULTICAST) ? joinedRooms.get(group) : null;
+        if (transport == UdpTransport.MULTICAST && room == null) return;
+
+        // Host discovery: the host's key is pinned from the first announce ever heard in the group and saved, and its
+        // commands must be signed with it. An announce with another key, or later from another address, is only
+        // offered to the user, never pinned by itself
+        if (room != null && !room.isHost() && "1".equals(message.header("host"))
+                && MessageProtocol.CMD_ANNOUNCE_PRESENCE.equals(message.type())) {
+            final PublicKey hostKey = HostCommandAuthenticator.decodePublicKey(message.header(HostCommandAuthenticator.HEADER_HOST_KEY));
+            if (hostKey != null && room.hostIp() == null && (room.hostKey() == null || hostKey.equals(room.hostKey()))) {
+                if (room.hostKey() == null) knownHosts.put(room.address(), hostKey);
+                room.setHostKey(hostKey);
+                room.setHostIp(sourceIp);
+                appendSystemMessage(room, "Group host identified: " + formatPeerForDisplay(sourceIp));
+            } else if (hostKey != null && (!sourceIp.equals(room.hostIp()) || !hostKey.equals(room.hostKey()))) {
+                offerHost(room, new GroupRoom.HostClaim(sourceIp, hostKey));
+            }
+        }
+        // The host's announces carry its ban list version; a member that is behind asks for the changes
+        if (room != null && !room.isHost() && sourceIp.equals(room.hostIp())
+                && MessageProtocol.CMD_ANNOUNCE_PRESENCE.equals(message.type())
+                && GroupBanList.parseVersion(message.header(GroupBanList.HEADER_VERSION)) > room.bans().version()) {
+            requestBanSync(room, source);
         }
 
+        // Sequence tracking must see every message of a stream, including the ones filtered below
+        reliableDelivery.onMessageReceived(transport, group, sourceIp, message);
+
         // --- ИЗМЕНЕНИЕ 1 ---
         // Local blocklist check
-        if (localBlocklist.isIpBlocked(source.getHostAddress()) && MessageProtocol.CMD_POST_USER_MESSAGE.equals(message.type)) return;
+        if (localBlocklist.isBlocked(source) && MessageProtocol.CMD_POST_USER_MESSAGE.equals(message.type())) return;
 
         // Process message based on type
-        switch (message.type) {
+        switch (message.type()) {
             // --- ИЗМЕНЕНИЕ 2 ---
-            case MessageProtocol.CMD_POST_USER_MESSAGE -> processChatMessage(message, sourceIp, transport);
+            case MessageProtocol.CMD_POST_USER_MESSAGE -> processChatMessage(message, source, sourceIp, room);
             // --- ИЗМЕНЕНИЕ 3 ---
-            case MessageProtocol.CMD_GROUP_HOST_ADD_BAN, MessageProtocol.CMD_GROUP_HOST_REMOVE_BAN -> processBanCommand(message, sourceIp);
+            case MessageProtocol.CMD_GROUP_HOST_ADD_BAN, MessageProtocol.CMD_GROUP_HOST_REMOVE_BAN -> {
+                if (room != null) processBanCommand(message, source, room);
+            }
+            case MessageProtocol.CMD_NACK -> reliableDelivery.onNackReceived(transport, group, message);
+            case MessageProtocol.CMD_PEER_SYNC_REQUEST -> peerDiscoveryService.onSyncRequestReceived(transport, group, source, message);
+            case MessageProtocol.CMD_PEER_SYNC_RESPONSE -> peerDiscoveryService.onSyncResponseReceived(transport, group, message);
             default -> {} // HELLO is handled by discovery, other types are ignored
         }
     }
 
-    private void processBanCommand(final MessageProtocol.DecodedMessage message, final String sourceIp) {
-        if (currentGroupHostIp == null || !currentGroupHostIp.equals(sourceIp)) return; // Only host can ban
+    private void processBanCommand(final MessageProtocol.DecodedMessage message, final InetAddress source, final GroupRoom room) {
+        if (room.isHost() || room.hostIp() == null || !room.hostIp().equals(source.getHostAddress())) return; // Only host can ban
 
-        final String targetIp = message.headers.get("target");
+        final String targetIp = message.header("target");
         if (targetIp == null || targetIp.isBlank()) return;
 
         // --- ИЗМЕНЕНИЕ 4 ---
-        final boolean isBanAction = message.type.equals(MessageProtocol.CMD_GROUP_HOST_ADD_BAN);
+        final boolean isBanAction = message.type().equals(MessageProtocol.CMD_GROUP_HOST_ADD_BAN);
+        final long changeVersion = GroupBanList.parseVersion(message.header(GroupBanList.HEADER_VERSION));
 
-        if (isBanAction) {
-            groupBannedIpSet.add(targetIp);
-        } else {
-            groupBannedIpSet.remove(targetIp);
+        hostAuthenticator.verify(room.hostKey(), room.address(), message).thenAccept(valid -> {
+            if (valid) {
+                applyBanCommand(room, source, isBanAction, targetIp, changeVersion);
+            } else {
+                System.err.println("Rejected unsigned or forged ban command from " + source.getHostAddress());
+            }
+        });
+    }
+
+    private void applyBanCommand(final GroupRoom room, final InetAddress source, final boolean isBanAction,
+                                 final String targetIp, final long changeVersion) {
+        final GroupBanList.Result result = room.bans().applyRemote(changeVersion, isBanAction, targetIp);
+        if (result == GroupBanList.Result.GAP) {
+            requestBanSync(room, source);
+            return;
         }
-        Platform.runLater(this::synchronizeBannedListView);
+        if (result == GroupBanList.Result.STALE) return;
+        updateSourceFilters();
+        uiUpdates.refresh(bannedListRefresh);
 
         final String actionText = isBanAction ? "banned" : "unbanned";
-        if (currentNetworkInterface != null && targetIp.equals(currentNetworkInterface.address().getHostAddress())) {
-            isMutedByHost = isBanAction;
-            final String selfStatusMessage = isBanAction ? "You have been banned by the host" : "The host has unbanned you";
-            appendSystemMessage(selfStatusMessage);
-            updateUIForCurrentMode();
-        } else {
-            appendSystemMessage("Host " + actionText + " " + formatPeerForDisplay(targetIp));
+        // The target may be a subnet that contains our address
+        if (!updateMutedByHost(room)) {
+            appendSystemMessage(room, "Host " + actionText + " " + formatPeerForDisplay(targetIp));
+        }
+    }
+
+    /**
+     * Remembers an announce from a host other than the pinned one, e.g. the host after its key file was
+     * lost, so the user can choose to trust it. The user is told once until the claim is resolved.
+     */
+    private void offerHost(final GroupRoom room, final GroupRoom.HostClaim claim) {
+        final GroupRoom.HostClaim previous = room.offeredHost();
+        if (claim.equals(previous)) return;
+        room.setOfferedHost(claim);
+        uiUpdates.refresh(modeControlsRefresh);
+        if (previous != null) return;
+        appendSystemMessage(room, formatPeerForDisplay(claim.ip()) + " announces itself as host with a different key."
+                + " Its commands are ignored unless you choose Trust Host.");
+    }
+
+    /**
+     * Pins the host that was offered in the active room, replacing the previous host and its bans.
+     */
+    private void executeTrustHostAction() {
+        final GroupRoom room = activeRoom;
+        final GroupRoom.HostClaim claim = room != null ? room.offeredHost() : null;
+        if (claim == null) return;
+        room.setHostKey(claim.key());
+        room.setHostIp(claim.ip());
+        room.setOfferedHost(null);
+        knownHosts.put(room.address(), claim.key());
+        // The new host's list has its own versions; it is synced again from its next announce
+        room.bans().clear();
+        updateSourceFilters();
+        synchronizeBannedListView();
+        appendSystemMessage(room, "Now trusting " + formatPeerForDisplay(claim.ip()) + " as the group host");
+        updateMutedByHost(room);
+        updateUIForCurrentMode();
+    }
+
+    /**
+     * Updates whether the host's bans cover our own address, which may be inside a banned subnet.
+     *
+     * @return true if the state changed and was announced in the room.
+     */
+    private boolean updateMutedByHost(final GroupRoom room) {
+        final boolean isMuted = currentNetworkInterface != null && room.bans().isBlocked(currentNetworkInterface.address());
+        if (isMuted == room.isMutedByHost()) return false;
+        room.setMutedByHost(isMuted);
+        appendSystemMessage(room, isMuted ? "You have been banned by the host" : "The host has unbanned you");
+        uiUpdates.refresh(modeControlsRefresh);
+        return true;
+    }
+
+    private static boolean isBanSyncMessage(final String type) {
+        return MessageProtocol.CMD_GROUP_BAN_SYNC_REQUEST.equals(type) || MessageProtocol.CMD_GROUP_BAN_SYNC.equals(type);
+    }
+
+    /**
+     * Asks the host, unicast, for the ban list changes after our version. Requests are limited to
+     * one per second per group, since every announce and out-of-order command would trigger one.
+     */
+    private void requestBanSync(final GroupRoom room, final InetAddress host) {
+        final UdpMulticastService service = multicastService;
+        if (service == null || !room.bans().shouldRequestSync()) return;
+        try {
+            final Map<String, String> headers = new HashMap<>();
+            headers.put("id", MessageIds.next());
+            headers.put(GroupBanList.HEADER_VERSION, Long.toString(room.bans().version()));
+            service.sendTo(room.group(), host, MessageProtocol.CMD_GROUP_BAN_SYNC_REQUEST, headers, "")
+                    .exceptionally(error -> {
+                        System.err.println("Failed to request ban list sync from " + host + ": " + error.getMessage());
+                        return null;
+                    });
+        } catch (IOException e) {
+            System.err.println("Failed to request ban list sync from " + host + ": " + e.getMessage());
         }
     }
 
+    /**
+     * Answers a member's sync request if we host the group, or applies the host's response.
+     */
+    private void processBanSyncMessage(final InetAddress source, final MessageProtocol.DecodedMessage message) {
+        // Matched against the joined groups rather than resolved, so a header cannot cause a name lookup
+        GroupRoom room = null;
+        for (GroupRoom joined : joinedRooms.values()) {
+            if (message.headerEquals("grp", joined.address())) room = joined;
+        }
+        if (room == null) return;
+        final long version = GroupBanList.parseVersion(message.header(GroupBanList.HEADER_VERSION));
+
+        if (MessageProtocol.CMD_GROUP_BAN_SYNC_REQUEST.equals(message.type())) {
+            final UdpMulticastService service = multicastService;
+            if (!room.isHost() || service == null) return;
+            final Map<String, String> headers = new HashMap<>();
+            final String payload = room.bans().buildSyncResponse(version, headers);
+            if (payload == null) return; // Already up to date
+            headers.put("id", MessageIds.next());
+            hostAuthenticator.sign(MessageProtocol.CMD_GROUP_BAN_SYNC, room.address(), headers, payload);
+            try {
+                service.sendTo(room.group(), source, MessageProtocol.CMD_GROUP_BAN_SYNC, headers, payload)
+                        .exceptionally(error -> {
+                            System.err.println("Failed to send ban list to " + source + ": " + error.getMessage());
+                            return null;
+                        });
+            } catch (IOException e) {
+                System.err.println("Failed to send ban list to " + source + ": " + e.getMessage());
+            }
+            return;
+        }
+
+        if (room.isHost() || !source.getHostAddress().equals(room.hostIp())) return; // Only the host's list is taken
+        final GroupRoom syncedRoom = room;
+        final long baseVersion = GroupBanList.parseVersion(message.header(GroupBanList.HEADER_BASE_VERSION));
+        final String payload = message.payload();
+        hostAuthenticator.verify(room.hostKey(), room.address(), message).thenAccept(valid -> {
+            if (!valid) {
+                System.err.println("Rejected unsigned or forged ban list from " + source.getHostAddress());
+                return;
+            }
+            if (!syncedRoom.bans().applySync(version, baseVersion, payload)) return;
+            updateSourceFilters();
+            uiUpdates.refresh(bannedListRefresh);
+            updateMutedByHost(syncedRoom);
+        });
+    }
+
     private void sendMessage(final UdpTransport transport) {
         final TextField inputField = (transport == UdpTransport.MULTICAST) ? multicastInputField : broadcastInputField;
         final String text = inputField.getText();
@@ -158,21 +432,31 @@ public class ChatFxmlUI implements UdpMessageListener {
         final String nickname = nicknameField.getText();
         if (nickname != null && !nickname.isBlank()) headers.put("nick", nickname);
 
+        final GroupRoom room = activeRoom;
         try {
+            final CompletableFuture<Integer> sendResult;
             if (transport == UdpTransport.BROADCAST) {
                 // --- ИЗМЕНЕНИЕ 5 ---
-                broadcastService.send(MessageProtocol.CMD_POST_USER_MESSAGE, headers, text);
+                sendResult = reliableDelivery.send(UdpTransport.BROADCAST, null, MessageProtocol.CMD_POST_USER_MESSAGE, headers, text);
             } else {
-                if (!isJoinedToGroup.get()) { displayErrorAlert("Multicast: Must join a group first."); return; }
-                if (isMutedByHost) { displayErrorAlert("You are banned by the host and cannot send messages."); return; }
+                if (room == null) { displayErrorAlert("Multicast: Must join a group first."); return; }
+                if (room.isMutedByHost()) { displayErrorAlert("You are banned by the host and cannot send messages."); return; }
                 // --- ИЗМЕНЕНИЕ 6 ---
-                multicastService.send(MessageProtocol.CMD_POST_USER_MESSAGE, headers, text);
+                sendResult = reliableDelivery.send(UdpTransport.MULTICAST, room.group(), MessageProtocol.CMD_POST_USER_MESSAGE, headers, text);
             }
+            peerDiscoveryService.recordLocalChatSent(transport, transport == UdpTransport.MULTICAST ? room.group() : null);
+            sendResult.whenComplete((ignored, error) -> {
+                if (error != null) {
+                    error.printStackTrace();
+                    displayErrorAlert("Send error: " + error.getMessage());
+                }
+            });
 
             final String selfIp = (currentNetworkInterface != null) ? currentNetworkInterface.address().getHostAddress() : "local";
             final ChatMessage selfMessage = new ChatMessage((nickname.isBlank() ? "You" : nickname), selfIp, text, formatTimestamp(Long.toString(timestamp)), true);
 
-            addChatMessageToView(selfMessage, transport);
+            journalMessage(selfMessage, transport == UdpTransport.MULTICAST ? room : null);
+            addChatMessageToView(selfMessage, transport == UdpTransport.MULTICAST ? room : null);
             inputField.clear();
         } catch (IOException e) {
             e.printStackTrace();
@@ -181,7 +465,8 @@ public class ChatFxmlUI implements UdpMessageListener {
     }
 
     private void executeHostBanAction(final boolean isBan, final String ip) {
-        if (!isCurrentModeMulticast() || !isJoinedToGroup.get() || !isHostCheckBox.isSelected()) {
+        final GroupRoom room = activeRoom;
+        if (!isCurrentModeMulticast() || room == null || !room.isHost()) {
             displayErrorAlert("This function is only available to the host of an active Multicast group.");
             return;
         }
@@ -191,16 +476,27 @@ public class ChatFxmlUI implements UdpMessageListener {
             return;
         }
         try {
+            // Applied first, so the command carries the version it produces
+            final long changeVersion = room.bans().applyLocal(isBan, ip);
             final Map<String, String> headers = new HashMap<>();
             headers.put("id", MessageIds.next());
             headers.put("target", ip);
+            headers.put(GroupBanList.HEADER_VERSION, Long.toString(changeVersion));
+            final String type = isBan ? MessageProtocol.CMD_GROUP_HOST_ADD_BAN : MessageProtocol.CMD_GROUP_HOST_REMOVE_BAN;
+            hostAuthenticator.sign(type, room.address(), headers, "");
             // --- ИЗМЕНЕНИЕ 7 ---
-            multicastService.send(isBan ? MessageProtocol.CMD_GROUP_HOST_ADD_BAN : MessageProtocol.CMD_GROUP_HOST_REMOVE_BAN, headers, "");
+            multicastService.send(room.group(), type, headers, "")
+                    .whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            error.printStackTrace();
+                            displayErrorAlert("Error sending ban/unban command: " + error.getMessage());
+                        }
+                    });
 
             final String action = isBan ? "banned" : "unbanned";
-            if (isBan) groupBannedIpSet.add(ip); else groupBannedIpSet.remove(ip);
+            updateSourceFilters();
             synchronizeBannedListView();
-            appendSystemMessage("Host: " + action + " " + formatPeerForDisplay(ip));
+            appendSystemMessage(room, "Host: " + action + " " + formatPeerForDisplay(ip));
         } catch (IOException ex) {
             ex.printStackTrace();
             displayErrorAlert("Error sending ban/unban command: " + ex.getMessage());
@@ -214,6 +510,7 @@ public class ChatFxmlUI implements UdpMessageListener {
     @FXML
     public void initialize() {
         initializeUIControls();
+        openJournal();
         initializeNetworkInterfaces();
         bindUIActions();
         updateUIForCurrentMode();
@@ -226,13 +523,107 @@ public class ChatFxmlUI implements UdpMessageListener {
         portField.setText(String.valueOf(DEFAULT_LISTENING_PORT));
         nicknameField.setText("user-" + (int) (Math.random() * 1000));
 
-        setupChatListView(broadcastChatListView, broadcastMessages);
-        setupChatListView(multicastChatListView, multicastMessages);
+        setupChatListView(broadcastChatListView, broadcastHistory);
+        setupChatListView(multicastChatListView, multicastHistory);
         participantsListView.setItems(participants);
         setupParticipantsListCellFactory();
         setupParticipantsListContextMenu();
         bannedUsersListView.setItems(bannedIpList);
         setupBannedUsersListContextMenu();
+        ignoredListView.setItems(ignoredList);
+        setupIgnoredListContextMenu();
+        searchRangeBox.getItems().addAll(SEARCH_RANGES.keySet());
+        searchRangeBox.setValue("Any time");
+    }
+
+    private void openJournal() {
+        try {
+            journal = new MessageJournal(JOURNAL_DIRECTORY, JOURNAL_SEGMENT_SIZE, JOURNAL_MAX_BYTES, JOURNAL_MAX_AGE_MILLIS);
+            broadcastHistory.appendAll(journal.lastMessages(BROADCAST_JOURNAL_ROOM, JOURNAL_REPLAY_COUNT));
+            // New messages are indexed as they are journaled; older ones are indexed in the background
+            final long indexedFrom = journal.getEndPosition();
+            searchExecutor.execute(() -> indexJournal(indexedFrom));
+            // Queued behind any indexing in progress, so messages it is adding from deleted segments are removed too
+            journal.setRetentionListener(startPosition -> searchExecutor.execute(() -> searchIndex.removeBefore(startPosition)));
+        } catch (IOException e) {
+            e.printStackTrace();
+            searchField.setDisable(true);
+            displayErrorAlert("Message history will not be saved: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the journaled messages before a position to the search index.
+     */
+    private void indexJournal(final long endPosition) {
+        long position = MessageJournal.NO_POSITION;
+        List<MessageJournal.Entry> entries;
+        do {
+            entries = journal.readAfter(position, SEARCH_REINDEX_CHUNK);
+            for (MessageJournal.Entry entry : entries) {
+                if (entry.position() >= endPosition) return;
+                searchIndex.add(entry.position(), entry.room(), entry.message(), entry.timestampMillis());
+                position = entry.position();
+            }
+        } while (!entries.isEmpty());
+    }
+
+    /**
+     * Runs the query in the search field on the search thread. Results of a query that has been
+     * superseded by a newer one while it ran are dropped.
+     */
+    private void runSearch() {
+        final String query = searchField.getText();
+        final long range = SEARCH_RANGES.getOrDefault(searchRangeBox.getValue(), Long.MAX_VALUE);
+        final long generation = searchGeneration.incrementAndGet();
+        if (journal == null || query == null || query.isBlank()) {
+            searchResultsListView.getItems().clear();
+            searchStatusLabel.setText("");
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long fromMillis = range == Long.MAX_VALUE ? Long.MIN_VALUE : now - range;
+        searchExecutor.execute(() -> {
+            if (generation != searchGeneration.get()) return; // Superseded while queued
+            final long started = System.nanoTime();
+            final List<String> lines = new ArrayList<>();
+            for (MessageSearchIndex.Hit hit : searchIndex.search(query, fromMillis, Long.MAX_VALUE, SEARCH_RESULT_LIMIT)) {
+                final MessageJournal.Entry entry = journal.read(hit.locator());
+                if (entry != null) lines.add(formatSearchResult(entry));
+            }
+            final String status = lines.size() + (lines.size() == SEARCH_RESULT_LIMIT ? "+" : "") + " result(s) in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms";
+            Platform.runLater(() -> {
+                if (generation != searchGeneration.get()) return;
+                searchResultsListView.getItems().setAll(lines);
+                searchStatusLabel.setText(status);
+            });
+        });
+    }
+
+    private static String formatSearchResult(final MessageJournal.Entry entry) {
+        final String time = SEARCH_RESULT_FORMATTER.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.timestampMillis()), ZoneId.systemDefault()));
+        final ChatMessage message = entry.message();
+        return time + "  [" + entry.room() + "] " + message.author() + ": " + message.text();
+    }
+
+    /**
+     * Stops the network services and closes the journal. Called when the application exits.
+     */
+    public void shutdown() {
+        shutdownNetworkServices();
+        searchExecutor.shutdownNow();
+        hostAuthenticator.stop();
+        // Queued messages are still written before the journal is closed
+        journalExecutor.shutdown();
+        try {
+            if (!journalExecutor.awaitTermination(JOURNAL_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                System.err.println("Journal writer did not finish in time; the last messages may not be saved");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (journal != null) journal.close();
     }
 
     private void initializeNetworkInterfaces() {
@@ -259,33 +650,71 @@ public class ChatFxmlUI implements UdpMessageListener {
 
         joinGroupButton.setOnAction(e -> executeJoinGroupAction());
         leaveGroupButton.setOnAction(e -> executeLeaveGroupAction());
+        trustHostButton.setOnAction(e -> executeTrustHostAction());
         networkInterfaceComboBox.setOnAction(e -> handleInterfaceSelection());
+        ignoreAddressField.setOnAction(e -> {
+            if (executeLocalBlock(ignoreAddressField.getText().trim())) ignoreAddressField.clear();
+        });
+        searchField.textProperty().addListener((obs, oldText, newText) -> runSearch());
+        searchRangeBox.setOnAction(e -> runSearch());
         isHostCheckBox.setOnAction(e -> {
-            if (multicastService != null) multicastService.setHostStatus(isHostCheckBox.isSelected());
+            final GroupRoom room = activeRoom;
+            if (room == null) return;
+            final boolean isHost = isHostCheckBox.isSelected();
+            // As on joining: a host continues its saved list, a member starts empty and syncs from the host
+            room.setBans(isHost ? hostedBanList(room.group()) : new GroupBanList());
+            room.setHostIp(isHost && currentNetworkInterface != null ? currentNetworkInterface.address().getHostAddress() : null);
+            room.setHostKey(isHost ? null : knownHosts.get(room.address()));
+            room.setOfferedHost(null);
+            room.setHost(isHost);
+            if (multicastService != null) multicastService.setHostStatus(room.group(), isHost);
+            updateSourceFilters();
+            synchronizeBannedListView();
+            updateMutedByHost(room);
+            updateUIForCurrentMode();
+        });
+        joinedGroupsChoiceBox.setOnAction(e -> {
+            final GroupRoom selected = joinedGroupsChoiceBox.getValue();
+            if (selected != null && selected != activeRoom) activateRoom(selected);
         });
         modeSelectionBox.setOnAction(e -> handleModeChange());
         refreshParticipantsButton.setOnAction(e -> executeRefreshParticipantsAction());
     }
 
+    /**
+     * Returns the list of a group we host, loaded from its file the first time.
+     */
+    private GroupBanList hostedBanList(final InetAddress group) {
+        return hostedBanLists.computeIfAbsent(group, g -> new GroupBanList(HOSTED_BANS_DIRECTORY.resolve(g.getHostAddress().replace(':', '_'))));
+    }
+
     private void executeJoinGroupAction() {
         try {
             final InetAddress newGroup = InetAddress.getByName(multicastGroupField.getText());
             if (multicastService == null) return;
 
-            multicastService.joinOrSwitchGroup(newGroup);
-            isJoinedToGroup.set(true);
-            currentMulticastGroupAddress = newGroup.getHostAddress();
-
-            // Reset group state
-            groupBannedIpSet.clear();
-            bannedIpList.clear();
-            isMutedByHost = false;
-            currentGroupHostIp = isHostCheckBox.isSelected() && currentNetworkInterface != null ? currentNetworkInterface.address().getHostAddress() : null;
-
-            appendSystemMessage("Joined group " + currentMulticastGroupAddress + ":" + portField.getText()
-                    + (isHostCheckBox.isSelected() ? " (as host)" : ""));
+            final GroupRoom existingRoom = joinedRooms.get(newGroup);
+            if (existingRoom != null) {
+                activateRoom(existingRoom);
+                return;
+            }
 
-            updateUIForCurrentMode();
+            final boolean isHost = isHostCheckBox.isSelected();
+            multicastService.joinGroup(newGroup, isHost);
+            final GroupBanList bans = isHost ? hostedBanList(newGroup) : new GroupBanList();
+            final GroupRoom room = new GroupRoom(newGroup, isHost, CHAT_WINDOW_SIZE, bans);
+            if (journal != null) room.history().appendAll(journal.lastMessages(room.address(), JOURNAL_REPLAY_COUNT));
+            room.setHostIp(isHost && currentNetworkInterface != null ? currentNetworkInterface.address().getHostAddress() : null);
+            // A member only takes a host with the key pinned on an earlier join, if there was one
+            if (!isHost) room.setHostKey(knownHosts.get(room.address()));
+            joinedRooms.put(newGroup, room);
+            updateSourceFilters();
+            joinedGroupsChoiceBox.getItems().add(room);
+            activateRoom(room);
+            if (peerDiscoveryService != null) peerDiscoveryService.announceBurst();
+
+            appendSystemMessage(room, "Joined group " + room.address() + ":" + portField.getText()
+                    + (isHost ? " (as host)" : ""));
         } catch (Exception e) {
             e.printStackTrace();
             displayErrorAlert("Failed to join group: " + e.getMessage());
@@ -293,24 +722,34 @@ public class ChatFxmlUI implements UdpMessageListener {
     }
 
     private void executeLeaveGroupAction() {
-        try {
-            if (multicastService != null && multicastService.isJoined()) {
-                multicastService.leaveGroup();
-                appendSystemMessage("Left group " + currentMulticastGroupAddress);
-            }
-            // Reset all group-related state
-            isJoinedToGroup.set(false);
-            currentMulticastGroupAddress = null;
-            groupBannedIpSet.clear();
-            bannedIpList.clear();
-            isMutedByHost = false;
-            currentGroupHostIp = null;
+        final GroupRoom room = activeRoom;
+        if (room == null) return;
+        if (multicastService != null) {
+            multicastService.leaveGroup(room.group());
+        }
+        if (reliableDelivery != null) reliableDelivery.forgetGroup(room.group());
+        joinedRooms.remove(room.group());
+        updateSourceFilters();
+        joinedGroupsChoiceBox.getItems().remove(room);
+        final GroupRoom nextRoom = joinedGroupsChoiceBox.getItems().isEmpty() ? null : joinedGroupsChoiceBox.getItems().get(0);
+        activateRoom(nextRoom);
+        room.history().close();
+        appendSystemMessage(nextRoom, "Left group " + room.address());
+    }
 
-            updateUIForCurrentMode();
-        } catch (Exception e) {
-            e.printStackTrace();
-            displayErrorAlert("Error leaving group: " + e.getMessage());
+    /**
+     * Makes a joined group the one shown in the multicast tab, or shows the lobby list if room is null.
+     */
+    private void activateRoom(final GroupRoom room) {
+        activeRoom = room;
+        joinedGroupsChoiceBox.setValue(room);
+        multicastChatListView.setItems(room != null ? room.history().window() : multicastHistory.window());
+        if (room != null) {
+            multicastGroupField.setText(room.address());
+            isHostCheckBox.setSelected(room.isHost());
         }
+        synchronizeBannedListView();
+        updateUIForCurrentMode();
     }
 
     private void reinitializeNetworkServices() {
@@ -318,37 +757,65 @@ public class ChatFxmlUI implements UdpMessageListener {
         try {
             final int port = Integer.parseInt(portField.getText());
 
-            broadcastService = new UdpBroadcastService(port, currentNetworkInterface, this);
+            updateSourceFilters();
+            datagramEngine = new DatagramEngine(RECEIVE_WORKER_COUNT, RECEIVE_QUEUE_CAPACITY);
+            datagramEngine.start();
+            datagramSender = new DatagramSender(SEND_QUEUE_CAPACITY, DatagramSender.OverflowPolicy.DROP_NEWEST);
+            datagramSender.start();
+
+            broadcastService = new UdpBroadcastService(datagramEngine, datagramSender, port, currentNetworkInterface, this);
+            broadcastService.setWireFormat(OUTGOING_WIRE_FORMAT);
+            broadcastService.setSourceFilter(broadcastSourceFilter);
+            broadcastService.setRateLimiter(broadcastRateLimiter);
             broadcastService.start();
 
-            final InetAddress group = InetAddress.getByName(multicastGroupField.getText());
-            multicastService = new UdpMulticastService(port, group, currentNetworkInterface, this);
-            multicastService.setHostStatus(isHostCheckBox.isSelected());
+            multicastService = new UdpMulticastService(datagramEngine, datagramSender, port, currentNetworkInterface, this);
+            multicastService.setWireFormat(OUTGOING_WIRE_FORMAT);
+            multicastService.setSourceFilter(multicastSourceFilter);
+            multicastService.setRateLimiter(multicastRateLimiter);
             multicastService.setTtl(1);
 
+            reliableDelivery = new ReliableDelivery(broadcastService, multicastService, RELIABLE_DELIVERY_ENABLED,
+                    (lostTransport, lostGroup, lostIp, count) -> appendSystemMessage(
+                            lostTransport == UdpTransport.MULTICAST ? joinedRooms.get(lostGroup) : null,
+                            count + " message(s) from " + formatPeerForDisplay(lostIp) + " could not be recovered"));
+
             peerDiscoveryService = new PeerDiscoveryService(
-                    broadcastService, multicastService, nicknameField::getText, 2000,
-                    (ip, added) -> Platform.runLater(() -> {
-                        if (added) {
-                            if (!participants.contains(ip)) participants.add(ip);
-                        } else {
-                            participants.remove(ip);
-                            nicknameByIpMap.remove(ip);
+                    broadcastService, multicastService, nicknameField::getText, MIN_DISCOVERY_INTERVAL_MILLIS,
+                    new PeerDiscoveryService.PeerListener() {
+                        @Override
+                        public void onPeerStatusChanged(String ip, boolean added) {
+                            // Nothing is received from ignored peers; they stay listed so they can be unignored
+                            if (!added && localBlocklist.isIpBlocked(ip)) return;
+                            if (!added) nicknameByIpMap.remove(ip);
+                            uiUpdates.updateParticipant(ip, added);
+                        }
+
+                        @Override
+                        public void onPeerNicknameLearned(String ip, String nickname) {
+                            nicknameByIpMap.putIfAbsent(ip, nickname);
                         }
-                    }),
+                    },
                     new PeerDiscoveryService.ModeSelector() {
                         @Override public boolean useBroadcast() { return !isCurrentModeMulticast(); }
-                        @Override public boolean useMulticast() { return isCurrentModeMulticast() && isJoinedToGroup.get(); }
-                        @Override public InetAddress currentMulticastGroup() {
-                            try {
-                                return isJoinedToGroup.get() ? InetAddress.getByName(multicastGroupField.getText()) : null;
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                                return null;
-                            }
-                        }
+                        @Override public boolean useMulticast() { return isCurrentModeMulticast() && !joinedRooms.isEmpty(); }
+                        @Override public List<InetAddress> currentMulticastGroups() { return new ArrayList<>(joinedRooms.keySet()); }
+                        @Override public PeerDiscoveryService.MembershipMode membershipMode() { return MULTICAST_MEMBERSHIP_MODE; }
                     }
             );
+            peerDiscoveryService.setReliableDelivery(reliableDelivery);
+            peerDiscoveryService.setAnnounceDecorator((announceTransport, announceGroup, headers) -> {
+                final GroupRoom room = announceGroup != null ? joinedRooms.get(announceGroup) : null;
+                if (room == null || !room.isHost()) return;
+                headers.put(GroupBanList.HEADER_VERSION, Long.toString(room.bans().version()));
+                headers.put(HostCommandAuthenticator.HEADER_HOST_KEY, hostAuthenticator.publicKey());
+            });
+            peerDiscoveryService.setLocalAddress(currentNetworkInterface.address());
+            final PeerDiscoveryService discovery = peerDiscoveryService;
+            broadcastService.setBinarySupport(() -> discovery.allPeersSupportBinary(UdpTransport.BROADCAST));
+            multicastService.setBinarySupport(() -> discovery.allPeersSupportBinary(UdpTransport.MULTICAST));
+            broadcastService.setCompressionSupport(() -> discovery.allPeersSupportCompression(UdpTransport.BROADCAST));
+            multicastService.setCompressionSupport(() -> discovery.allPeersSupportCompression(UdpTransport.MULTICAST));
             peerDiscoveryService.start();
         } catch (Exception e) {
             e.printStackTrace();
@@ -358,31 +825,70 @@ public class ChatFxmlUI implements UdpMessageListener {
 
     private void shutdownNetworkServices() {
         if (peerDiscoveryService != null) peerDiscoveryService.stop();
+        if (reliableDelivery != null) reliableDelivery.stop();
         if (broadcastService != null) broadcastService.stop();
-        if (multicastService != null) try { multicastService.leaveGroup(); } catch (IOException e) { e.printStackTrace(); }
-
-        isJoinedToGroup.set(false);
-        currentMulticastGroupAddress = null;
-        groupBannedIpSet.clear();
-        bannedIpList.clear();
-        isMutedByHost = false;
-        currentGroupHostIp = null;
-
-        updateUIForCurrentMode();
+        if (multicastService != null) multicastService.leaveAllGroups();
+        if (datagramEngine != null) datagramEngine.stop();
+        if (datagramSender != null) datagramSender.stop();
+        uiUpdates.clear();
+
+        for (GroupRoom room : joinedRooms.values()) room.history().close();
+        joinedRooms.clear();
+        updateSourceFilters();
+        joinedGroupsChoiceBox.getItems().clear();
+        activateRoom(null);
     }
 
-    private void processChatMessage(final MessageProtocol.DecodedMessage message, final String sourceIp, final UdpTransport transport) {
-        if (transport == UdpTransport.MULTICAST && groupBannedIpSet.contains(sourceIp)) return; // Check group ban
+    private void processChatMessage(final MessageProtocol.DecodedMessage message, final InetAddress source, final String sourceIp, final GroupRoom room) {
+        if (room != null && room.bans().isBlocked(source)) return; // Check group ban
 
         final String nickname = nicknameByIpMap.getOrDefault(sourceIp, "unknown");
-        final ChatMessage chatMessage = new ChatMessage(nickname, sourceIp, message.payload, formatTimestamp(message.headers.get("ts")), false);
+        final ChatMessage chatMessage = new ChatMessage(nickname, sourceIp, message.payload(), formatTimestamp(message.header("ts")), false);
+
+        journalMessage(chatMessage, room);
+        addChatMessageToView(chatMessage, room);
+    }
 
-        Platform.runLater(() -> addChatMessageToView(chatMessage, transport));
+    private void setupChatListView(ListView<ChatMessage> listView, MessageHistory history) {
+        listView.setItems(history.window());
+        final ChatCell.HeightCache heightCache = new ChatCell.HeightCache(CHAT_HEIGHT_CACHE_SIZE);
+        listView.setCellFactory(lv -> new ChatCell(heightCache) {
+            @Override
+            protected void updateItem(ChatMessage item, boolean empty) {
+                super.updateItem(item, empty);
+                if (!empty && item != null) onChatCellShown(listView, getIndex());
+            }
+        });
+    }
+
+    /**
+     * Pages the history shown in a chat view when the first or last message of its window becomes visible.
+     */
+    private void onChatCellShown(final ListView<ChatMessage> listView, final int index) {
+        final MessageHistory history = historyShownIn(listView);
+        final boolean atTop = index == 0 && history.hasOlder();
+        final boolean atBottom = index == listView.getItems().size() - 1 && history.hasNewer();
+        if ((!atTop && !atBottom) || listView.getProperties().containsKey(PAGING_PENDING)) return;
+        listView.getProperties().put(PAGING_PENDING, Boolean.TRUE);
+        // Cells must not change the list while they are being laid out
+        Platform.runLater(() -> {
+            listView.getProperties().remove(PAGING_PENDING);
+            if (historyShownIn(listView) != history) return;
+            if (atTop) {
+                final int loaded = history.loadOlder(CHAT_PAGE_SIZE);
+                listView.scrollTo(loaded); // Keeps the message that was at the top in view
+            } else {
+                final int lastIndex = listView.getItems().size() - 1;
+                final int dropped = history.loadNewer(CHAT_PAGE_SIZE);
+                listView.scrollTo(Math.max(0, lastIndex - dropped));
+            }
+        });
     }
 
-    private void setupChatListView(ListView<ChatMessage> listView, ObservableList<ChatMessage> messages) {
-        listView.setItems(messages);
-        listView.setCellFactory(lv -> new ChatCell());
+    private MessageHistory historyShownIn(final ListView<ChatMessage> listView) {
+        if (listView == broadcastChatListView) return broadcastHistory;
+        final GroupRoom room = activeRoom;
+        return room != null ? room.history() : multicastHistory;
     }
 
     private void setupParticipantsListCellFactory() {
@@ -422,45 +928,161 @@ public class ChatFxmlUI implements UdpMessageListener {
         bannedUsersListView.setContextMenu(menu);
     }
 
-    private void executeLocalBlock(final String ip) {
-        final String selfIp = (currentNetworkInterface != null) ? currentNetworkInterface.address().getHostAddress() : null;
-        if (ip.equals(selfIp)) {
+    private void setupIgnoredListContextMenu() {
+        final ContextMenu menu = new ContextMenu();
+        final MenuItem unignoreItem = new MenuItem("Unignore (Local)");
+        unignoreItem.setOnAction(e -> {
+            String selectedEntry = ignoredListView.getSelectionModel().getSelectedItem();
+            if (selectedEntry != null) executeLocalUnblock(selectedEntry);
+        });
+        menu.getItems().add(unignoreItem);
+        ignoredListView.setContextMenu(menu);
+    }
+
+    /**
+     * Ignores an address or a whole subnet, e.g. {@code 10.0.0.0/24}.
+     *
+     * @return false if nothing was ignored.
+     */
+    private boolean executeLocalBlock(final String entry) {
+        final BlocklistManager.Snapshot entrySnapshot = BlocklistManager.Snapshot.of(List.of(entry));
+        if (entrySnapshot.size() == 0) {
+            displayErrorAlert("Not a valid IP address or subnet: " + entry);
+            return false;
+        }
+        if (currentNetworkInterface != null && entrySnapshot.contains(currentNetworkInterface.address())) {
             displayErrorAlert("You cannot ignore your own IP address.");
-            return;
+            return false;
         }
-        localBlocklist.block(ip);
-        appendSystemMessage("Locally ignoring " + formatPeerForDisplay(ip));
+        localBlocklist.block(entry);
+        temporaryBlocks.remove(entrySnapshot.entries().get(0)); // Now ignored until unignored
+        updateSourceFilters();
+        ignoredList.setAll(localBlocklist.snapshot().entries());
+        appendSystemMessage("Locally ignoring " + formatPeerForDisplay(entrySnapshot.entries().get(0)));
+        return true;
     }
 
     private void executeLocalUnblock(final String ip) {
-        localBlocklist.unblock(ip);
+        temporaryBlocks.remove(ip);
+        if (!localBlocklist.unblock(ip) && localBlocklist.isIpBlocked(ip)) {
+            appendSystemMessage(formatPeerForDisplay(ip) + " is ignored as part of a subnet; unignore the subnet instead");
+            return;
+        }
+        updateSourceFilters();
+        ignoredList.setAll(localBlocklist.snapshot().entries());
+        // Kept listed while ignored; dropped now unless discovery still knows the peer
+        if (peerDiscoveryService != null && !peerDiscoveryService.getAllPeersSnapshot().contains(ip)) {
+            uiUpdates.updateParticipant(ip, false);
+        }
         appendSystemMessage("Stopped locally ignoring " + formatPeerForDisplay(ip));
     }
 
+    /**
+     * Returns the limits for a transport that delivers every message {@code copies} times. Fragments
+     * are deduplicated before they are limited, so their limit stays as it is.
+     */
+    private static Map<String, SourceRateLimiter.Limit> scaleRateLimits(final Map<String, SourceRateLimiter.Limit> limits, final int copies) {
+        final Map<String, SourceRateLimiter.Limit> scaled = new HashMap<>();
+        limits.forEach((type, limit) -> scaled.put(type, MessageProtocol.CMD_FRAGMENT.equals(type) ? limit : limit.times(copies)));
+        return scaled;
+    }
+
+    /**
+     * Temporarily ignores a source that keeps exceeding its rate limits. Called on a receive thread.
+     */
+    private void onSourceFlooding(final InetAddress source, final long blockMillis) {
+        final String ip = source.getHostAddress();
+        Platform.runLater(() -> {
+            if (localBlocklist.isBlocked(source)) return;
+            localBlocklist.block(ip);
+            temporaryBlocks.add(ip);
+            updateSourceFilters();
+            ignoredList.setAll(localBlocklist.snapshot().entries());
+            appendSystemMessage("Ignoring " + formatPeerForDisplay(ip) + " for " + blockMillis / 1000 + " s: too many messages ("
+                    + (broadcastRateLimiter.getThrottledCount() + multicastRateLimiter.getThrottledCount()) + " dropped so far)");
+
+            final PauseTransition expiry = new PauseTransition(Duration.millis(blockMillis));
+            expiry.setOnFinished(e -> {
+                if (temporaryBlocks.remove(ip)) executeLocalUnblock(ip);
+            });
+            expiry.play();
+        });
+    }
+
+    /**
+     * Rebuilds the pre-decode source filters from the own address, the local blocklist and the group bans.
+     * The group of a datagram is only known after decoding, so a group ban is applied before decoding only
+     * on the multicast socket and only if the peer is banned in every joined group; otherwise it is still
+     * applied to chat messages after decoding. May be called from any thread.
+     */
+    private synchronized void updateSourceFilters() {
+        Set<String> bannedEverywhere = null;
+        for (GroupRoom room : joinedRooms.values()) {
+            final List<String> roomBans = room.bans().snapshot().entries();
+            if (bannedEverywhere == null) bannedEverywhere = new HashSet<>(roomBans);
+            else bannedEverywhere.retainAll(roomBans);
+        }
+        final List<String> broadcastBlocked = new ArrayList<>(localBlocklist.snapshot().entries());
+        if (currentNetworkInterface != null) broadcastBlocked.add(currentNetworkInterface.address().getHostAddress());
+        final List<String> multicastBlocked = new ArrayList<>(broadcastBlocked);
+        if (bannedEverywhere != null) multicastBlocked.addAll(bannedEverywhere);
+        broadcastSourceFilter.setBlocked(BlocklistManager.Snapshot.of(broadcastBlocked));
+        multicastSourceFilter.setBlocked(BlocklistManager.Snapshot.of(multicastBlocked));
+    }
+
     private void handleParticipantAction(final java.util.function.Consumer<String> action) {
         final String selectedIp = participantsListView.getSelectionModel().getSelectedItem();
         if (selectedIp != null) action.accept(selectedIp);
     }
 
     private void synchronizeBannedListView() {
-        final List<String> sortedList = new ArrayList<>(groupBannedIpSet);
-        Collections.sort(sortedList);
-        bannedIpList.setAll(sortedList);
+        final GroupRoom room = activeRoom;
+        // Snapshot entries are immutable and already sorted by address
+        bannedIpList.setAll(room != null ? room.bans().snapshot().entries() : List.of());
     }
 
-    private void addChatMessageToView(final ChatMessage chatMessage, final UdpTransport transport) {
-        if (transport == UdpTransport.MULTICAST) {
-            multicastMessages.add(chatMessage);
-            multicastChatListView.scrollTo(multicastMessages.size() - 1);
-        } else {
-            broadcastMessages.add(chatMessage);
-            broadcastChatListView.scrollTo(broadcastMessages.size() - 1);
-        }
+    /**
+     * Queues a message for a group room, or for the broadcast chat if room is null. May be called from any thread.
+     */
+    private void addChatMessageToView(final ChatMessage chatMessage, final GroupRoom room) {
+        uiUpdates.addMessage(room != null ? room.history() : broadcastHistory, chatMessage);
+    }
+
+    /**
+     * Queues a message to be journaled and indexed on the journal writer thread. May be called from any thread.
+     */
+    private void journalMessage(final ChatMessage chatMessage, final GroupRoom room) {
+        final MessageJournal currentJournal = journal;
+        if (currentJournal == null) return;
+        final String roomName = room != null ? room.address() : BROADCAST_JOURNAL_ROOM;
+        final long receivedMillis = System.currentTimeMillis();
+        // Discarded once shut down, as the journal is being closed
+        journalExecutor.execute(() -> {
+            final long position = currentJournal.append(roomName, chatMessage);
+            if (position != MessageJournal.NO_POSITION) searchIndex.add(position, roomName, chatMessage, receivedMillis);
+        });
+    }
+
+    /**
+     * Scrolls the chat view showing the given list to its last message, once per batch of new messages.
+     */
+    private void scrollToLatest(final MessageHistory history) {
+        final ObservableList<ChatMessage> messages = history.window();
+        if (multicastChatListView.getItems() == messages) multicastChatListView.scrollTo(messages.size() - 1);
+        if (broadcastChatListView.getItems() == messages) broadcastChatListView.scrollTo(messages.size() - 1);
     }
 
     private void appendSystemMessage(final String text) {
+        appendSystemMessage(isCurrentModeMulticast() ? activeRoom : null, text);
+    }
+
+    private void appendSystemMessage(final GroupRoom room, final String text) {
         final ChatMessage systemMessage = new ChatMessage("system", "", text, TIMESTAMP_FORMATTER.format(LocalDateTime.now()), false);
-        Platform.runLater(() -> addChatMessageToView(systemMessage, isCurrentModeMulticast() ? UdpTransport.MULTICAST : UdpTransport.BROADCAST));
+        if (room == null && isCurrentModeMulticast()) {
+            uiUpdates.addMessage(multicastHistory, systemMessage);
+        } else {
+            addChatMessageToView(systemMessage, room);
+        }
     }
 
     private void handleInterfaceSelection() {
@@ -472,10 +1094,30 @@ public class ChatFxmlUI implements UdpMessageListener {
     }
 
     private void handleModeChange() {
+        // Traffic of the other mode was ignored, so its sequence gaps are not losses
+        if (reliableDelivery != null) reliableDelivery.resetIncomingStreams();
+        if (peerDiscoveryService != null) peerDiscoveryService.announceBurst();
         updateUIForCurrentMode();
         modeTabPane.getSelectionModel().select(isCurrentModeMulticast() ? multicastTab : broadcastTab);
     }
 
+    private static PeerDiscoveryService.MembershipMode membershipModeProperty(final String name, final PeerDiscoveryService.MembershipMode defaultMode) {
+        final String value = System.getProperty(name);
+        if (value == null || value.isBlank()) return defaultMode;
+        try {
+            return PeerDiscoveryService.MembershipMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown membership mode '" + value + "' in " + name + ", using " + defaultMode);
+            return defaultMode;
+        }
+    }
+
+    private static boolean isSwimMessage(final String type) {
+        return MessageProtocol.CMD_SWIM_PING.equals(type)
+                || MessageProtocol.CMD_SWIM_PING_REQ.equals(type)
+                || MessageProtocol.CMD_SWIM_ACK.equals(type);
+    }
+
     private boolean isCurrentModeMulticast() {
         return "Multicast".equals(modeSelectionBox.getValue());
     }
@@ -484,9 +1126,12 @@ public class ChatFxmlUI implements UdpMessageListener {
         final boolean isMc = isCurrentModeMulticast();
         joinGroupButton.setDisable(!isMc);
         leaveGroupButton.setDisable(!isMc);
+        joinedGroupsChoiceBox.setDisable(!isMc);
         isHostCheckBox.setDisable(!isMc);
 
-        final boolean canSendMulticast = isMc && isJoinedToGroup.get() && !isMutedByHost;
+        final GroupRoom room = activeRoom;
+        trustHostButton.setDisable(!isMc || room == null || room.offeredHost() == null);
+        final boolean canSendMulticast = isMc && room != null && !room.isMutedByHost();
         sendMulticastButton.setDisable(!canSendMulticast);
         multicastInputField.setDisable(!canSendMulticast);
 
@@ -497,7 +1142,8 @@ public class ChatFxmlUI implements UdpMessageListener {
     }
 
     private void updateMutedStatusLabel() {
-        final boolean shouldShow = isCurrentModeMulticast() && isMutedByHost;
+        final GroupRoom room = activeRoom;
+        final boolean shouldShow = isCurrentModeMulticast() && room != null && room.isMutedByHost();
         if (mutedStatusLabel.isVisible() == shouldShow) return;
 
         if (shouldShow) {
@@ -1,4 +1,35 @@
 package com.example.udpchat;
 
-public record ChatMessage(String author, String ip, String text, String timestamp, boolean isSelf) {
+/**
+ * A chat message as shown in a chat list.
+ *
+ * @param header       The line shown above the text, built once instead of on every cell update.
+ * @param createdNanos The {@link System#nanoTime()} at which the message was received or sent, or
+ *                     {@link #RESTORED} if it was read back from history.
+ */
+public record ChatMessage(String author, String ip, String text, String timestamp, boolean isSelf,
+                          String header, long createdNanos) {
+
+    public static final long RESTORED = Long.MIN_VALUE;
+
+    /**
+     * Creates a message that has just been received or sent.
+     */
+    public ChatMessage(String author, String ip, String text, String timestamp, boolean isSelf) {
+        this(author, ip, text, timestamp, isSelf, author + " @" + ip, System.nanoTime());
+    }
+
+    /**
+     * Creates a message read back from history; it is not treated as new when shown.
+     */
+    public static ChatMessage restored(String author, String ip, String text, String timestamp, boolean isSelf) {
+        return new ChatMessage(author, ip, text, timestamp, isSelf, author + " @" + ip, RESTORED);
+    }
+
+    /**
+     * Returns true if the message was received or sent less than {@code maxAgeNanos} ago.
+     */
+    public boolean isNewerThan(long maxAgeNanos) {
+        return createdNanos != RESTORED && System.nanoTime() - createdNanos < maxAgeNanos;
+    }
 }
@@ -0,0 +1,204 @@
+// DatagramEngine.java
+package com.example.udpchat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single non-blocking event loop that receives datagrams for any number of channels
+ * (broadcast, multicast groups, several ports) on one thread using a {@link Selector}.
+ * By default handlers are invoked on the engine thread, one datagram at a time. An engine created
+ * with receive workers only drains the sockets and leaves the handlers to a {@link ReceivePipeline},
+ * which keeps the datagrams of each source address in order.
+ */
+public class DatagramEngine {
+
+    /**
+     * Receives datagrams for a registered channel.
+     */
+    @FunctionalInterface
+    public interface DatagramHandler {
+
+        /**
+         * Called for every datagram received on the channel, on the engine thread or on the receive
+         * worker that owns the source address. Calls for different sources may run concurrently.
+         *
+         * @param buffer The receive buffer. Its content is only valid until this method returns.
+         * @param length The number of bytes received, starting at index 0.
+         * @param source The address the datagram was sent from.
+         */
+        void onDatagram(ByteBuffer buffer, int length, InetSocketAddress source);
+    }
+
+    public static final int RECEIVE_BUFFER_SIZE = 2048;
+    // Bounds the work done per channel per wakeup so one flooded channel cannot starve the others
+    private static final int MAX_DATAGRAMS_PER_WAKEUP = 64;
+
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final ReceivePipeline pipeline;
+    private ByteBuffer pipelineBuffer; // The pooled buffer the next datagram is received into
+    private Selector selector;
+    private Thread loopThread;
+    private volatile boolean running = false;
+
+    /**
+     * Creates an engine that runs the handlers on its own thread.
+     */
+    public DatagramEngine() {
+        this.pipeline = null;
+    }
+
+    /**
+     * Creates an engine that hands received datagrams to a pool of worker threads.
+     *
+     * @param workerCount   The number of receive workers; 0 runs the handlers on the engine thread.
+     * @param queueCapacity The number of datagrams that may wait for each worker before new ones are dropped.
+     */
+    public DatagramEngine(int workerCount, int queueCapacity) {
+        this.pipeline = workerCount > 0 ? new ReceivePipeline(workerCount, queueCapacity, RECEIVE_BUFFER_SIZE) : null;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) return;
+        selector = Selector.open();
+        running = true;
+        if (pipeline != null) pipeline.start();
+        loopThread = new Thread(this::runEventLoop, "UDP-Engine-Thread");
+        loopThread.setDaemon(true);
+        loopThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error while stopping datagram engine.");
+            e.printStackTrace();
+        }
+        pendingTasks.clear();
+        if (pipeline != null) pipeline.stop();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the receive pipeline, or null if the handlers run on the engine thread.
+     */
+    public ReceivePipeline getReceivePipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Registers a channel with the event loop. The channel is switched to non-blocking mode.
+     * Registration happens asynchronously on the engine thread.
+     */
+    public void register(DatagramChannel channel, DatagramHandler handler) throws IOException {
+        if (!running) throw new IOException("Datagram engine is not running");
+        channel.configureBlocking(false);
+        runOnEngineThread(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, handler);
+            } catch (IOException e) {
+                System.err.println("Failed to register datagram channel.");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Closes a channel, which also removes it from the event loop.
+     */
+    public void unregister(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error while closing datagram channel.");
+            e.printStackTrace();
+        }
+        if (running) selector.wakeup();
+    }
+
+    private void runOnEngineThread(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runEventLoop() {
+        while (running) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drainChannel(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error in datagram engine event loop.");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void drainChannel(SelectionKey key) {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        DatagramHandler handler = (DatagramHandler) key.attachment();
+        for (int i = 0; i < MAX_DATAGRAMS_PER_WAKEUP; i++) {
+            ByteBuffer buffer = receiveBuffer;
+            if (pipeline != null) {
+                if (pipelineBuffer == null) pipelineBuffer = pipeline.acquireBuffer();
+                buffer = pipelineBuffer;
+            }
+            buffer.clear();
+            SocketAddress source;
+            try {
+                source = channel.receive(buffer);
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    System.err.println("Error receiving datagram.");
+                    e.printStackTrace();
+                }
+                return;
+            }
+            if (source == null) return; // Nothing more to read; the buffer is kept for the next datagram
+            if (pipeline != null) {
+                pipelineBuffer = null; // Owned by the pipeline from here on
+                pipeline.dispatch(buffer, buffer.position(), (InetSocketAddress) source, handler);
+                continue;
+            }
+            try {
+                handler.onDatagram(buffer, buffer.position(), (InetSocketAddress) source);
+            } catch (RuntimeException e) {
+                System.err.println("Datagram handler failed.");
+                e.printStackTrace();
+            }
+        }
+    }
+}
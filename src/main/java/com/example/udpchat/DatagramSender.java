@@ -0,0 +1,264 @@
+// DatagramSender.java
+package com.example.udpchat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous outbound pipeline shared by the UDP services. Callers enqueue messages into a
+ * bounded queue and get a future back; a dedicated sender thread drains the queue in batches.
+ * Each message of a batch is encoded once, directly into a pooled direct buffer, and the batch's
+ * datagrams are then sent grouped by channel and destination, in queue order per destination.
+ * Messages larger than {@link MessageProtocol#MAX_UNFRAGMENTED_SIZE} are encoded into the thread's
+ * message buffer instead and split into fragment datagrams, which are batched like the others.
+ */
+public class DatagramSender {
+
+    /**
+     * What to do when the send queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Reject the new message; its future fails immediately. */
+        DROP_NEWEST,
+        /** Evict the oldest queued message to make room; the evicted future fails. */
+        DROP_OLDEST,
+        /** Block the caller until there is room. */
+        BLOCK
+    }
+
+    private record Outbound(DatagramChannel channel, MessageProtocol.WireFormat format, String type,
+                            Map<String, String> headers, String payload, InetSocketAddress[] destinations,
+                            CompletableFuture<Integer> result) {
+    }
+
+    private record Route(DatagramChannel channel, InetSocketAddress destination) {
+    }
+
+    private record Datagram(Outbound outbound, ByteBuffer buffer) {
+    }
+
+    /**
+     * A message whose datagrams are all staged, with the bytes they take per destination.
+     */
+    private record Encoded(Outbound outbound, int bytes) {
+    }
+
+    private static final int DATAGRAM_BUFFER_SIZE = MessageProtocol.MAX_UNFRAGMENTED_SIZE;
+    private static final int MAX_BATCH_SIZE = 64;
+    // Staged datagrams are sent when this many are waiting, so a large message is sent in several batches
+    private static final int MAX_BATCH_DATAGRAMS = 128;
+    // How long a full socket buffer may hold up one datagram before it is given up
+    private static final long SEND_RETRY_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ArrayBlockingQueue<Outbound> queue;
+    // Sized for one batch, so steady sending allocates no buffers
+    private final BufferPool bufferPool = new BufferPool(DATAGRAM_BUFFER_SIZE, MAX_BATCH_DATAGRAMS);
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private Thread senderThread;
+    private volatile boolean running = false;
+
+    public DatagramSender(int queueCapacity, OverflowPolicy overflowPolicy) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        senderThread = new Thread(this::drainQueue, "UDP-Sender-Thread");
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        senderThread.interrupt();
+        Outbound pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result().completeExceptionally(new IOException("Sender stopped"));
+        }
+    }
+
+    /**
+     * Queues a message for sending. The headers map must not be modified afterwards.
+     *
+     * @return A future completed once the datagram has been handed to the socket for every destination,
+     * with the number of bytes sent to each: the encoded message, or all of its fragments.
+     */
+    public CompletableFuture<Integer> submit(DatagramChannel channel, MessageProtocol.WireFormat format, String type,
+                                          Map<String, String> headers, String payload, InetSocketAddress... destinations) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        if (!running) {
+            result.completeExceptionally(new IOException("Sender is not running"));
+            return result;
+        }
+        Outbound outbound = new Outbound(channel, format, type, headers, payload, destinations, result);
+        switch (overflowPolicy) {
+            case DROP_NEWEST -> {
+                if (!queue.offer(outbound)) reject(outbound);
+            }
+            case DROP_OLDEST -> {
+                while (!queue.offer(outbound)) {
+                    Outbound evicted = queue.poll();
+                    if (evicted != null) reject(evicted);
+                }
+            }
+            case BLOCK -> {
+                try {
+                    queue.put(outbound);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.completeExceptionally(new IOException("Interrupted while waiting for the send queue", e));
+                }
+            }
+        }
+        return result;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    private void reject(Outbound outbound) {
+        droppedCount.incrementAndGet();
+        outbound.result().completeExceptionally(new IOException("Send queue is full, message dropped"));
+    }
+
+    private void drainQueue() {
+        Batch batch = new Batch();
+        List<Outbound> taken = new ArrayList<>(MAX_BATCH_SIZE);
+        while (running) {
+            try {
+                taken.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(taken, MAX_BATCH_SIZE - 1);
+            for (Outbound outbound : taken) {
+                batch.stage(outbound);
+            }
+            batch.flush();
+            taken.clear();
+        }
+    }
+
+    /**
+     * The datagrams of the messages taken from the queue, staged until they are sent together.
+     * Used only by the sender thread.
+     */
+    private final class Batch {
+        private final List<Datagram> staged = new ArrayList<>(MAX_BATCH_DATAGRAMS);
+        private final List<Encoded> encoded = new ArrayList<>(MAX_BATCH_SIZE);
+        private final Map<Route, List<Datagram>> routes = new LinkedHashMap<>();
+        private ByteBuffer messageBuffer; // Allocated for the first message that needs fragmenting
+
+        void stage(Outbound outbound) {
+            if (staged.size() == MAX_BATCH_DATAGRAMS) flush();
+            ByteBuffer buffer = bufferPool.acquire();
+            try {
+                if (MessageProtocol.encode(outbound.format(), outbound.type(), outbound.headers(), outbound.payload(), buffer)) {
+                    staged.add(new Datagram(outbound, buffer));
+                    encoded.add(new Encoded(outbound, buffer.limit()));
+                    return;
+                }
+            } catch (RuntimeException e) {
+                bufferPool.release(buffer);
+                outbound.result().completeExceptionally(e);
+                return;
+            }
+            bufferPool.release(buffer);
+            stageFragments(outbound);
+        }
+
+        private void stageFragments(Outbound outbound) {
+            try {
+                if (messageBuffer == null) messageBuffer = ByteBuffer.allocate(MessageProtocol.MAX_FRAGMENTED_MESSAGE_SIZE);
+                if (!MessageProtocol.encode(outbound.format(), outbound.type(), outbound.headers(), outbound.payload(), messageBuffer)) {
+                    throw new IOException("Message too large: over " + MessageProtocol.MAX_FRAGMENTED_MESSAGE_SIZE + " bytes");
+                }
+                int fragmentCount = MessageProtocol.fragmentCount(messageBuffer.limit());
+                long messageKey = ThreadLocalRandom.current().nextLong();
+                int bytes = 0;
+                for (int index = 0; index < fragmentCount; index++) {
+                    if (staged.size() == MAX_BATCH_DATAGRAMS) flush();
+                    ByteBuffer buffer = bufferPool.acquire();
+                    MessageProtocol.writeFragment(buffer, messageKey, messageBuffer, index, fragmentCount);
+                    bytes += buffer.limit();
+                    staged.add(new Datagram(outbound, buffer));
+                }
+                encoded.add(new Encoded(outbound, bytes));
+            } catch (IOException | RuntimeException e) {
+                // Fragments already staged are skipped when sending
+                outbound.result().completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Sends the staged datagrams, each destination's in the order they were staged, and completes the
+         * messages that were staged in full.
+         */
+        void flush() {
+            for (Datagram datagram : staged) {
+                for (InetSocketAddress destination : datagram.outbound().destinations()) {
+                    routes.computeIfAbsent(new Route(datagram.outbound().channel(), destination), route -> new ArrayList<>()).add(datagram);
+                }
+            }
+            for (Map.Entry<Route, List<Datagram>> entry : routes.entrySet()) {
+                Route route = entry.getKey();
+                for (Datagram datagram : entry.getValue()) {
+                    CompletableFuture<Integer> result = datagram.outbound().result();
+                    if (result.isDone()) continue; // Failed earlier
+                    try {
+                        sendWithRetry(route.channel(), datagram.buffer().rewind(), route.destination());
+                    } catch (IOException | RuntimeException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            }
+            routes.clear();
+            for (Datagram datagram : staged) {
+                bufferPool.release(datagram.buffer());
+            }
+            staged.clear();
+            for (Encoded message : encoded) {
+                if (message.outbound().result().complete(message.bytes())) sentCount.incrementAndGet();
+            }
+            encoded.clear();
+        }
+    }
+
+    private void sendWithRetry(DatagramChannel channel, ByteBuffer buffer, InetSocketAddress destination) throws IOException {
+        long deadline = System.nanoTime() + SEND_RETRY_TIMEOUT_NANOS;
+        // The broadcast send channel is blocking and waits for room in the socket send buffer. The
+        // multicast channels are non-blocking, being registered with the receive selector, and return 0 while it is full.
+        while (channel.send(buffer, destination) == 0) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("Socket send buffer stayed full, datagram to " + destination + " dropped");
+            }
+            LockSupport.parkNanos(100_000);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+// FileUtils.java
+package com.example.udpchat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+/**
+ * A utility class for the small state files kept in the user's home directory.
+ */
+public class FileUtils {
+
+    /**
+     * Replaces a file with the given lines. They are written to a temporary file readable only by the
+     * owner, which is then moved into place, so a crash leaves either the old or the new file.
+     */
+    public static void writeLinesAtomically(Path file, List<String> lines) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; the file keeps the directory's default access
+            }
+            Files.write(temporary, lines, StandardCharsets.UTF_8);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // Best effort
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+// FragmentReassembler.java
+package com.example.udpchat;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles messages that were split into fragment datagrams by the sender.
+ * Every chunk is copied straight from the receive buffer to its final offset in one buffer per
+ * message. The buffer grows to the highest chunk received so far rather than to the length the
+ * fragment claims, so a forged first fragment cannot reserve a megabyte. Incomplete messages
+ * expire after a timeout. The bytes and messages pending per source and in total are capped;
+ * the oldest pending messages, of the same source where that limit is hit, are evicted first.
+ * Completed messages are remembered, up to a limit, so late duplicate fragments are ignored.
+ * This class is thread-safe.
+ */
+public class FragmentReassembler {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long MAX_PENDING_BYTES = 8L << 20;
+    private static final int MAX_PENDING_MESSAGES = 1024;
+    // Two messages of the largest size, so one sender cannot take the whole budget
+    private static final long MAX_PENDING_BYTES_PER_SOURCE = 2L * MessageProtocol.MAX_FRAGMENTED_MESSAGE_SIZE;
+    private static final int MAX_PENDING_MESSAGES_PER_SOURCE = 16;
+    private static final int MAX_COMPLETED_MESSAGES = 4096;
+    private static final int INITIAL_CHUNK_CAPACITY = 8;
+
+    /**
+     * Decides whether a new fragment is taken, after duplicates have been discarded, e.g. by checking a rate limit.
+     */
+    public interface Admission {
+        /**
+         * @param continuesMessage true if the fragment belongs to a message whose reassembly is in progress.
+         */
+        boolean admit(boolean continuesMessage);
+    }
+
+    private record Key(InetAddress source, long messageKey) {
+    }
+
+    /**
+     * A message being reassembled.
+     */
+    private static final class Pending {
+        final long createdNanos;
+        final int totalLength;
+        final int fragmentCount;
+        final long[] received;
+        byte[] data = new byte[0];
+        int receivedCount;
+
+        Pending(int totalLength, int fragmentCount, long createdNanos) {
+            this.totalLength = totalLength;
+            this.fragmentCount = fragmentCount;
+            this.received = new long[(fragmentCount + 63) / 64];
+            this.createdNanos = createdNanos;
+        }
+    }
+
+    /**
+     * The pending messages and bytes of one source.
+     */
+    private static final class Usage {
+        int messages;
+        long bytes;
+    }
+
+    // Insertion-ordered, so the oldest entry is always first
+    private final LinkedHashMap<Key, Pending> pendingMessages = new LinkedHashMap<>();
+    // Completed messages by the time they were started, kept until they expire for duplicate detection
+    private final LinkedHashMap<Key, Long> completedMessages = new LinkedHashMap<>();
+    private final HashMap<InetAddress, Usage> usageBySource = new HashMap<>();
+    private long pendingBytes = 0;
+    private long completedCount = 0;
+    private long expiredCount = 0;
+    private long evictedCount = 0;
+
+    /**
+     * Consumes one fragment.
+     *
+     * @param admission Consulted for fragments that are not duplicates; may be null to take all.
+     * @return The complete message if this fragment completed it, otherwise null.
+     */
+    public synchronized ByteBuffer accept(InetAddress source, ByteBuffer buffer, int length, Admission admission) {
+        long messageKey = buffer.getLong(MessageProtocol.FRAGMENT_KEY_OFFSET);
+        int totalLength = buffer.getInt(MessageProtocol.FRAGMENT_TOTAL_LENGTH_OFFSET);
+        int index = buffer.getShort(MessageProtocol.FRAGMENT_INDEX_OFFSET) & 0xFFFF;
+        int count = buffer.getShort(MessageProtocol.FRAGMENT_COUNT_OFFSET) & 0xFFFF;
+        int chunkLength = length - MessageProtocol.FRAGMENT_HEADER_LENGTH;
+        int chunkStart = index * MessageProtocol.FRAGMENT_CHUNK_SIZE;
+        if (totalLength <= 0 || totalLength > MessageProtocol.MAX_FRAGMENTED_MESSAGE_SIZE
+                || count != MessageProtocol.fragmentCount(totalLength) || index >= count
+                || chunkLength != Math.min(MessageProtocol.FRAGMENT_CHUNK_SIZE, totalLength - chunkStart)) {
+            return null; // Malformed fragment
+        }
+
+        long now = System.nanoTime();
+        expireOldEntries(now);
+        Key key = new Key(source, messageKey);
+        if (completedMessages.containsKey(key)) return null; // Late duplicate of a completed message
+        Pending pending = pendingMessages.get(key);
+        long bit = 1L << (index & 63);
+        if (pending != null) {
+            if (pending.fragmentCount != count || pending.totalLength != totalLength) return null; // Conflicting fragment
+            if ((pending.received[index >>> 6] & bit) != 0) return null; // Duplicate fragment
+        }
+        if (admission != null && !admission.admit(pending != null)) return null;
+        if (pending == null) {
+            makeRoom(source, usageBySource.computeIfAbsent(source, s -> new Usage()), 1, 0, null);
+            pending = new Pending(totalLength, count, now);
+            pendingMessages.put(key, pending);
+            // Looked up again, as evicting the source's last message dropped its usage
+            usageBySource.computeIfAbsent(source, s -> new Usage()).messages++;
+        }
+        Usage usage = usageBySource.get(source);
+        int chunkEnd = chunkStart + chunkLength;
+        if (chunkEnd > pending.data.length) {
+            // Doubles, so a message received in order is copied about once more in total
+            int capacity = Math.min(totalLength, Math.max(chunkEnd,
+                    Math.max(pending.data.length * 2, INITIAL_CHUNK_CAPACITY * MessageProtocol.FRAGMENT_CHUNK_SIZE)));
+            int growth = capacity - pending.data.length;
+            if (!makeRoom(source, usage, 0, growth, pending)) {
+                remove(key, pending);
+                evictedCount++;
+                return null;
+            }
+            pending.data = Arrays.copyOf(pending.data, capacity);
+            pendingBytes += growth;
+            usage.bytes += growth;
+        }
+        pending.received[index >>> 6] |= bit;
+        buffer.get(MessageProtocol.FRAGMENT_HEADER_LENGTH, pending.data, chunkStart, chunkLength);
+
+        if (++pending.receivedCount < pending.fragmentCount) return null;
+        byte[] complete = pending.data;
+        remove(key, pending);
+        completedMessages.put(key, pending.createdNanos);
+        if (completedMessages.size() > MAX_COMPLETED_MESSAGES) {
+            Iterator<Key> oldest = completedMessages.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        completedCount++;
+        return ByteBuffer.wrap(complete);
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingMessages.size();
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    private void expireOldEntries(long now) {
+        Iterator<Map.Entry<Key, Pending>> pendingEntries = pendingMessages.entrySet().iterator();
+        while (pendingEntries.hasNext()) {
+            Map.Entry<Key, Pending> entry = pendingEntries.next();
+            if (now - entry.getValue().createdNanos < TIMEOUT_NANOS) break;
+            pendingEntries.remove();
+            release(entry.getKey().source(), entry.getValue());
+            expiredCount++;
+        }
+        Iterator<Long> completedEntries = completedMessages.values().iterator();
+        while (completedEntries.hasNext() && now - completedEntries.next() >= TIMEOUT_NANOS) {
+            completedEntries.remove();
+        }
+    }
+
+    /**
+     * Evicts pending messages until the given messages and bytes fit within the limits, first the
+     * source's own oldest ones while its limits are exceeded, then the oldest of all.
+     *
+     * @param keep A message that must not be evicted, or null.
+     * @return false if they do not fit even then.
+     */
+    private boolean makeRoom(InetAddress source, Usage usage, int messages, long bytes, Pending keep) {
+        Iterator<Map.Entry<Key, Pending>> entries = pendingMessages.entrySet().iterator();
+        while ((usage.messages + messages > MAX_PENDING_MESSAGES_PER_SOURCE || usage.bytes + bytes > MAX_PENDING_BYTES_PER_SOURCE)
+                && entries.hasNext()) {
+            Map.Entry<Key, Pending> entry = entries.next();
+            if (entry.getValue() == keep || !entry.getKey().source().equals(source)) continue;
+            entries.remove();
+            release(source, entry.getValue());
+            evictedCount++;
+        }
+        entries = pendingMessages.entrySet().iterator();
+        while ((pendingMessages.size() + messages > MAX_PENDING_MESSAGES || pendingBytes + bytes > MAX_PENDING_BYTES)
+                && entries.hasNext()) {
+            Map.Entry<Key, Pending> entry = entries.next();
+            if (entry.getValue() == keep) continue;
+            entries.remove();
+            release(entry.getKey().source(), entry.getValue());
+            evictedCount++;
+        }
+        return usage.messages + messages <= MAX_PENDING_MESSAGES_PER_SOURCE && usage.bytes + bytes <= MAX_PENDING_BYTES_PER_SOURCE
+                && pendingMessages.size() + messages <= MAX_PENDING_MESSAGES && pendingBytes + bytes <= MAX_PENDING_BYTES;
+    }
+
+    private void remove(Key key, Pending pending) {
+        pendingMessages.remove(key);
+        release(key.source(), pending);
+    }
+
+    /**
+     * Takes a message that was removed from the pending ones off the byte and message counts.
+     */
+    private void release(InetAddress source, Pending pending) {
+        pendingBytes -= pending.data.length;
+        Usage usage = usageBySource.get(source);
+        if (usage == null) return;
+        usage.bytes -= pending.data.length;
+        if (--usage.messages == 0) usageBySource.remove(source);
+    }
+}
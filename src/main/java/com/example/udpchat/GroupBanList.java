@@ -0,0 +1,242 @@
+// GroupBanList.java
+package com.example.udpchat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ban list of one group, versioned so that members can converge on the host's list.
+ * <p>
+ * The host owns the list: every ban or unban increments the version and is sent to the group
+ * with it. The host also puts the version in its announces. A member applies a change only if its
+ * version is the next one. If it sees a newer version, it asks the host for a sync: from a
+ * bounded log of recent changes the host answers with only the changes the member is missing,
+ * or with the whole list if the member is too far behind or the list is smaller. The current
+ * entries are a {@link BlocklistManager}, so checks read an immutable snapshot without locking.
+ * <p>
+ * A host's list can be kept in a file, saved after every change, so that a restarted host continues
+ * from its version: starting again from 0 would make members reject every new change as stale, and
+ * would let anyone replay old signed changes with versions above the new ones. The change log is not
+ * saved; members behind a restarted host receive the whole list.
+ * This class is thread-safe.
+ */
+public class GroupBanList {
+
+    /**
+     * The outcome of applying a change received from the host.
+     */
+    public enum Result {
+        APPLIED,
+        /** Already applied or superseded. */
+        STALE,
+        /** Changes before it are missing; a sync is needed. */
+        GAP
+    }
+
+    /**
+     * Carries the list version on ban commands, host announces and sync messages.
+     */
+    public static final String HEADER_VERSION = "banv";
+    /**
+     * Carries the version a sync response's changes apply to; absent if the response is the whole list.
+     */
+    public static final String HEADER_BASE_VERSION = "banbase";
+
+    private static final int MAX_LOGGED_CHANGES = 256;
+    private static final long SYNC_REQUEST_INTERVAL_NANOS = 1_000_000_000L;
+
+    private record Change(long version, boolean ban, String entry) {
+    }
+
+    private final BlocklistManager bans = new BlocklistManager();
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private long version = 0;
+    private long lastSyncRequestNanos = Long.MIN_VALUE;
+    private final Path file;
+
+    /**
+     * Creates an empty list that is not saved, e.g. a member's copy of the host's list.
+     */
+    public GroupBanList() {
+        this(null);
+    }
+
+    /**
+     * @param file The file the list is loaded from if it exists, and saved to after every local change;
+     *             null to keep the list only in memory.
+     */
+    public GroupBanList(Path file) {
+        this.file = file;
+        if (file != null && Files.exists(file)) load();
+    }
+
+    public synchronized long version() {
+        return version;
+    }
+
+    public BlocklistManager.Snapshot snapshot() {
+        return bans.snapshot();
+    }
+
+    public boolean isBlocked(InetAddress address) {
+        return bans.isBlocked(address);
+    }
+
+    /**
+     * Bans or unbans an address or subnet on the host.
+     *
+     * @return The version to send the change with.
+     */
+    public synchronized long applyLocal(boolean ban, String entry) {
+        String canonicalEntry = canonical(entry);
+        boolean changed = ban ? !bans.snapshot().entries().contains(canonicalEntry) && bans.block(entry) : bans.unblock(entry);
+        if (changed) {
+            version++;
+            changes.addLast(new Change(version, ban, canonicalEntry));
+            if (changes.size() > MAX_LOGGED_CHANGES) changes.removeFirst();
+            save();
+        }
+        return version;
+    }
+
+    /**
+     * Applies a change received from the host.
+     *
+     * @param changeVersion The version sent with the change, or -1 if the host does not version its list.
+     */
+    public synchronized Result applyRemote(long changeVersion, boolean ban, String entry) {
+        if (changeVersion >= 0) {
+            if (changeVersion <= version) return Result.STALE;
+            if (changeVersion > version + 1) return Result.GAP;
+            version = changeVersion;
+        }
+        if (ban) bans.block(entry);
+        else bans.unblock(entry);
+        return Result.APPLIED;
+    }
+
+    /**
+     * Forgets all entries and the version, e.g. when another host is trusted, so the next announce
+     * of the new host brings its whole list.
+     */
+    public synchronized void clear() {
+        bans.replaceAll(List.of());
+        changes.clear();
+        version = 0;
+    }
+
+    /**
+     * Returns true if a sync request should be sent now, limiting requests to one per second.
+     */
+    public synchronized boolean shouldRequestSync() {
+        long now = System.nanoTime();
+        if (lastSyncRequestNanos != Long.MIN_VALUE && now - lastSyncRequestNanos < SYNC_REQUEST_INTERVAL_NANOS) return false;
+        lastSyncRequestNanos = now;
+        return true;
+    }
+
+    /**
+     * Builds the host's answer to a member at {@code memberVersion}: the headers to send and, as
+     * the payload, one {@code +entry} or {@code -entry} line per missing change, or the whole list
+     * with one entry per line if that is shorter or the changes are no longer logged.
+     *
+     * @param headers Receives the version headers.
+     * @return The payload, or null if the member is up to date.
+     */
+    public synchronized String buildSyncResponse(long memberVersion, Map<String, String> headers) {
+        if (memberVersion >= version) return null;
+        headers.put(HEADER_VERSION, Long.toString(version));
+        List<String> entries = bans.snapshot().entries();
+        long missing = version - memberVersion;
+        boolean logged = memberVersion >= 0 && !changes.isEmpty() && changes.peekFirst().version() <= memberVersion + 1;
+        if (logged && missing <= entries.size()) {
+            headers.put(HEADER_BASE_VERSION, Long.toString(memberVersion));
+            StringBuilder delta = new StringBuilder();
+            for (Change change : changes) {
+                if (change.version() <= memberVersion) continue;
+                delta.append(change.ban() ? '+' : '-').append(change.entry()).append('\n');
+            }
+            return delta.toString();
+        }
+        return String.join("\n", entries);
+    }
+
+    /**
+     * Applies a sync response from the host.
+     *
+     * @param newVersion  The host's version.
+     * @param baseVersion The version the listed changes apply to, or -1 if the payload is the whole list.
+     * @return true if the list changed.
+     */
+    public synchronized boolean applySync(long newVersion, long baseVersion, String payload) {
+        if (newVersion <= version) return false;
+        if (baseVersion >= 0 && baseVersion != version) return false; // Built for another version; the next announce retries
+        String[] lines = payload == null || payload.isEmpty() ? new String[0] : payload.split("\n");
+        LinkedHashSet<String> entries = new LinkedHashSet<>(baseVersion < 0 ? List.of() : bans.snapshot().entries());
+        for (String line : lines) {
+            if (baseVersion < 0) {
+                if (!line.isBlank()) entries.add(line);
+            } else if (line.length() > 1 && line.charAt(0) == '+') {
+                entries.add(canonical(line.substring(1)));
+            } else if (line.length() > 1 && line.charAt(0) == '-') {
+                entries.remove(canonical(line.substring(1)));
+            }
+        }
+        bans.replaceAll(entries); // One rebuild for the whole response
+        version = newVersion;
+        return true;
+    }
+
+    /**
+     * Reads the version from the first line of the file and one entry from each further line.
+     */
+    private void load() {
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            long savedVersion = lines.isEmpty() ? -1 : parseVersion(lines.get(0));
+            if (savedVersion < 0) throw new IOException("missing version");
+            bans.replaceAll(lines.subList(1, lines.size()));
+            version = savedVersion;
+        } catch (IOException e) {
+            System.err.println("Could not read ban list " + file + ", starting empty: " + e.getMessage());
+        }
+    }
+
+    private void save() {
+        if (file == null) return;
+        List<String> lines = new ArrayList<>();
+        lines.add(Long.toString(version));
+        lines.addAll(bans.snapshot().entries());
+        try {
+            FileUtils.writeLinesAtomically(file, lines);
+        } catch (IOException e) {
+            System.err.println("Could not save ban list " + file + "; members may reject changes after a restart: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Parses a version header; returns -1 if it is absent or malformed.
+     */
+    public static long parseVersion(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String canonical(String entry) {
+        List<String> entries = BlocklistManager.Snapshot.of(List.of(entry)).entries();
+        return entries.isEmpty() ? entry : entries.get(0);
+    }
+}
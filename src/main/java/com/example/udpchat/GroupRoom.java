@@ -0,0 +1,116 @@
+// GroupRoom.java
+package com.example.udpchat;
+
+import java.net.InetAddress;
+import java.security.PublicKey;
+
+/**
+ * Holds the chat state of one joined multicast group: its message history, the versioned
+ * host-issued ban list, the host's pinned signing key and whether the local user is the host or
+ * has been muted by it.
+ * The message history must only be used on the JavaFX application thread.
+ */
+public class GroupRoom {
+
+    /**
+     * A host announce that does not match the pinned host, kept until the user trusts or ignores it.
+     */
+    public record HostClaim(String ip, PublicKey key) {
+    }
+
+    private final InetAddress group;
+    private final String address;
+    private final MessageHistory history;
+    private volatile GroupBanList bans;
+    private volatile String hostIp;
+    private volatile PublicKey hostKey;
+    private volatile HostClaim offeredHost;
+    private volatile boolean isMutedByHost = false;
+    private volatile boolean isHost;
+
+    /**
+     * @param bans The group's ban list, e.g. one kept from an earlier session as host.
+     */
+    public GroupRoom(InetAddress group, boolean isHost, int maxWindowSize, GroupBanList bans) {
+        this.group = group;
+        this.bans = bans;
+        this.history = new MessageHistory(maxWindowSize);
+        this.address = group.getHostAddress();
+        this.isHost = isHost;
+    }
+
+    public InetAddress group() {
+        return group;
+    }
+
+    public String address() {
+        return address;
+    }
+
+    public MessageHistory history() {
+        return history;
+    }
+
+    public GroupBanList bans() {
+        return bans;
+    }
+
+    /**
+     * Replaces the ban list, e.g. with the one kept as host when the local user becomes the host.
+     */
+    public void setBans(GroupBanList bans) {
+        this.bans = bans;
+    }
+
+    public String hostIp() {
+        return hostIp;
+    }
+
+    public void setHostIp(String hostIp) {
+        this.hostIp = hostIp;
+    }
+
+    /**
+     * Returns the key the host's control messages must be signed with, or null if the host is not known.
+     * A member joins with the key pinned on an earlier visit and takes the host's address once it announces with it.
+     */
+    public PublicKey hostKey() {
+        return hostKey;
+    }
+
+    public void setHostKey(PublicKey hostKey) {
+        this.hostKey = hostKey;
+    }
+
+    /**
+     * Returns the latest host announce that differs from the pinned host, or null if there is none.
+     */
+    public HostClaim offeredHost() {
+        return offeredHost;
+    }
+
+    public void setOfferedHost(HostClaim offeredHost) {
+        this.offeredHost = offeredHost;
+    }
+
+    public boolean isMutedByHost() {
+        return isMutedByHost;
+    }
+
+    public void setMutedByHost(boolean mutedByHost) {
+        this.isMutedByHost = mutedByHost;
+    }
+
+    public boolean isHost() {
+        return isHost;
+    }
+
+    public void setHost(boolean isHost) {
+        this.isHost = isHost;
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+}
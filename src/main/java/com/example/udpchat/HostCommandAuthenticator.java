@@ -0,0 +1,232 @@
+// HostCommandAuthenticator.java
+package com.example.udpchat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Signs the control messages a group host sends and verifies the ones received from a host.
+ * <p>
+ * Each instance has an Ed25519 key pair for the groups it hosts, kept in a key file so that members
+ * still accept a host after it restarts; the public key is advertised in the host's announces.
+ * Members pin the key of the first host they hear from (trust on first use): this stops anyone from
+ * taking over a group whose host is known, but whoever claims to be the host first, before the real
+ * host is heard, is trusted until the user explicitly trusts another key. A signature covers the
+ * message type, the group, the id, the ban target and version headers and the payload, so it cannot
+ * be moved to another group or command, and a replayed command is rejected by the ban list's version.
+ * <p>
+ * Verification with the JDK's Ed25519 takes about a millisecond, so it runs on a single worker
+ * thread instead of the receive threads, in arrival order. Copies of a message are dropped by the
+ * duplicate filter before they get here, so every call verifies. If the worker falls behind by more
+ * than {@link #MAX_PENDING_VERIFICATIONS} messages, further messages are rejected.
+ * This class is thread-safe.
+ */
+public class HostCommandAuthenticator {
+
+    /**
+     * Carries the Base64 signature of a host control message.
+     */
+    public static final String HEADER_SIGNATURE = "sig";
+    /**
+     * Carries the host's Base64 X.509 encoded public key in its announces.
+     */
+    public static final String HEADER_HOST_KEY = "hostkey";
+
+    private static final String ALGORITHM = "Ed25519";
+    private static final String[] SIGNED_HEADERS = {"id", "target", GroupBanList.HEADER_VERSION, GroupBanList.HEADER_BASE_VERSION};
+    private static final int MAX_PENDING_VERIFICATIONS = 256;
+
+    private final KeyPair keyPair;
+    private final String encodedPublicKey;
+    private final ThreadPoolExecutor verifier;
+    private final LongAdder verifiedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * Creates an instance with a new key pair that is not saved.
+     */
+    public HostCommandAuthenticator() {
+        this(null);
+    }
+
+    /**
+     * @param keyFile The file the key pair is loaded from, or saved to if it does not exist or cannot
+     *                be read; null to use a new key pair that is not saved.
+     */
+    public HostCommandAuthenticator(Path keyFile) {
+        KeyPair loaded = keyFile != null && Files.exists(keyFile) ? loadKeyPair(keyFile) : null;
+        if (loaded == null) {
+            try {
+                loaded = KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+            if (keyFile != null) saveKeyPair(keyFile, loaded);
+        }
+        this.keyPair = loaded;
+        this.encodedPublicKey = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        this.verifier = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_VERIFICATIONS), r -> {
+            Thread t = new Thread(r, "Host-Verify-Thread");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Returns this instance's public key as sent in {@link #HEADER_HOST_KEY}.
+     */
+    public String publicKey() {
+        return encodedPublicKey;
+    }
+
+    /**
+     * Signs a control message to a group we host, adding {@link #HEADER_SIGNATURE} to its headers.
+     * The headers must already hold the id and every other signed header.
+     */
+    public void sign(String type, String group, Map<String, String> headers, String payload) {
+        try {
+            Signature signature = Signature.getInstance(ALGORITHM);
+            signature.initSign(keyPair.getPrivate());
+            signature.update(signedData(type, group, headers::get, payload));
+            headers.put(HEADER_SIGNATURE, Base64.getEncoder().encodeToString(signature.sign()));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to sign " + type, e);
+        }
+    }
+
+    /**
+     * Verifies a control message received from the host of a group.
+     *
+     * @param hostKey The host's pinned key, or null if none is pinned, in which case the message is rejected.
+     * @return A future completed with true if the signature is valid, on the verifier thread unless it
+     * was rejected at once.
+     */
+    public CompletableFuture<Boolean> verify(PublicKey hostKey, String group, MessageProtocol.DecodedMessage message) {
+        String id = message.header("id");
+        String encodedSignature = message.header(HEADER_SIGNATURE);
+        if (hostKey == null || id == null || encodedSignature == null) {
+            rejectedCount.increment();
+            return CompletableFuture.completedFuture(false);
+        }
+        // Read now: the decoded message is reused once the receive thread moves on
+        byte[] data = signedData(message.type(), group, message::header, message.payload());
+        try {
+            return CompletableFuture.supplyAsync(() -> verifyNow(hostKey, data, encodedSignature), verifier);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.increment();
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    private boolean verifyNow(PublicKey hostKey, byte[] data, String encodedSignature) {
+        boolean valid;
+        try {
+            Signature signature = Signature.getInstance(ALGORITHM);
+            signature.initVerify(hostKey);
+            signature.update(data);
+            valid = signature.verify(Base64.getDecoder().decode(encodedSignature));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            valid = false;
+        }
+        if (!valid) {
+            rejectedCount.increment();
+            return false;
+        }
+        verifiedCount.increment();
+        return true;
+    }
+
+    /**
+     * Decodes a key received in {@link #HEADER_HOST_KEY}; returns null if it is absent or malformed.
+     */
+    public static PublicKey decodePublicKey(String encoded) {
+        if (encoded == null) return null;
+        try {
+            return KeyFactory.getInstance(ALGORITHM).generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(encoded)));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static KeyPair loadKeyPair(Path keyFile) {
+        try {
+            List<String> lines = Files.readAllLines(keyFile, StandardCharsets.US_ASCII);
+            if (lines.size() < 2) throw new IOException("expected a public and a private key line");
+            KeyFactory keyFactory = KeyFactory.getInstance(ALGORITHM);
+            PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(lines.get(0).trim())));
+            PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(lines.get(1).trim())));
+            return new KeyPair(publicKey, privateKey);
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+            System.err.println("Could not read host key " + keyFile + ", generating a new one: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void saveKeyPair(Path keyFile, KeyPair keyPair) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        try {
+            FileUtils.writeLinesAtomically(keyFile, List.of(encoder.encodeToString(keyPair.getPublic().getEncoded()),
+                    encoder.encodeToString(keyPair.getPrivate().getEncoded())));
+        } catch (IOException e) {
+            System.err.println("Could not save host key " + keyFile + "; members will need to trust a new key after a restart: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private interface HeaderSource {
+        String get(String key);
+    }
+
+    private static byte[] signedData(String type, String group, HeaderSource headers, String payload) {
+        // Header values are addresses, ids and numbers, so a newline cannot occur before the payload
+        StringBuilder data = new StringBuilder(type).append('\n').append(group).append('\n');
+        for (String key : SIGNED_HEADERS) {
+            String value = headers.get(key);
+            data.append(value != null ? value : "").append('\n');
+        }
+        data.append(payload != null ? payload : "");
+        return data.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns how many signatures were verified.
+     */
+    public long getVerifiedCount() {
+        return verifiedCount.sum();
+    }
+
+    /**
+     * Returns how many messages were rejected as unsigned, forged or arriving faster than they could be verified.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Stops the verifier thread; pending verifications are dropped.
+     */
+    public void stop() {
+        verifier.shutdownNow();
+    }
+}
@@ -0,0 +1,75 @@
+// KnownHosts.java
+package com.example.udpchat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The host keys pinned per group, kept in a file like SSH's known hosts.
+ * <p>
+ * A group's key is pinned the first time a host is heard in it and is then trusted on every later
+ * join, also after a restart, so whoever announces first after a join cannot take over a known
+ * group. Only the user can replace a pinned key. Each line of the file holds a group address and
+ * the Base64 X.509 encoded key, separated by a space.
+ * This class is thread-safe.
+ */
+public class KnownHosts {
+
+    private final Path file;
+    private final Map<String, PublicKey> keysByGroup = new TreeMap<>();
+
+    /**
+     * @param file The file the pins are loaded from if it exists, and saved to on every change.
+     */
+    public KnownHosts(Path file) {
+        this.file = file;
+        if (Files.exists(file)) load();
+    }
+
+    /**
+     * Returns the key pinned for a group, or null if none is.
+     */
+    public synchronized PublicKey get(String group) {
+        return keysByGroup.get(group);
+    }
+
+    /**
+     * Pins a group's host key, replacing any earlier one.
+     */
+    public synchronized void put(String group, PublicKey key) {
+        if (key.equals(keysByGroup.put(group, key))) return;
+        List<String> lines = new ArrayList<>();
+        Base64.Encoder encoder = Base64.getEncoder();
+        keysByGroup.forEach((pinnedGroup, pinnedKey) -> lines.add(pinnedGroup + " " + encoder.encodeToString(pinnedKey.getEncoded())));
+        try {
+            FileUtils.writeLinesAtomically(file, lines);
+        } catch (IOException e) {
+            System.err.println("Could not save known hosts " + file + "; the host of " + group + " is pinned only until exit: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void load() {
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] fields = line.trim().split(" ");
+                PublicKey key = fields.length == 2 ? HostCommandAuthenticator.decodePublicKey(fields[1]) : null;
+                if (key == null) {
+                    if (!line.isBlank()) System.err.println("Ignoring malformed known host '" + line + "' in " + file);
+                    continue;
+                }
+                keysByGroup.put(fields[0], key);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read known hosts " + file + ": " + e.getMessage());
+        }
+    }
+}
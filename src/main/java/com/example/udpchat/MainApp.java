@@ -10,6 +10,8 @@ import javafx.stage.Stage;
 
 public class MainApp extends Application {
 
+    private ChatFxmlUI controller;
+
     @Override
     public void start(Stage stage) throws Exception {
         // Load custom font
@@ -17,6 +19,7 @@ public class MainApp extends Application {
 
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/com/example/udpchat/main-view.fxml"));
         Parent root = loader.load();
+        controller = loader.getController();
         Scene scene = new Scene(root, 1024, 768);
 
         // Link stylesheet
@@ -27,6 +30,11 @@ public class MainApp extends Application {
         stage.show();
     }
 
+    @Override
+    public void stop() {
+        if (controller != null) controller.shutdown();
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
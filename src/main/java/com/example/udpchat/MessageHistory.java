@@ -0,0 +1,296 @@
+// MessageHistory.java
+package com.example.udpchat;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The message history of one chat list. Only a bounded window of the history is kept on the heap,
+ * as the list shown by the {@link javafx.scene.control.ListView}; every message is also appended to
+ * a temporary file, from which older (or, after paging up, newer) messages are read back a page at
+ * a time. The file holds the serialized messages plus an index of their offsets, so the heap used
+ * is the same after ten messages as after ten million.
+ * While the window shows the newest messages, appended messages are added to it and the oldest ones
+ * leave it; after the user has paged up, the window stays where it is until paged back down.
+ * This class must only be used on the JavaFX application thread.
+ */
+public class MessageHistory implements AutoCloseable {
+
+    private static final int INDEX_ENTRY_SIZE = Long.BYTES;
+    private static final String SPILL_FILE_PREFIX = "udpchat-history-";
+
+    static {
+        deleteLeftoverFiles();
+    }
+
+    private final ObservableList<ChatMessage> window = FXCollections.observableArrayList();
+    private final int maxWindowSize;
+    private FileChannel dataFile;
+    private FileChannel indexFile;
+    private long dataSize = 0;
+    private long totalCount = 0;
+    private long windowStart = 0; // The history position of window.get(0)
+
+    /**
+     * @param maxWindowSize The maximum number of messages kept on the heap.
+     */
+    public MessageHistory(int maxWindowSize) {
+        this.maxWindowSize = Math.max(1, maxWindowSize);
+        try {
+            // Unlinked right after opening where the OS allows it, so nothing is left behind even after a crash
+            dataFile = openTemporaryFile(SPILL_FILE_PREFIX, ".dat");
+            indexFile = openTemporaryFile(SPILL_FILE_PREFIX, ".idx");
+        } catch (IOException e) {
+            System.err.println("MessageHistory: Could not create spill files, older messages will be discarded.");
+            e.printStackTrace();
+            closeFiles();
+        }
+    }
+
+    /**
+     * Returns the list to show; it contains the current window of the history.
+     */
+    public ObservableList<ChatMessage> window() {
+        return window;
+    }
+
+    public long size() {
+        return totalCount;
+    }
+
+    public boolean hasOlder() {
+        return windowStart > 0;
+    }
+
+    public boolean hasNewer() {
+        return windowStart + window.size() < totalCount;
+    }
+
+    /**
+     * Appends messages to the history.
+     *
+     * @return true if they were added to the window, false if the window is paged up and unchanged.
+     */
+    public boolean appendAll(List<ChatMessage> messages) {
+        if (messages.isEmpty()) return false;
+        boolean followingTail = !hasNewer();
+        if (!spill(messages)) followingTail = true; // Without a spill file the window is the whole history
+        totalCount += messages.size();
+        if (!followingTail) return false;
+        window.addAll(messages);
+        trimOldest();
+        return true;
+    }
+
+    /**
+     * Reads up to {@code count} messages older than the window back into it. Messages at the newer
+     * end are dropped from the window to keep it bounded.
+     *
+     * @return The number of messages added at the top of the window.
+     */
+    public int loadOlder(int count) {
+        long from = Math.max(0, windowStart - count);
+        List<ChatMessage> older = read(from, windowStart);
+        if (older.isEmpty()) return 0;
+        window.addAll(0, older);
+        windowStart -= older.size();
+        int excess = window.size() - maxWindowSize;
+        if (excess > 0) window.remove(window.size() - excess, window.size());
+        return older.size();
+    }
+
+    /**
+     * Reads up to {@code count} messages newer than the window back into it. Messages at the older
+     * end are dropped from the window to keep it bounded.
+     *
+     * @return The number of messages dropped from the top of the window.
+     */
+    public int loadNewer(int count) {
+        long windowEnd = windowStart + window.size();
+        List<ChatMessage> newer = read(windowEnd, Math.min(totalCount, windowEnd + count));
+        if (newer.isEmpty()) return 0;
+        window.addAll(newer);
+        return trimOldest();
+    }
+
+    @Override
+    public void close() {
+        closeFiles();
+        window.clear();
+    }
+
+    private int trimOldest() {
+        int excess = window.size() - maxWindowSize;
+        if (excess <= 0) return 0;
+        // Messages leaving the window are only dropped if they can be read back
+        if (dataFile == null) totalCount -= excess;
+        else windowStart += excess;
+        window.remove(0, excess);
+        return excess;
+    }
+
+    /**
+     * Appends messages to the spill file.
+     *
+     * @return false if there is no usable spill file.
+     */
+    private boolean spill(List<ChatMessage> messages) {
+        if (dataFile == null) return false;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(messages.size() * 128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            ByteBuffer offsets = ByteBuffer.allocate(messages.size() * INDEX_ENTRY_SIZE);
+            for (ChatMessage message : messages) {
+                offsets.putLong(dataSize + out.size());
+                writeMessage(out, message);
+            }
+            writeFully(dataFile, ByteBuffer.wrap(bytes.toByteArray()), dataSize);
+            writeFully(indexFile, offsets.flip(), totalCount * INDEX_ENTRY_SIZE);
+            dataSize += out.size();
+            return true;
+        } catch (IOException e) {
+            System.err.println("MessageHistory: Spill file write failed, older messages will be discarded.");
+            e.printStackTrace();
+            closeFiles();
+            windowStart = 0;
+            totalCount = window.size();
+            return false;
+        }
+    }
+
+    /**
+     * Reads the messages at history positions [from, to).
+     */
+    private List<ChatMessage> read(long from, long to) {
+        List<ChatMessage> messages = new ArrayList<>((int) Math.max(0, to - from));
+        if (dataFile == null || from >= to) return messages;
+        try {
+            // The messages of a range are contiguous, so only its two boundary offsets are needed
+            int count = (int) (to - from);
+            long start = readOffset(from);
+            long end = to < totalCount ? readOffset(to) : dataSize;
+            ByteBuffer data = ByteBuffer.allocate((int) (end - start));
+            readFully(dataFile, data, start);
+            data.flip();
+            for (int i = 0; i < count; i++) {
+                messages.add(readMessage(data));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("MessageHistory: Could not read spilled messages.");
+            e.printStackTrace();
+            messages.clear();
+        }
+        return messages;
+    }
+
+    private long readOffset(long position) throws IOException {
+        ByteBuffer offset = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        readFully(indexFile, offset, position * INDEX_ENTRY_SIZE);
+        return offset.getLong(0);
+    }
+
+    private static void writeMessage(DataOutputStream out, ChatMessage message) throws IOException {
+        writeString(out, message.author());
+        writeString(out, message.ip());
+        writeString(out, message.text());
+        writeString(out, message.timestamp());
+        out.writeBoolean(message.isSelf());
+    }
+
+    private static ChatMessage readMessage(ByteBuffer in) {
+        String author = readString(in);
+        String ip = readString(in);
+        String text = readString(in);
+        String timestamp = readString(in);
+        boolean isSelf = in.get() != 0;
+        return ChatMessage.restored(author, ip, text, timestamp, isSelf);
+    }
+
+    // Length-prefixed UTF-8; unlike writeUTF, not limited to 64 KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * Opens a new temporary file and removes its name, so it only lives as long as the channel. Where an
+     * open file cannot be deleted, e.g. on Windows, it is deleted when closed instead.
+     */
+    private static FileChannel openTemporaryFile(String prefix, String suffix) throws IOException {
+        Path path = Files.createTempFile(prefix, suffix);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        try {
+            Files.delete(path);
+        } catch (IOException e) {
+            // Still open; deleted on close, or at the next start if the process dies first
+        }
+        return channel;
+    }
+
+    /**
+     * Deletes the spill files of earlier runs that ended without closing them. Files another running
+     * instance still has open cannot be deleted where they still have a name, and are skipped.
+     */
+    private static void deleteLeftoverFiles() {
+        Path directory = Path.of(System.getProperty("java.io.tmpdir"));
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, SPILL_FILE_PREFIX + "*.{dat,idx}")) {
+            for (Path leftover : leftovers) {
+                try {
+                    Files.deleteIfExists(leftover);
+                } catch (IOException e) {
+                    // In use
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("MessageHistory: Could not look for leftover spill files in " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of spill file");
+            position += read;
+        }
+    }
+
+    private void closeFiles() {
+        for (FileChannel channel : new FileChannel[]{dataFile, indexFile}) {
+            if (channel == null) continue;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        dataFile = null;
+        indexFile = null;
+    }
+}
@@ -1,14 +1,136 @@
 package com.example.udpchat;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Generates 128-bit message ids made of a random node id (64 bits), the process start epoch
+ * in seconds (32 bits) and a per-process monotonic sequence number (32 bits).
+ * Ids are sent as 16 raw bytes in the binary wire format and as 32 hex characters in text.
+ * Generation is lock-free; the random node id is drawn once at startup.
+ */
 public class MessageIds {
 
-    private static final SecureRandom RND = new SecureRandom();
+    public static final int TEXT_LENGTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final long NODE_ID = new SecureRandom().nextLong();
+    private static final int EPOCH = (int) (System.currentTimeMillis() / 1000);
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
 
     public static String next() {
-        long t = System.currentTimeMillis();
-        int r = RND.nextInt();
-        return Long.toHexString(t) + "-" + Integer.toHexString(r);
+        int sequence = SEQUENCE.getAndIncrement();
+        char[] text = new char[TEXT_LENGTH];
+        putHex(text, 0, NODE_ID, 16);
+        putHex(text, 16, EPOCH, 8);
+        putHex(text, 24, sequence, 8);
+        return new String(text);
+    }
+
+    public static long localNodeId() {
+        return NODE_ID;
+    }
+
+    public static int localEpoch() {
+        return EPOCH;
+    }
+
+    /**
+     * Packs an id produced by {@link #next()} into the 16-byte binary id slot.
+     *
+     * @return false if the id is not in the compact form and must be sent as a regular header.
+     */
+    static boolean writeBinary(String id, ByteBuffer out, int offset) {
+        if (id.length() != TEXT_LENGTH) return false;
+        long node = 0;
+        long tail = 0;
+        for (int i = 0; i < TEXT_LENGTH; i++) {
+            int digit = hexValue((byte) id.charAt(i));
+            if (digit < 0 || id.charAt(i) > 0x7F) return false;
+            if (i < 16) node = (node << 4) | digit; else tail = (tail << 4) | digit;
+        }
+        out.putLong(offset, node);
+        out.putLong(offset + 8, tail);
+        return true;
+    }
+
+    /**
+     * Restores the text form of an id packed by {@link #writeBinary}.
+     */
+    static String readBinary(ByteBuffer in, int offset) {
+        char[] text = new char[TEXT_LENGTH];
+        putHex(text, 0, in.getLong(offset), 16);
+        putHex(text, 16, in.getLong(offset + 8), 16);
+        return new String(text);
+    }
+
+    /**
+     * Hashes a packed binary id into 64 bits.
+     */
+    static long hashBinary(ByteBuffer in, int offset) {
+        return mix(in.getLong(offset), in.getLong(offset + 8));
+    }
+
+    /**
+     * Hashes the text form of an id in place. Compact ids hash to the same value as their
+     * packed binary form, so a message is recognized regardless of the wire format it arrived in.
+     */
+    static long hashText(ByteBuffer in, int start, int end) {
+        if (isCompactText(in, start, end)) {
+            return mix(parseHex(in, start, start + 16), parseHex(in, start + 16, end));
+        }
+        // Foreign id format: FNV-1a over the raw bytes
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (in.get(i) & 0xFF)) * 0x100000001b3L;
+        }
+        return mix(hash, 0);
+    }
+
+    /**
+     * Returns true if the bytes hold the 32-character text form of a compact id.
+     */
+    static boolean isCompactText(ByteBuffer in, int start, int end) {
+        if (end - start != TEXT_LENGTH) return false;
+        for (int i = start; i < end; i++) {
+            if (hexValue(in.get(i)) < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses up to 16 lowercase hex digits; the caller must have validated them.
+     */
+    static long parseHex(ByteBuffer in, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = hexValue(in.get(i));
+            value = (value << 4) | (digit & 0xF);
+        }
+        return value;
+    }
+
+    private static void putHex(char[] out, int offset, long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            out[offset + i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        return -1;
+    }
+
+    private static long mix(long hi, long lo) {
+        long h = hi * 0x9E3779B97F4A7C15L ^ Long.rotateLeft(lo, 31) * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
     }
 }
@@ -0,0 +1,650 @@
+// MessageJournal.java
+package com.example.udpchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * A persistent, append-only log of chat messages, split into segment files.
+ * <p>
+ * The newest segment is memory-mapped and appended to in place; a record becomes visible when its
+ * length is written, after its body and CRC. Each record stores the position of the previous record
+ * of the same room, so the last N messages of a room are found by following N back-pointers instead
+ * of reading the log. When a segment is full it is forced to disk and sealed: a small index file is
+ * written next to it with the last record of every room and a sparse (every 4 KB) map of append
+ * times to positions, and a new segment is started. Sealed segments are deleted oldest first once
+ * the journal exceeds its size or age limit.
+ * <p>
+ * On open, sealed segments are described by their index files. The newest segment is scanned from
+ * the start, or after a clean close only from the index written by {@link #close()}. The scan stops at the first record with a bad length or CRC, such as one torn by a crash,
+ * and clears everything after it, so later appends never mix with stale bytes.
+ * This class is thread-safe.
+ */
+public class MessageJournal implements AutoCloseable {
+
+    /**
+     * A journaled message with its position in the journal, the room it belongs to and the local time it was appended.
+     */
+    public record Entry(long position, String room, long timestampMillis, ChatMessage message) {
+    }
+
+    /**
+     * Notified when retention deletes old segments, while the journal is locked.
+     */
+    public interface RetentionListener {
+        /**
+         * @param startPosition The lowest position still in the journal; lower ones can no longer be read.
+         */
+        void segmentsDeleted(long startPosition);
+    }
+
+    /**
+     * Returned by {@link #append} if the message was not journaled.
+     */
+    public static final long NO_POSITION = -1;
+
+    private static final int RECORD_HEADER_SIZE = 8; // Body length and CRC
+    private static final int RECORD_FIXED_BODY_SIZE = Long.BYTES * 2 + 1;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int INDEX_MAGIC = 0x554A4958;
+    private static final int INDEX_VERSION = 1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * One segment file. Positions in the journal are global: the segment's base plus the offset in the file.
+     */
+    private static final class Segment {
+        final long base;
+        final Path path;
+        long size = 0;
+        long lastTimestamp = Long.MIN_VALUE;
+        final Map<String, Long> roomHeads = new HashMap<>();
+        // Sparse index: the newest append time up to each indexed offset, in offset order
+        long[] indexTimestamps = new long[16];
+        int[] indexOffsets = new int[16];
+        int indexCount = 0;
+
+        Segment(long base, Path path) {
+            this.base = base;
+            this.path = path;
+        }
+
+        void recordAppended(String room, int offset, long timestamp, int length) {
+            roomHeads.put(room, base + offset);
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+            if (indexCount == 0 || offset - indexOffsets[indexCount - 1] >= INDEX_INTERVAL_BYTES) {
+                addIndexEntry(lastTimestamp, offset);
+            }
+            size = offset + length;
+        }
+
+        void addIndexEntry(long timestamp, int offset) {
+            if (indexCount == indexOffsets.length) {
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexCount * 2);
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+            }
+            indexTimestamps[indexCount] = timestamp;
+            indexOffsets[indexCount] = offset;
+            indexCount++;
+        }
+
+        /**
+         * Returns the offset to start scanning from for records appended at or after the given time.
+         */
+        int scanStart(long timestamp) {
+            int low = 0, high = indexCount - 1, start = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexTimestamps[mid] < timestamp) {
+                    start = indexOffsets[mid]; // Everything before this entry is older
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return start;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxTotalBytes;
+    private final long maxAgeMillis;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, Long> roomHeads = new HashMap<>();
+    private final CRC32C crc = new CRC32C();
+    private Segment active;
+    private FileChannel activeChannel;
+    private MappedByteBuffer activeBuffer;
+    private boolean closed = false;
+    private RetentionListener retentionListener;
+
+    /**
+     * Opens the journal in a directory, creating it if necessary, and recovers its newest segment.
+     *
+     * @param segmentSize   The size of each segment file; also the largest record that can be stored.
+     * @param maxTotalBytes Sealed segments are deleted, oldest first, while the journal is larger than this.
+     * @param maxAgeMillis  Sealed segments whose newest record is older than this are deleted.
+     */
+    public MessageJournal(Path directory, int segmentSize, long maxTotalBytes, long maxAgeMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        Files.createDirectories(directory);
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    System.err.println("MessageJournal: Ignoring unexpected file " + file);
+                }
+            }
+        }
+        Collections.sort(bases);
+        for (int i = 0; i < bases.size() - 1; i++) {
+            Segment segment = new Segment(bases.get(i), segmentPath(bases.get(i)));
+            if (!loadIndex(segment)) {
+                scanSealed(segment);
+                writeIndex(segment);
+            }
+            segments.put(segment.base, segment);
+            roomHeads.putAll(segment.roomHeads);
+        }
+        openActive(bases.isEmpty() ? 0 : bases.get(bases.size() - 1), true);
+        applyRetention();
+    }
+
+    /**
+     * Appends a message to a room's log. Messages too large for a segment are not journaled.
+     *
+     * @return The position of the message, or {@link #NO_POSITION} if it was not journaled.
+     */
+    public synchronized long append(String room, ChatMessage message) {
+        if (closed) return NO_POSITION;
+        byte[][] fields = {
+                utf8(room), utf8(message.author()), utf8(message.ip()), utf8(message.text()), utf8(message.timestamp())
+        };
+        int bodyLength = RECORD_FIXED_BODY_SIZE;
+        for (byte[] field : fields) bodyLength += Integer.BYTES + field.length;
+        int recordLength = RECORD_HEADER_SIZE + bodyLength;
+        if (recordLength > segmentSize) {
+            System.err.println("MessageJournal: Message of " + recordLength + " bytes is too large to journal.");
+            return NO_POSITION;
+        }
+        try {
+            if (active.size + recordLength > activeBuffer.capacity()) roll();
+            int offset = (int) active.size;
+            long timestamp = System.currentTimeMillis();
+            int position = offset + RECORD_HEADER_SIZE;
+            activeBuffer.putLong(position, timestamp);
+            activeBuffer.putLong(position + Long.BYTES, roomHeads.getOrDefault(room, NO_POSITION));
+            activeBuffer.put(position + Long.BYTES * 2, (byte) (message.isSelf() ? 1 : 0));
+            position += RECORD_FIXED_BODY_SIZE;
+            for (byte[] field : fields) {
+                activeBuffer.putInt(position, field.length);
+                activeBuffer.put(position + Integer.BYTES, field);
+                position += Integer.BYTES + field.length;
+            }
+            activeBuffer.putInt(offset + Integer.BYTES, checksum(activeBuffer, offset + RECORD_HEADER_SIZE, bodyLength));
+            activeBuffer.putInt(offset, bodyLength); // Written last, makes the record visible
+            active.recordAppended(room, offset, timestamp, recordLength);
+            roomHeads.put(room, active.base + offset);
+            return active.base + offset;
+        } catch (IOException e) {
+            System.err.println("MessageJournal: Failed to append message.");
+            e.printStackTrace();
+            return NO_POSITION;
+        }
+    }
+
+    /**
+     * Reads the message at a position returned by {@link #append} or found in an {@link Entry}.
+     *
+     * @return The message, or null if it was deleted by retention or is damaged.
+     */
+    public synchronized Entry read(long position) {
+        if (closed) return null;
+        Map<Long, FileChannel> channels = new HashMap<>();
+        try {
+            ByteBuffer body = readBody(position, channels);
+            return body == null ? null : decodeEntry(position, body);
+        } catch (IOException e) {
+            System.err.println("MessageJournal: Failed to read message at " + position);
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeAll(channels);
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} messages that follow the message at a position, oldest first.
+     * Walking the whole journal in chunks takes one lock per chunk, so appends are not held up.
+     *
+     * @param position The position of the last message already read, or {@link #NO_POSITION} to start at the oldest message.
+     */
+    public synchronized List<Entry> readAfter(long position, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        if (closed) return entries;
+        Map<Long, FileChannel> channels = new HashMap<>();
+        try {
+            if (position == NO_POSITION || position < segments.firstKey()) {
+                position = segments.firstKey();
+            } else {
+                ByteBuffer body = readBody(position, channels);
+                if (body == null) return entries;
+                position += RECORD_HEADER_SIZE + body.limit();
+            }
+            Map.Entry<Long, Segment> segment = segments.floorEntry(position);
+            while (segment != null && entries.size() < limit) {
+                if (position >= segment.getKey() + segment.getValue().size) {
+                    segment = segments.higherEntry(segment.getKey());
+                    if (segment != null) position = segment.getKey();
+                    continue;
+                }
+                ByteBuffer body = readBody(position, channels);
+                if (body == null) break;
+                entries.add(decodeEntry(position, body));
+                position += RECORD_HEADER_SIZE + body.limit();
+            }
+        } catch (IOException e) {
+            System.err.println("MessageJournal: Failed to read messages.");
+            e.printStackTrace();
+        } finally {
+            closeAll(channels);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns up to {@code count} of the newest messages of a room, oldest first.
+     */
+    public synchronized List<ChatMessage> lastMessages(String room, int count) {
+        List<ChatMessage> messages = new ArrayList<>();
+        if (closed) return messages;
+        Map<Long, FileChannel> channels = new HashMap<>();
+        try {
+            long position = roomHeads.getOrDefault(room, NO_POSITION);
+            while (position != NO_POSITION && messages.size() < count) {
+                ByteBuffer body = readBody(position, channels);
+                if (body == null) break; // Deleted by retention, or damaged
+                messages.add(decodeMessage(body));
+                position = body.getLong(Long.BYTES);
+            }
+        } catch (IOException e) {
+            System.err.println("MessageJournal: Failed to read messages of room " + room);
+            e.printStackTrace();
+        } finally {
+            closeAll(channels);
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    /**
+     * Returns up to {@code limit} messages of all rooms appended at or after the given time, oldest first.
+     * The sparse index of each segment is used to skip older records.
+     */
+    public synchronized List<Entry> readSince(long timestampMillis, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        if (closed) return entries;
+        Map<Long, FileChannel> channels = new HashMap<>();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment.lastTimestamp < timestampMillis) continue;
+                long position = segment.base + segment.scanStart(timestampMillis);
+                long end = segment.base + segment.size;
+                while (position < end && entries.size() < limit) {
+                    ByteBuffer body = readBody(position, channels);
+                    if (body == null) break;
+                    if (body.getLong(0) >= timestampMillis) entries.add(decodeEntry(position, body));
+                    position += RECORD_HEADER_SIZE + body.limit();
+                }
+                if (entries.size() >= limit) break;
+            }
+        } catch (IOException e) {
+            System.err.println("MessageJournal: Failed to read messages.");
+            e.printStackTrace();
+        } finally {
+            closeAll(channels);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the position the next message will be appended at; every journaled message has a lower position.
+     */
+    public synchronized long getEndPosition() {
+        return active.base + active.size;
+    }
+
+    /**
+     * Returns the lowest position still in the journal.
+     */
+    public synchronized long getStartPosition() {
+        return segments.firstKey();
+    }
+
+    public synchronized void setRetentionListener(RetentionListener retentionListener) {
+        this.retentionListener = retentionListener;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) total += segment.size;
+        return total;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        activeBuffer.force();
+        activeBuffer = null; // Unmapped by the garbage collector
+        try {
+            writeIndex(active); // Lets the next open skip scanning this segment
+            activeChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void openActive(long base, boolean recover) throws IOException {
+        Segment segment = new Segment(base, segmentPath(base));
+        activeChannel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long mappedSize = Math.max(activeChannel.size(), segmentSize);
+        activeBuffer = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+        if (recover) {
+            // An index of the newest segment is only left by a clean close; then only later records, if any, are scanned
+            boolean closedCleanly = loadIndex(segment);
+            Files.deleteIfExists(indexPath(base));
+            int checkpoint = (int) segment.size;
+            int end = scan(activeBuffer, segment, checkpoint);
+            if ((!closedCleanly || end != checkpoint) && !isZero(activeBuffer, end)) {
+                System.err.println("MessageJournal: Discarding damaged records at offset " + end + " of " + segment.path);
+                byte[] zeros = new byte[INDEX_INTERVAL_BYTES];
+                for (int i = end; i < mappedSize; i += zeros.length) {
+                    activeBuffer.put(i, zeros, 0, (int) Math.min(zeros.length, mappedSize - i));
+                }
+                activeBuffer.force();
+            }
+            roomHeads.putAll(segment.roomHeads);
+        }
+        active = segment;
+        segments.put(base, segment);
+    }
+
+    private void roll() throws IOException {
+        activeBuffer.force();
+        activeBuffer = null;
+        writeIndex(active);
+        try {
+            activeChannel.truncate(active.size); // The unused, mapped tail is never touched again
+        } catch (IOException e) {
+            // Some platforms refuse to truncate a mapped file; the index records the used size
+        }
+        activeChannel.close();
+        openActive(active.base + active.size, false);
+        applyRetention();
+    }
+
+    private void applyRetention() {
+        long total = 0;
+        for (Segment segment : segments.values()) total += segment.size;
+        long oldestAllowed = System.currentTimeMillis() - maxAgeMillis;
+        Iterator<Segment> iterator = segments.values().iterator();
+        boolean deleted = false;
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active) break;
+            if (total <= maxTotalBytes && segment.lastTimestamp >= oldestAllowed) break;
+            try {
+                Files.deleteIfExists(indexPath(segment.base));
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                System.err.println("MessageJournal: Could not delete " + segment.path);
+                e.printStackTrace();
+                break;
+            }
+            total -= segment.size;
+            iterator.remove();
+            deleted = true;
+        }
+        long firstPosition = segments.firstKey();
+        roomHeads.values().removeIf(position -> position < firstPosition);
+        if (deleted && retentionListener != null) retentionListener.segmentsDeleted(firstPosition);
+    }
+
+    /**
+     * Scans the records of a segment from an offset and returns the offset after the last valid one.
+     */
+    private int scan(ByteBuffer buffer, Segment segment, int offset) {
+        while (offset + RECORD_HEADER_SIZE <= buffer.limit()) {
+            int bodyLength = buffer.getInt(offset);
+            if (bodyLength < RECORD_FIXED_BODY_SIZE || bodyLength > buffer.limit() - offset - RECORD_HEADER_SIZE) break;
+            if (buffer.getInt(offset + Integer.BYTES) != checksum(buffer, offset + RECORD_HEADER_SIZE, bodyLength)) break;
+            ByteBuffer body = buffer.slice(offset + RECORD_HEADER_SIZE, bodyLength);
+            body.position(RECORD_FIXED_BODY_SIZE);
+            segment.recordAppended(readString(body), offset, body.getLong(0), RECORD_HEADER_SIZE + bodyLength);
+            offset += RECORD_HEADER_SIZE + bodyLength;
+        }
+        return offset;
+    }
+
+    /**
+     * Returns true if every byte from the offset to the end of the buffer is zero.
+     */
+    private static boolean isZero(ByteBuffer buffer, int offset) {
+        int end = buffer.limit();
+        for (; offset < end && (offset & 7) != 0; offset++) {
+            if (buffer.get(offset) != 0) return false;
+        }
+        for (; offset + Long.BYTES <= end; offset += Long.BYTES) {
+            if (buffer.getLong(offset) != 0) return false;
+        }
+        for (; offset < end; offset++) {
+            if (buffer.get(offset) != 0) return false;
+        }
+        return true;
+    }
+
+    private void scanSealed(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), segment, 0);
+        }
+    }
+
+    /**
+     * Reads and verifies the body of the record at a global position.
+     *
+     * @return The body, or null if the position is no longer in the journal or the record is damaged.
+     */
+    private ByteBuffer readBody(long position, Map<Long, FileChannel> channels) throws IOException {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+        if (entry == null) return null;
+        Segment segment = entry.getValue();
+        int offset = (int) (position - segment.base);
+        if (offset + RECORD_HEADER_SIZE > segment.size) return null;
+        ByteBuffer header;
+        ByteBuffer body;
+        if (segment == active) {
+            header = activeBuffer.slice(offset, RECORD_HEADER_SIZE);
+            int bodyLength = header.getInt(0);
+            if (bodyLength < RECORD_FIXED_BODY_SIZE || offset + RECORD_HEADER_SIZE + bodyLength > segment.size) return null;
+            body = activeBuffer.slice(offset + RECORD_HEADER_SIZE, bodyLength);
+        } else {
+            FileChannel channel = channels.get(segment.base);
+            if (channel == null) {
+                channel = FileChannel.open(segment.path, StandardOpenOption.READ);
+                channels.put(segment.base, channel);
+            }
+            header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(channel, header, offset);
+            int bodyLength = header.getInt(0);
+            if (bodyLength < RECORD_FIXED_BODY_SIZE || offset + RECORD_HEADER_SIZE + bodyLength > segment.size) return null;
+            body = ByteBuffer.allocate(bodyLength);
+            readFully(channel, body, offset + RECORD_HEADER_SIZE);
+        }
+        if (header.getInt(Integer.BYTES) != checksum(body, 0, body.limit())) return null;
+        return body;
+    }
+
+    private static Entry decodeEntry(long position, ByteBuffer body) {
+        body.position(RECORD_FIXED_BODY_SIZE);
+        String room = readString(body);
+        return new Entry(position, room, body.getLong(0), decodeMessage(body));
+    }
+
+    private static ChatMessage decodeMessage(ByteBuffer body) {
+        boolean isSelf = body.get(Long.BYTES * 2) != 0;
+        body.position(RECORD_FIXED_BODY_SIZE);
+        readString(body); // Room
+        String author = readString(body);
+        String ip = readString(body);
+        String text = readString(body);
+        String timestamp = readString(body);
+        return ChatMessage.restored(author, ip, text, timestamp, isSelf);
+    }
+
+    private static String readString(ByteBuffer body) {
+        int length = body.getInt();
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String value) {
+        return (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        crc.reset();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    private void writeIndex(Segment segment) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeLong(segment.size);
+        out.writeLong(segment.lastTimestamp);
+        out.writeInt(segment.roomHeads.size());
+        for (Map.Entry<String, Long> head : segment.roomHeads.entrySet()) {
+            out.writeUTF(head.getKey());
+            out.writeLong(head.getValue());
+        }
+        out.writeInt(segment.indexCount);
+        for (int i = 0; i < segment.indexCount; i++) {
+            out.writeLong(segment.indexTimestamps[i]);
+            out.writeInt(segment.indexOffsets[i]);
+        }
+        crc.reset();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        // Written aside and moved into place, so an index file is either complete or absent
+        Path temporary = directory.resolve(segment.path.getFileName() + ".tmp");
+        Files.write(temporary, bytes.toByteArray());
+        Files.move(temporary, indexPath(segment.base), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a sealed segment's description from its index file.
+     *
+     * @return false if the index is missing or does not match the segment, in which case the segment must be scanned.
+     */
+    private boolean loadIndex(Segment segment) {
+        Path path = indexPath(segment.base);
+        if (!Files.exists(path)) return false;
+        if (readIndex(segment, path)) return true;
+        System.err.println("MessageJournal: Rebuilding index " + path);
+        segment.size = 0;
+        segment.lastTimestamp = Long.MIN_VALUE;
+        segment.roomHeads.clear();
+        segment.indexCount = 0;
+        return false;
+    }
+
+    private boolean readIndex(Segment segment, Path path) {
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            if (bytes.length < Integer.BYTES) return false;
+            crc.reset();
+            crc.update(bytes, 0, bytes.length - Integer.BYTES);
+            if ((int) crc.getValue() != ByteBuffer.wrap(bytes).getInt(bytes.length - Integer.BYTES)) return false;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) return false;
+            segment.size = in.readLong();
+            if (segment.size > Files.size(segment.path)) return false;
+            segment.lastTimestamp = in.readLong();
+            int roomCount = in.readInt();
+            for (int i = 0; i < roomCount; i++) {
+                segment.roomHeads.put(in.readUTF(), in.readLong());
+            }
+            int indexCount = in.readInt();
+            for (int i = 0; i < indexCount; i++) {
+                segment.addIndexEntry(in.readLong(), in.readInt());
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    private Path indexPath(long base) {
+        return directory.resolve(String.format("%020d", base) + INDEX_SUFFIX);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of journal segment");
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static void closeAll(Map<Long, FileChannel> channels) {
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
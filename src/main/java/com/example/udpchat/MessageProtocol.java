@@ -3,13 +3,34 @@ package com.example.udpchat;
 
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
- * Defines the simple text-based protocol for encoding and decoding messages.
- * Format: TYPE|key1=value1|key2=value2|encoded_payload
+ * Defines the protocol for encoding and decoding messages.
+ * Two wire formats are supported and auto-detected on decode:
+ * <ul>
+ *     <li>Text: {@code TYPE|key1=value1|key2=value2|encoded_payload}</li>
+ *     <li>Binary: {@code MAGIC VERSION TYPE FLAGS ts[8] id[16] headerCount headers* payload}, where every
+ *     header is a varint-length key followed by a varint-length value and the payload is raw UTF-8 up to
+ *     the end of the datagram.</li>
+ * </ul>
+ * Encoded messages larger than {@link #MAX_UNFRAGMENTED_SIZE} are split into fragment datagrams:
+ * {@code MAGIC VERSION FRAGMENT 0 messageKey[8] totalLength[4] index[2] count[2] chunk}.
+ * A binary payload may be compressed ({@link #FLAG_COMPRESSED}); it is then sent as a varint
+ * uncompressed length followed by raw deflate data built with a preset dictionary.
  */
 public class MessageProtocol {
 
@@ -18,9 +39,122 @@ public class MessageProtocol {
     public static final String CMD_ANNOUNCE_PRESENCE     = "PEER_ANNOUNCE";
     public static final String CMD_GROUP_HOST_ADD_BAN    = "GROUP_BAN_ADD";
     public static final String CMD_GROUP_HOST_REMOVE_BAN = "GROUP_BAN_REMOVE";
+    public static final String CMD_NACK                  = "NACK";
+    public static final String CMD_FRAGMENT              = "FRAGMENT";
+    public static final String CMD_PEER_SYNC_REQUEST     = "PEER_SYNC_REQUEST";
+    public static final String CMD_PEER_SYNC_RESPONSE    = "PEER_SYNC";
+    public static final String CMD_SWIM_PING             = "SWIM_PING";
+    public static final String CMD_SWIM_PING_REQ         = "SWIM_PING_REQ";
+    public static final String CMD_SWIM_ACK              = "SWIM_ACK";
+    public static final String CMD_GROUP_BAN_SYNC_REQUEST = "GROUP_BAN_SYNC_REQUEST";
+    public static final String CMD_GROUP_BAN_SYNC        = "GROUP_BAN_SYNC";
 
     /**
-     * Encodes a message into a byte array according to the protocol.
+     * The encodings a message can be sent with. Every receiver accepts text.
+     */
+    public enum WireFormat {
+        TEXT,
+        /**
+         * Only peers that announce {@link #CAPABILITY_BINARY} can read it.
+         */
+        BINARY,
+        /**
+         * Binary, with payloads above {@link #COMPRESSION_THRESHOLD} compressed. Only peers that announce
+         * {@link #CAPABILITY_COMPRESSION} can read such payloads.
+         */
+        BINARY_COMPRESSED
+    }
+
+    // --- Capability Negotiation ---
+    public static final String HEADER_CAPABILITIES = "caps";
+    public static final String CAPABILITY_BINARY = "bin1";
+    public static final String CAPABILITY_COMPRESSION = "deflate1";
+    public static final String CAPABILITY_SWIM = "swim1";
+
+    // --- Binary Format Constants ---
+    static final byte BINARY_MAGIC = (byte) 0xC7;
+    static final byte BINARY_VERSION = 1;
+    static final int BINARY_TYPE_OFFSET = 2;
+    static final int BINARY_FLAGS_OFFSET = 3;
+    static final int BINARY_TS_OFFSET = 4;
+    static final int BINARY_ID_OFFSET = 12;
+    static final int BINARY_ID_LENGTH = 16;
+    static final int BINARY_FIXED_LENGTH = BINARY_ID_OFFSET + BINARY_ID_LENGTH;
+
+    static final int FLAG_HAS_TS = 1;
+    static final int FLAG_HAS_ID = 1 << 1;
+    static final int FLAG_COMPRESSED = 1 << 2;
+
+    /**
+     * Known message types, indexed by their binary ordinal. Ordinal 0 is reserved, new types
+     * must only ever be appended so that older peers keep understanding the existing ones.
+     */
+    static final String[] BINARY_TYPES = {
+            null,
+            CMD_POST_USER_MESSAGE,
+            CMD_ANNOUNCE_PRESENCE,
+            CMD_GROUP_HOST_ADD_BAN,
+            CMD_GROUP_HOST_REMOVE_BAN,
+            CMD_NACK,
+            CMD_FRAGMENT,
+            CMD_PEER_SYNC_REQUEST,
+            CMD_PEER_SYNC_RESPONSE,
+            CMD_SWIM_PING,
+            CMD_SWIM_PING_REQ,
+            CMD_SWIM_ACK,
+            CMD_GROUP_BAN_SYNC_REQUEST,
+            CMD_GROUP_BAN_SYNC
+    };
+
+    // --- Fragmentation Constants ---
+    public static final int MAX_UNFRAGMENTED_SIZE = 1400;
+    public static final int FRAGMENT_HEADER_LENGTH = 20;
+    public static final int FRAGMENT_CHUNK_SIZE = 1200;
+    public static final int MAX_FRAGMENTED_MESSAGE_SIZE = 1 << 20;
+    static final int FRAGMENT_ORDINAL = 6;
+    static final int FRAGMENT_KEY_OFFSET = 4;
+    static final int FRAGMENT_TOTAL_LENGTH_OFFSET = 12;
+    static final int FRAGMENT_INDEX_OFFSET = 16;
+    static final int FRAGMENT_COUNT_OFFSET = 18;
+
+    // --- Compression Constants ---
+    public static final int COMPRESSION_THRESHOLD = 160;
+    private static final int MAX_DECOMPRESSED_SIZE = MAX_FRAGMENTED_MESSAGE_SIZE;
+    // Deflate cannot expand more than this: a 258-byte match takes at least two bits, plus block overhead
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    private static final int MIN_INFLATE_BUFFER_SIZE = 256;
+    /**
+     * Seeds the compressor with text that chat payloads typically share, so even short messages
+     * find back-references. Changing it breaks compatibility and requires a new capability name.
+     */
+    private static final byte[] COMPRESSION_DICTIONARY = String.join("",
+            "Exception in thread \"main\" java.lang.NullPointerException: Cannot invoke ",
+            "java.lang.IllegalStateException java.lang.IllegalArgumentException java.io.IOException ",
+            "\n\tat java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:",
+            "\n\tat java.base/java.lang.Thread.run(Thread.java:",
+            "\n\tat javafx.graphics/com.sun.javafx.application.PlatformImpl.lambda$runLater$",
+            "\n\t... more\nCaused by: ",
+            "ERROR WARN INFO DEBUG TRACE [main] [pool-1-thread-1] ",
+            "https://www. http://localhost:8080/ .com/ .org/ ",
+            "Traceback (most recent call last):\n  File \"", "\", line ",
+            "SELECT * FROM WHERE null true false undefined ",
+            " the and that this with for you are have not what can will just was but ",
+            "Hello, hi, thanks! yes, no, ok, please"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    // Malformed datagrams are counted; at most one per interval is logged, so garbage traffic cannot flood the log
+    private static final long MALFORMED_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final LongAdder MALFORMED_COUNT = new LongAdder();
+    private static final AtomicLong nextMalformedLogNanos = new AtomicLong(System.nanoTime());
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+    // Replaces unencodable characters as String.getBytes does
+    private static final ThreadLocal<CharsetEncoder> UTF8_ENCODERS = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    /**
+     * Encodes a message into a byte array using the text format.
      *
      * @param type    The message type (e.g., "CHAT").
      * @param headers A map of key-value pairs for message metadata.
@@ -28,6 +162,10 @@ public class MessageProtocol {
      * @return A byte array ready for network transmission.
      */
     public static byte[] encode(String type, Map<String, String> headers, String payload) {
+        return encodeText(type, headers, payload).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String encodeText(String type, Map<String, String> headers, String payload) {
         StringBuilder sb = new StringBuilder();
         sb.append(type);
         if (headers != null) {
@@ -38,58 +176,602 @@ public class MessageProtocol {
         if (payload != null && !payload.isEmpty()) {
             sb.append('|').append(urlEncode(payload));
         }
-        return sb.toString().getBytes(StandardCharsets.UTF_8);
+        return sb.toString();
+    }
+
+    /**
+     * Encodes a message into a byte array using the requested wire format.
+     * Types without a binary ordinal are always sent as text.
+     *
+     * @param format  The wire format to use.
+     * @param type    The message type.
+     * @param headers A map of key-value pairs for message metadata.
+     * @param payload The main content of the message.
+     * @return A byte array ready for network transmission.
+     */
+    public static byte[] encode(WireFormat format, String type, Map<String, String> headers, String payload) {
+        if (format == WireFormat.BINARY || format == WireFormat.BINARY_COMPRESSED) {
+            int ordinal = binaryOrdinalOf(type);
+            if (ordinal > 0) {
+                return encodeBinary(ordinal, headers, payload, format == WireFormat.BINARY_COMPRESSED);
+            }
+        }
+        return encode(type, headers, payload);
+    }
+
+    /**
+     * Encodes a message directly into a buffer, e.g. the direct buffer it is sent from, replacing the
+     * buffer's contents. On success the buffer is flipped, ready to be sent.
+     *
+     * @return false if the encoded message does not fit; the buffer's contents are then undefined.
+     */
+    public static boolean encode(WireFormat format, String type, Map<String, String> headers, String payload, ByteBuffer out) {
+        out.clear();
+        int ordinal = (format == WireFormat.BINARY || format == WireFormat.BINARY_COMPRESSED) ? binaryOrdinalOf(type) : 0;
+        try {
+            if (ordinal > 0) {
+                byte[] payloadBytes = (payload == null) ? new byte[0] : payload.getBytes(StandardCharsets.UTF_8);
+                if (!writeBinary(out, ordinal, headers, payloadBytes, format == WireFormat.BINARY_COMPRESSED)) return false;
+            } else {
+                CharsetEncoder encoder = UTF8_ENCODERS.get().reset();
+                if (encoder.encode(CharBuffer.wrap(encodeText(type, headers, payload)), out, true).isOverflow()
+                        || encoder.flush(out).isOverflow()) {
+                    return false;
+                }
+            }
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+        out.flip();
+        return true;
     }
 
     /**
      * Decodes a byte array from the network into a structured message object.
+     * The wire format is detected from the first byte. The returned message owns a private
+     * copy of the data, so it may be retained freely.
      *
      * @param data   The raw byte data received.
      * @param length The actual length of the data in the buffer.
      * @return A DecodedMessage object, or null if parsing fails.
      */
     public static DecodedMessage decode(byte[] data, int length) {
-        try {
-            String fullMessage = new String(data, 0, length, StandardCharsets.UTF_8);
-            String[] parts = fullMessage.split("\\|");
-            if (parts.length == 0) return null;
-
-            String type = parts[0];
-            Map<String, String> headers = new HashMap<>();
-            String payload = "";
-
-            for (int i = 1; i < parts.length; i++) {
-                String part = parts[i];
-                int separatorIndex = part.indexOf('=');
-                if (separatorIndex > 0) { // This is a header
-                    String key = part.substring(0, separatorIndex);
-                    String value = urlDecode(part.substring(separatorIndex + 1));
-                    headers.put(key, value);
-                } else { // This is the payload
-                    payload = urlDecode(part);
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        DecodedMessage message = new DecodedMessage();
+        return message.wrap(ByteBuffer.wrap(copy), 0, length) ? message : null;
+    }
+
+    /**
+     * A reusable, view-style parsed message. {@link #wrap} only records the offsets of the type,
+     * headers and payload inside the underlying buffer; strings are materialized lazily and
+     * cached when a field is actually requested. A wrapped view is only valid while the buffer
+     * content is unchanged, so receivers must {@link #copy()} it before handing it to another thread.
+     */
+    public static class DecodedMessage {
+        private static final int MAX_HEADERS = 32;
+
+        private ByteBuffer buffer;
+        private int base;
+        private int limit;
+        private boolean binary;
+        private int flags;
+        private String type;
+        private int headerCount;
+        private final int[] keyStart = new int[MAX_HEADERS];
+        private final int[] keyEnd = new int[MAX_HEADERS];
+        private final int[] valueStart = new int[MAX_HEADERS];
+        private final int[] valueEnd = new int[MAX_HEADERS];
+        private final String[] valueCache = new String[MAX_HEADERS];
+        private int payloadStart;
+        private int payloadEnd;
+        private String payload;
+        private String cachedId;
+        private String cachedTs;
+
+        /**
+         * Parses the message located at {@code [offset, offset + length)} of the buffer in place.
+         *
+         * @return true if the datagram is a well-formed message.
+         */
+        public boolean wrap(ByteBuffer buffer, int offset, int length) {
+            reset(buffer);
+            if (length <= 0) return false;
+            this.base = offset;
+            this.limit = offset + length;
+            try {
+                boolean parsed = buffer.get(offset) == BINARY_MAGIC
+                        ? parseBinary(offset, offset + length)
+                        : parseText(offset, offset + length);
+                if (!parsed) reportMalformed("Dropped malformed message of " + length + " bytes");
+                return parsed;
+            } catch (RuntimeException e) {
+                reportMalformed("Failed to decode message protocol: " + e);
+                return false;
+            }
+        }
+
+        public String type() {
+            return type;
+        }
+
+        /**
+         * Returns the value of a header, or null if the message does not carry it.
+         */
+        public String header(String key) {
+            if (binary) {
+                if ((flags & FLAG_HAS_ID) != 0 && "id".equals(key)) {
+                    if (cachedId == null) cachedId = MessageIds.readBinary(buffer, base + BINARY_ID_OFFSET);
+                    return cachedId;
+                }
+                if ((flags & FLAG_HAS_TS) != 0 && "ts".equals(key)) {
+                    if (cachedTs == null) cachedTs = Long.toString(buffer.getLong(base + BINARY_TS_OFFSET));
+                    return cachedTs;
+                }
+            }
+            int index = indexOfHeader(key);
+            if (index < 0) return null;
+            if (valueCache[index] == null) {
+                String raw = readUtf8(valueStart[index], valueEnd[index]);
+                valueCache[index] = binary ? raw : urlDecode(raw);
+            }
+            return valueCache[index];
+        }
+
+        /**
+         * Compares a header with an ASCII value without materializing it. Intended for values
+         * that never need URL-escaping, such as addresses and numbers.
+         */
+        public boolean headerEquals(String key, String expected) {
+            int index = indexOfHeader(key);
+            return index >= 0 && asciiEquals(expected, valueStart[index], valueEnd[index]);
+        }
+
+        public String payload() {
+            if (payload == null) {
+                if ((flags & FLAG_COMPRESSED) != 0) {
+                    payload = inflatePayload();
+                } else {
+                    String raw = readUtf8(payloadStart, payloadEnd);
+                    payload = binary ? raw : urlDecode(raw);
+                }
+            }
+            return payload;
+        }
+
+        /**
+         * Returns a 64-bit hash of the message id without materializing it, or 0 if there is no id.
+         */
+        public long idHash() {
+            if (binary && (flags & FLAG_HAS_ID) != 0) {
+                return MessageIds.hashBinary(buffer, base + BINARY_ID_OFFSET);
+            }
+            int index = indexOfHeader("id");
+            if (index < 0 || valueStart[index] == valueEnd[index]) return 0;
+            return MessageIds.hashText(buffer, valueStart[index], valueEnd[index]);
+        }
+
+        /**
+         * Returns true if the message carries a compact id, whose parts can then be read
+         * with {@link #idNode()}, {@link #idEpoch()} and {@link #idSequence()}.
+         */
+        public boolean hasCompactId() {
+            return compactIdOffset() >= 0;
+        }
+
+        /**
+         * Returns the sender node id of a compact message id.
+         */
+        public long idNode() {
+            int offset = compactIdOffset();
+            if (offset < 0) return 0;
+            return binary ? buffer.getLong(offset) : MessageIds.parseHex(buffer, offset, offset + 16);
+        }
+
+        /**
+         * Returns the sender start epoch of a compact message id.
+         */
+        public int idEpoch() {
+            return (int) (idTail() >>> 32);
+        }
+
+        /**
+         * Returns the per-sender sequence number of a compact message id.
+         */
+        public int idSequence() {
+            return (int) idTail();
+        }
+
+        private long idTail() {
+            int offset = compactIdOffset();
+            if (offset < 0) return 0;
+            return binary ? buffer.getLong(offset + 8) : MessageIds.parseHex(buffer, offset + 16, offset + MessageIds.TEXT_LENGTH);
+        }
+
+        private int compactIdOffset() {
+            if (binary) {
+                return (flags & FLAG_HAS_ID) != 0 ? base + BINARY_ID_OFFSET : -1;
+            }
+            int index = indexOfHeader("id");
+            return (index >= 0 && MessageIds.isCompactText(buffer, valueStart[index], valueEnd[index])) ? valueStart[index] : -1;
+        }
+
+        /**
+         * Returns a detached copy that no longer references the receive buffer.
+         */
+        public DecodedMessage copy() {
+            byte[] bytes = new byte[limit];
+            buffer.get(0, bytes, 0, limit);
+            DecodedMessage detached = new DecodedMessage();
+            detached.reset(ByteBuffer.wrap(bytes));
+            detached.base = base;
+            detached.limit = limit;
+            detached.binary = binary;
+            detached.flags = flags;
+            detached.type = type;
+            detached.headerCount = headerCount;
+            System.arraycopy(keyStart, 0, detached.keyStart, 0, headerCount);
+            System.arraycopy(keyEnd, 0, detached.keyEnd, 0, headerCount);
+            System.arraycopy(valueStart, 0, detached.valueStart, 0, headerCount);
+            System.arraycopy(valueEnd, 0, detached.valueEnd, 0, headerCount);
+            System.arraycopy(valueCache, 0, detached.valueCache, 0, headerCount);
+            detached.payloadStart = payloadStart;
+            detached.payloadEnd = payloadEnd;
+            detached.payload = payload;
+            detached.cachedId = cachedId;
+            detached.cachedTs = cachedTs;
+            return detached;
+        }
+
+        private void reset(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.base = 0;
+            this.limit = 0;
+            this.binary = false;
+            this.flags = 0;
+            this.type = null;
+            Arrays.fill(valueCache, 0, headerCount, null);
+            this.headerCount = 0;
+            this.payloadStart = 0;
+            this.payloadEnd = 0;
+            this.payload = null;
+            this.cachedId = null;
+            this.cachedTs = null;
+        }
+
+        private boolean parseBinary(int start, int end) {
+            if (end - start < BINARY_FIXED_LENGTH + 1) return false;
+            if (buffer.get(start + 1) != BINARY_VERSION) return false;
+            int ordinal = buffer.get(start + BINARY_TYPE_OFFSET) & 0xFF;
+            if (ordinal == 0 || ordinal == FRAGMENT_ORDINAL || ordinal >= BINARY_TYPES.length) return false;
+            binary = true;
+            type = BINARY_TYPES[ordinal];
+            flags = buffer.get(start + BINARY_FLAGS_OFFSET);
+
+            int pos = start + BINARY_FIXED_LENGTH;
+            long countAndPos = readVarint(pos, end);
+            int count = (int) (countAndPos >>> 32);
+            pos = (int) countAndPos;
+            for (int i = 0; i < count; i++) {
+                long keyLen = readVarint(pos, end);
+                pos = (int) keyLen;
+                int keyEndPos = pos + (int) (keyLen >>> 32);
+                if (keyEndPos > end) return false;
+                long valueLen = readVarint(keyEndPos, end);
+                int valuePos = (int) valueLen;
+                int valueEndPos = valuePos + (int) (valueLen >>> 32);
+                if (valueEndPos > end) return false;
+                if (headerCount < MAX_HEADERS) {
+                    keyStart[headerCount] = pos;
+                    keyEnd[headerCount] = keyEndPos;
+                    valueStart[headerCount] = valuePos;
+                    valueEnd[headerCount] = valueEndPos;
+                    headerCount++;
+                }
+                pos = valueEndPos;
+            }
+            payloadStart = pos;
+            payloadEnd = end;
+            if ((flags & FLAG_COMPRESSED) != 0) {
+                long sizeAndPos = readVarint(payloadStart, end);
+                long claimedSize = sizeAndPos >>> 32;
+                long compressedSize = end - (int) sizeAndPos;
+                if (claimedSize > MAX_DECOMPRESSED_SIZE || claimedSize > compressedSize * MAX_DEFLATE_RATIO) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Inflates the payload into a buffer that grows with the actual output, so a sender claiming a
+         * large size without sending the data for it cannot make us allocate that size.
+         */
+        private String inflatePayload() {
+            long sizeAndPos = readVarint(payloadStart, payloadEnd);
+            int claimedSize = (int) (sizeAndPos >>> 32);
+            int dataStart = (int) sizeAndPos;
+            int compressedSize = payloadEnd - dataStart;
+            byte[] out = new byte[(int) Math.min(claimedSize, Math.max(MIN_INFLATE_BUFFER_SIZE, compressedSize * 4L))];
+            int produced = 0;
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setDictionary(COMPRESSION_DICTIONARY);
+            inflater.setInput(buffer.slice(dataStart, compressedSize));
+            try {
+                while (!inflater.finished()) {
+                    if (produced == out.length) {
+                        if (out.length == claimedSize) throw new DataFormatException("more than " + claimedSize + " bytes");
+                        out = Arrays.copyOf(out, (int) Math.min(claimedSize, out.length * 2L));
+                    }
+                    int count = inflater.inflate(out, produced, out.length - produced);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("truncated after " + produced + " bytes");
+                    }
+                    produced += count;
                 }
+                if (produced != claimedSize) throw new DataFormatException("expected " + claimedSize + " bytes, got " + produced);
+            } catch (DataFormatException e) {
+                reportMalformed("Failed to decompress message payload: " + e.getMessage());
+                return "";
+            }
+            return new String(out, StandardCharsets.UTF_8);
+        }
+
+        private boolean parseText(int start, int end) {
+            int segmentStart = start;
+            int pos = start;
+            while (pos < end && buffer.get(pos) != '|') pos++;
+            type = knownTypeOrNull(start, pos);
+            if (type == null) {
+                if (pos == start) return false;
+                type = readUtf8(start, pos);
+            }
+            payloadStart = payloadEnd = start;
+            while (pos < end) {
+                segmentStart = ++pos;
+                int separator = -1;
+                while (pos < end && buffer.get(pos) != '|') {
+                    if (separator < 0 && buffer.get(pos) == '=') separator = pos;
+                    pos++;
+                }
+                if (separator > segmentStart) { // This is a header
+                    if (headerCount < MAX_HEADERS) {
+                        keyStart[headerCount] = segmentStart;
+                        keyEnd[headerCount] = separator;
+                        valueStart[headerCount] = separator + 1;
+                        valueEnd[headerCount] = pos;
+                        headerCount++;
+                    }
+                } else if (pos > segmentStart) { // This is the payload
+                    payloadStart = segmentStart;
+                    payloadEnd = pos;
+                }
+            }
+            return true;
+        }
+
+        private String knownTypeOrNull(int start, int end) {
+            for (int i = 1; i < BINARY_TYPES.length; i++) {
+                if (asciiEquals(BINARY_TYPES[i], start, end)) return BINARY_TYPES[i];
             }
-            return new DecodedMessage(type, headers, payload);
-        } catch (Exception e) {
-            System.err.println("Failed to decode message protocol.");
-            e.printStackTrace();
             return null;
         }
+
+        private int indexOfHeader(String key) {
+            for (int i = headerCount - 1; i >= 0; i--) { // last occurrence wins, as with a map
+                if (asciiEquals(key, keyStart[i], keyEnd[i])) return i;
+            }
+            return -1;
+        }
+
+        private boolean asciiEquals(String expected, int start, int end) {
+            if (expected.length() != end - start) return false;
+            for (int i = 0; i < expected.length(); i++) {
+                if (buffer.get(start + i) != (byte) expected.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private String readUtf8(int start, int end) {
+            if (start >= end) return "";
+            byte[] bytes = new byte[end - start];
+            buffer.get(start, bytes, 0, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads a varint at {@code pos}; returns the value in the high and the next position in the low 32 bits.
+         */
+        private long readVarint(int pos, int end) {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (pos >= end) throw new IllegalArgumentException("Truncated varint");
+                byte b = buffer.get(pos++);
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) throw new IllegalArgumentException("Varint out of range");
+                    return ((long) value << 32) | pos;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
     }
 
     /**
-     * Represents a successfully parsed message.
+     * Returns the number of received messages that failed to decode or decompress since startup.
      */
-    public static class DecodedMessage {
-        public final String type;
-        public final Map<String, String> headers;
-        public final String payload;
+    public static long getMalformedCount() {
+        return MALFORMED_COUNT.sum();
+    }
+
+    private static void reportMalformed(String problem) {
+        MALFORMED_COUNT.increment();
+        long now = System.nanoTime();
+        long next = nextMalformedLogNanos.get();
+        if (now - next >= 0 && nextMalformedLogNanos.compareAndSet(next, now + MALFORMED_LOG_INTERVAL_NANOS)) {
+            System.err.println(problem + " (" + MALFORMED_COUNT.sum() + " malformed messages so far)");
+        }
+    }
+
+    /**
+     * Returns the number of fragments needed for an encoded message, or 1 if it fits in one datagram.
+     */
+    public static int fragmentCount(int encodedLength) {
+        if (encodedLength <= MAX_UNFRAGMENTED_SIZE) return 1;
+        return (encodedLength + FRAGMENT_CHUNK_SIZE - 1) / FRAGMENT_CHUNK_SIZE;
+    }
+
+    /**
+     * Writes one fragment of an encoded message into the buffer, leaving it flipped and ready to send.
+     *
+     * @param encoded The encoded message, from index 0 to its limit. Its position is not changed.
+     */
+    public static void writeFragment(ByteBuffer out, long messageKey, ByteBuffer encoded, int index, int count) {
+        int chunkStart = index * FRAGMENT_CHUNK_SIZE;
+        int chunkLength = Math.min(FRAGMENT_CHUNK_SIZE, encoded.limit() - chunkStart);
+        out.clear();
+        out.put(BINARY_MAGIC).put(BINARY_VERSION).put((byte) FRAGMENT_ORDINAL).put((byte) 0);
+        out.putLong(messageKey);
+        out.putInt(encoded.limit());
+        out.putShort((short) index);
+        out.putShort((short) count);
+        out.put(encoded.slice(chunkStart, chunkLength));
+        out.flip();
+    }
+
+    /**
+     * Returns true if the datagram in the buffer is a fragment rather than a complete message.
+     */
+    public static boolean isFragment(ByteBuffer buffer, int length) {
+        return length > FRAGMENT_HEADER_LENGTH
+                && buffer.get(0) == BINARY_MAGIC
+                && buffer.get(1) == BINARY_VERSION
+                && (buffer.get(BINARY_TYPE_OFFSET) & 0xFF) == FRAGMENT_ORDINAL;
+    }
+
+    static int binaryOrdinalOf(String type) {
+        for (int i = 1; i < BINARY_TYPES.length; i++) {
+            if (BINARY_TYPES[i].equals(type)) return i;
+        }
+        return 0;
+    }
+
+    private static byte[] encodeBinary(int ordinal, Map<String, String> headers, String payload, boolean compress) {
+        byte[] payloadBytes = (payload == null) ? new byte[0] : payload.getBytes(StandardCharsets.UTF_8);
+        int headerBudget = 0;
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                // Worst case: 4 UTF-8 bytes per char plus two 5-byte varints
+                headerBudget += 10 + 4 * (entry.getKey().length() + (entry.getValue() == null ? 0 : entry.getValue().length()));
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(BINARY_FIXED_LENGTH + 5 + headerBudget + payloadBytes.length);
+        writeBinary(out, ordinal, headers, payloadBytes, compress);
+
+        byte[] result = new byte[out.position()];
+        System.arraycopy(out.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Writes a binary message at the start of a buffer, leaving the position after it.
+     * The payload is compressed in place if that is requested and makes it smaller.
+     *
+     * @return false if the payload does not fit.
+     * @throws BufferOverflowException If the headers do not fit.
+     */
+    private static boolean writeBinary(ByteBuffer out, int ordinal, Map<String, String> headers, byte[] payloadBytes, boolean compress) {
+        out.put(BINARY_MAGIC).put(BINARY_VERSION).put((byte) ordinal).put((byte) 0);
+        // The buffer may be reused; absent fields must read as zero
+        for (int i = BINARY_TS_OFFSET; i < BINARY_FIXED_LENGTH; i++) out.put(i, (byte) 0);
+
+        int flags = 0;
+        String id = headers == null ? null : headers.get("id");
+        String ts = headers == null ? null : headers.get("ts");
+        long timestamp = parseLongOrMin(ts);
+        if (timestamp != Long.MIN_VALUE) {
+            out.putLong(BINARY_TS_OFFSET, timestamp);
+            flags |= FLAG_HAS_TS;
+        }
+        if (id != null && MessageIds.writeBinary(id, out, BINARY_ID_OFFSET)) {
+            flags |= FLAG_HAS_ID;
+        }
+        out.position(BINARY_FIXED_LENGTH);
+
+        int headerCount = 0;
+        if (headers != null) {
+            for (String key : headers.keySet()) {
+                if (!isPackedHeader(key, flags)) headerCount++;
+            }
+        }
+        putVarint(out, headerCount);
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (isPackedHeader(entry.getKey(), flags)) continue;
+                putLengthPrefixed(out, entry.getKey().getBytes(StandardCharsets.UTF_8));
+                putLengthPrefixed(out, entry.getValue() == null ? new byte[0] : entry.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (compress && payloadBytes.length >= COMPRESSION_THRESHOLD && compressPayload(out, payloadBytes)) {
+            flags |= FLAG_COMPRESSED;
+        } else if (payloadBytes.length <= out.remaining()) {
+            out.put(payloadBytes);
+        } else {
+            return false;
+        }
+        out.put(BINARY_FLAGS_OFFSET, (byte) flags);
+        return true;
+    }
 
-        public DecodedMessage(String type, Map<String, String> headers, String payload) {
-            this.type = type;
-            this.headers = headers;
-            this.payload = payload;
+    /**
+     * Writes a payload as {@code varint(length) deflate(payload)}.
+     *
+     * @return false, leaving the buffer unchanged, if the compressed form would not be smaller than the
+     * original or does not fit.
+     */
+    private static boolean compressPayload(ByteBuffer out, byte[] payload) {
+        int start = out.position();
+        int end = start + Math.min(out.remaining(), payload.length);
+        if (end - start <= 5) return false;
+        putVarint(out, payload.length);
+        ByteBuffer target = out.slice(out.position(), end - out.position());
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(COMPRESSION_DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+        deflater.deflate(target);
+        if (!deflater.finished()) { // Output space full: not worth compressing, or too large
+            out.position(start);
+            return false;
         }
+        out.position(out.position() + target.position());
+        return true;
+    }
+
+    private static boolean isPackedHeader(String key, int flags) {
+        return ("ts".equals(key) && (flags & FLAG_HAS_TS) != 0) || ("id".equals(key) && (flags & FLAG_HAS_ID) != 0);
+    }
+
+    private static long parseLongOrMin(String value) {
+        if (value == null || value.isBlank()) return Long.MIN_VALUE;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static void putLengthPrefixed(ByteBuffer out, byte[] bytes) {
+        putVarint(out, bytes.length);
+        out.put(bytes);
     }
 
     private static String urlEncode(String value) {
@@ -101,4 +783,4 @@ public class MessageProtocol {
         if (value == null) return "";
         return URLDecoder.decode(value, StandardCharsets.UTF_8);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,302 @@
+// MessageSearchIndex.java
+package com.example.udpchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * An incremental inverted index over chat messages for full-text search.
+ * <p>
+ * Every added message becomes a document with a sequential id. Its words, and its author, IP and room
+ * as {@code from:}, {@code ip:} and {@code room:} terms, are mapped to posting lists of document ids.
+ * A posting list is a byte array of varint-encoded gaps between ascending ids, so a term that occurs
+ * in a message costs one or two bytes. Per document only the caller's locator (e.g. a journal
+ * position) and the time are kept, in primitive arrays; the messages themselves are not stored.
+ * <p>
+ * Every query term matches all terms starting with it, and a message matches if it matches every
+ * query term. Results are the newest matches by message time, whatever order the messages were
+ * added in, e.g. when old messages are indexed in the background while new ones arrive.
+ * <p>
+ * Messages whose locators are no longer valid, e.g. because their journal segment was deleted, are
+ * removed with {@link #removeBefore}. They are first only marked as removed; once they are the
+ * majority the index is compacted, renumbering the remaining documents and re-encoding every
+ * posting list without them, so memory follows the number of live documents at amortized
+ * constant cost per removal.
+ * This class is thread-safe.
+ */
+public class MessageSearchIndex {
+
+    /**
+     * A search result: the locator and time the message was added with.
+     */
+    public record Hit(long locator, long timestampMillis) {
+    }
+
+    public static final String AUTHOR_PREFIX = "from:";
+    public static final String IP_PREFIX = "ip:";
+    public static final String ROOM_PREFIX = "room:";
+
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MIN_COMPACTION_DOCUMENTS = 1024;
+    // Starts the keys of field terms; words never contain it, so a word prefix cannot match a field term
+    private static final String FIELD_MARK = "\u0000";
+
+    /**
+     * The ids of the documents containing a term, as varint-encoded gaps.
+     */
+    private static final class Postings {
+        byte[] data = new byte[4];
+        int length = 0;
+        int lastDocument = -1;
+
+        void add(int document) {
+            if (document == lastDocument) return; // Term repeated within one message
+            int gap = document - lastDocument;
+            lastDocument = document;
+            if (length + 5 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+        }
+
+        void addTo(BitSet documents) {
+            forEach(documents::set);
+        }
+
+        void forEach(IntConsumer action) {
+            int document = -1;
+            int gap = 0;
+            int shift = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = data[i];
+                gap |= (b & 0x7F) << shift;
+                if (b < 0) {
+                    shift += 7;
+                } else {
+                    document += gap;
+                    action.accept(document);
+                    gap = 0;
+                    shift = 0;
+                }
+            }
+        }
+    }
+
+    // Sorted, so all terms with a prefix form one contiguous range
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private long[] locators = new long[1024];
+    private long[] timestamps = new long[1024];
+    private int documentCount = 0;
+    private final BitSet removed = new BitSet();
+    private int removedCount = 0;
+    private long postingBytes = 0;
+
+    /**
+     * Adds a message to the index.
+     *
+     * @param locator   Returned in the hits for this message, e.g. its journal position.
+     * @param room      The room the message was posted in.
+     * @param timestamp The time of the message, used for time-range filtering.
+     */
+    public synchronized void add(long locator, String room, ChatMessage message, long timestamp) {
+        int document = documentCount;
+        if (document == locators.length) {
+            locators = Arrays.copyOf(locators, document * 2);
+            timestamps = Arrays.copyOf(timestamps, document * 2);
+        }
+        locators[document] = locator;
+        timestamps[document] = timestamp;
+        documentCount++;
+
+        for (String token : tokenize(message.text())) {
+            addTerm(token, document);
+        }
+        addTerm(FIELD_MARK + AUTHOR_PREFIX + normalize(message.author()), document);
+        addTerm(FIELD_MARK + IP_PREFIX + normalize(message.ip()), document);
+        addTerm(FIELD_MARK + ROOM_PREFIX + normalize(room), document);
+    }
+
+    /**
+     * Removes the messages added with a locator below the given one, e.g. the start of the journal
+     * after old segments were deleted.
+     *
+     * @return The number of messages removed.
+     */
+    public synchronized int removeBefore(long locator) {
+        int count = 0;
+        for (int document = removed.nextClearBit(0); document < documentCount; document = removed.nextClearBit(document + 1)) {
+            if (locators[document] < locator) {
+                removed.set(document);
+                count++;
+            }
+        }
+        removedCount += count;
+        if (removedCount >= MIN_COMPACTION_DOCUMENTS && removedCount * 2 > documentCount) compact();
+        return count;
+    }
+
+    /**
+     * Renumbers the live documents consecutively and rewrites every posting list without the removed ones.
+     */
+    private void compact() {
+        int[] newIds = new int[documentCount];
+        int liveCount = 0;
+        for (int document = 0; document < documentCount; document++) {
+            if (removed.get(document)) {
+                newIds[document] = -1;
+            } else {
+                locators[liveCount] = locators[document];
+                timestamps[liveCount] = timestamps[document];
+                newIds[document] = liveCount++;
+            }
+        }
+        int capacity = Math.max(1024, Integer.highestOneBit(Math.max(1, liveCount)) * 2);
+        locators = Arrays.copyOf(locators, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        documentCount = liveCount;
+        removed.clear();
+        removedCount = 0;
+
+        postingBytes = 0;
+        var entries = terms.entrySet().iterator();
+        while (entries.hasNext()) {
+            var entry = entries.next();
+            Postings compacted = new Postings();
+            entry.getValue().forEach(document -> {
+                int newId = newIds[document];
+                if (newId >= 0) compacted.add(newId);
+            });
+            if (compacted.length == 0) {
+                entries.remove();
+            } else {
+                compacted.data = Arrays.copyOf(compacted.data, compacted.length);
+                entry.setValue(compacted);
+                postingBytes += compacted.data.length;
+            }
+        }
+    }
+
+    /**
+     * Finds the newest messages matching every term of a query within a time range.
+     * Plain words match words of the text; {@code from:}, {@code ip:} and {@code room:} terms match
+     * the author, IP and room. Every term also matches longer terms that start with it.
+     *
+     * @param fromMillis The earliest message time to include.
+     * @param toMillis   The latest message time to include.
+     * @param limit      The maximum number of hits.
+     * @return The hits, newest first; empty if the query has no terms.
+     */
+    public synchronized List<Hit> search(String query, long fromMillis, long toMillis, int limit) {
+        List<Hit> hits = new ArrayList<>();
+        List<String> queryTerms = parseQuery(query);
+        if (queryTerms.isEmpty()) return hits;
+        BitSet matches = null;
+        for (String queryTerm : queryTerms) {
+            BitSet termMatches = new BitSet(documentCount);
+            for (Postings postings : terms.subMap(queryTerm, true, queryTerm + Character.MAX_VALUE, true).values()) {
+                postings.addTo(termMatches);
+            }
+            if (matches == null) {
+                matches = termMatches;
+                matches.andNot(removed);
+            } else {
+                matches.and(termMatches);
+            }
+            if (matches.isEmpty()) return hits;
+        }
+        if (limit <= 0) return hits;
+        // Document ids do not follow message time, so every match is considered; the oldest of the kept hits is on top
+        PriorityQueue<Hit> newest = new PriorityQueue<>(Comparator.comparingLong(Hit::timestampMillis));
+        for (int document = matches.nextSetBit(0); document >= 0; document = matches.nextSetBit(document + 1)) {
+            long timestamp = timestamps[document];
+            if (timestamp < fromMillis || timestamp > toMillis) continue;
+            if (newest.size() < limit) {
+                newest.add(new Hit(locators[document], timestamp));
+            } else if (timestamp > newest.peek().timestampMillis()) {
+                newest.poll();
+                newest.add(new Hit(locators[document], timestamp));
+            }
+        }
+        hits.addAll(newest);
+        hits.sort(Comparator.comparingLong(Hit::timestampMillis).reversed());
+        return hits;
+    }
+
+    public synchronized int getDocumentCount() {
+        return documentCount - removedCount;
+    }
+
+    public synchronized int getTermCount() {
+        return terms.size();
+    }
+
+    /**
+     * Returns the approximate number of bytes used by posting lists and per-document data.
+     */
+    public synchronized long getMemoryBytes() {
+        return postingBytes + (long) locators.length * Long.BYTES * 2;
+    }
+
+    private void addTerm(String term, int document) {
+        Postings postings = terms.get(term);
+        if (postings == null) {
+            postings = new Postings();
+            terms.put(term, postings);
+        }
+        int before = postings.data.length;
+        postings.add(document);
+        postingBytes += postings.data.length - before;
+    }
+
+    private static List<String> parseQuery(String query) {
+        List<String> queryTerms = new ArrayList<>();
+        if (query == null) return queryTerms;
+        for (String part : query.trim().split("\\s+")) {
+            String lower = part.toLowerCase(Locale.ROOT);
+            String fieldPrefix = null;
+            for (String prefix : new String[]{AUTHOR_PREFIX, IP_PREFIX, ROOM_PREFIX}) {
+                if (lower.startsWith(prefix) && lower.length() > prefix.length()) fieldPrefix = prefix;
+            }
+            if (fieldPrefix != null) {
+                queryTerms.add(FIELD_MARK + fieldPrefix + normalize(part.substring(fieldPrefix.length())));
+            } else {
+                queryTerms.addAll(tokenize(part));
+            }
+        }
+        return queryTerms;
+    }
+
+    /**
+     * Splits text into lowercase words of letters and digits. Each distinct word is returned once.
+     */
+    private static Set<String> tokenize(String text) {
+        Set<String> tokens = new HashSet<>();
+        if (text == null) return tokens;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(normalize(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH))));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+}
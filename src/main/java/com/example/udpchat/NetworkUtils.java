@@ -57,6 +57,37 @@ public class NetworkUtils {
         return interfaceList;
     }
 
+    /**
+     * Parses an IPv4 or IPv6 address literal received from the network. Anything else is rejected
+     * instead of being handed to {@link InetAddress#getByName}, which would resolve host names.
+     *
+     * @return The address, or null if the text is not an address literal.
+     */
+    public static InetAddress parseAddressLiteral(String text) {
+        if (text == null || text.isEmpty() || text.length() > 45) return null;
+        int dots = 0;
+        int colons = 0;
+        boolean hexLetters = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                dots++;
+            } else if (c == ':') {
+                colons++;
+            } else if ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) {
+                hexLetters = true;
+            } else if (c < '0' || c > '9') {
+                return null;
+            }
+        }
+        if (colons == 0 ? (dots != 3 || hexLetters) : colons < 2) return null;
+        try {
+            return InetAddress.getByName(text);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
     private static String convertPrefixLengthToNetmask(short prefixLength) {
         try {
             int netmaskInt = 0xFFFFFFFF << (32 - prefixLength);
@@ -1,6 +1,7 @@
 // PeerDiscoveryService.java
 package com.example.udpchat;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -10,24 +11,66 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 /**
  * A service that periodically sends and listens for HELLO messages
  * to discover other participants on the network.
+ * Announces are scheduled RTCP-style: the interval grows with the number of known peers so the
+ * whole segment stays within a discovery bandwidth budget, every delay is randomized to keep peers
+ * from synchronizing, announces are skipped while local chat traffic already proves liveness, and
+ * a short burst is sent on start and on join so new peers are learned quickly.
+ * <p>
+ * Every announce also carries a digest of the sender's membership view. A node whose view differs
+ * from a peer that knows at least as many members asks that peer for the difference, so a joining
+ * node learns the whole segment in one round trip instead of waiting for every peer's announce.
+ * The difference is sent unicast to the requester only.
+ * There is one view for the broadcast segment and one per joined multicast group, since members of
+ * one group need not be in another; a peer in several groups is tracked in each of them.
  */
 public class PeerDiscoveryService {
 
+    /**
+     * How multicast peers are detected as gone.
+     */
+    public enum MembershipMode {
+        /** A peer is offline once no message was heard from it for a few announce intervals. */
+        BEACON,
+        /** Peers that support it are monitored with {@link SwimMembership}; others fall back to beacons. */
+        SWIM
+    }
+
     public interface ModeSelector {
         boolean useBroadcast();
         boolean useMulticast();
-        InetAddress currentMulticastGroup();
+        List<InetAddress> currentMulticastGroups();
+
+        default MembershipMode membershipMode() {
+            return MembershipMode.BEACON;
+        }
+    }
+
+    /**
+     * Adds application state to outgoing announces, e.g. the version of a list peers should sync.
+     */
+    public interface AnnounceDecorator {
+        void decorateAnnounce(UdpTransport transport, InetAddress group, Map<String, String> headers);
     }
 
     public interface PeerListener {
         void onPeerStatusChanged(String ip, boolean isOnline);
+
+        /**
+         * Called when a peer's nickname is learned indirectly, from another peer's membership list.
+         */
+        default void onPeerNicknameLearned(String ip, String nickname) {
+        }
     }
 
     private final ScheduledExecutorService scheduler;
@@ -38,8 +81,97 @@ public class PeerDiscoveryService {
     private final PeerListener peerListener;
     private final ModeSelector modeSelector;
 
-    private final Map<String, Long> broadcastPeers = new ConcurrentHashMap<>();
-    private final Map<String, Long> multicastPeers = new ConcurrentHashMap<>();
+    private volatile ReliableDelivery reliableDelivery;
+    private volatile AnnounceDecorator announceDecorator;
+
+    /**
+     * A peer seen in one view. Activity only refreshes {@code lastSeenNanos}; the expiry
+     * wheel re-reads it when the peer's slot comes up.
+     */
+    private static final class Peer {
+        final View view;
+        final InetAddress address;
+        final String ip;
+        final long addressHash;
+        volatile long lastSeenNanos;
+        volatile boolean supportsBinary;
+        volatile boolean supportsCompression;
+        volatile boolean supportsSwim;
+        volatile String nickname;
+
+        Peer(View view, InetAddress address, long lastSeenNanos) {
+            this.view = view;
+            this.address = address;
+            this.ip = address.getHostAddress();
+            this.addressHash = addressHash(address);
+            this.lastSeenNanos = lastSeenNanos;
+        }
+    }
+
+    /**
+     * The peers of the broadcast segment or of one multicast group, with their membership digest.
+     */
+    private static final class View {
+        final UdpTransport transport;
+        final InetAddress group; // Null for the broadcast segment
+        final Map<InetAddress, Peer> peers = new ConcurrentHashMap<>();
+        // XOR of the address hashes of all peers
+        final AtomicLong digest = new AtomicLong();
+        volatile long lastSyncRequestNanos = Long.MIN_VALUE;
+
+        View(UdpTransport transport, InetAddress group) {
+            this.transport = transport;
+            this.group = group;
+        }
+    }
+
+    /**
+     * Announce bookkeeping for the broadcast segment or one multicast group.
+     */
+    private static final class AnnounceTarget {
+        volatile long lastChatNanos = Long.MIN_VALUE;
+        int suppressedInARow = 0;
+    }
+
+    private static final long EXPIRY_TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Bytes per second all members of a segment together may spend on announces
+    private static final double DISCOVERY_BANDWIDTH_BUDGET = 2_000;
+    private static final int MAX_ANNOUNCE_INTERVAL_MILLIS = 30_000;
+    private static final int MIN_PEER_TIMEOUT_MILLIS = 10_000;
+    // After this many skipped announces one is sent anyway, so new peers learn our nick and capabilities
+    private static final int MAX_SUPPRESSED_ANNOUNCES = 3;
+    private static final long[] JOIN_BURST_DELAYS_MILLIS = {0, 300, 900};
+    private static final int DATAGRAM_OVERHEAD_BYTES = 28; // IPv4 and UDP headers
+    private static final double SMOOTHING = 1.0 / 16;
+    private static final String HEADER_DIGEST = "mdig";
+    private static final String HEADER_SYNC_TARGET = "to";
+    private static final String HEADER_SYNC_HAVE = "have";
+    // Larger views are not listed in a sync request; the responder then sends its full view
+    private static final int MAX_LISTED_PEERS = 64;
+
+    private final AnnounceTarget broadcastTarget = new AnnounceTarget();
+    private final Map<InetAddress, AnnounceTarget> groupTargets = new ConcurrentHashMap<>();
+    private volatile long announceIntervalMillis;
+    private volatile long peerTimeoutNanos;
+    // Scheduler-thread state for the bandwidth estimate
+    private double averageAnnounceBytes = 0;
+    private volatile double discoveryBytesPerSecond = 0;
+    private long lastRateUpdateNanos;
+    private long sentSinceRateUpdate = 0;
+    private final AtomicLong announcesSent = new AtomicLong();
+    private final AtomicLong announcesSuppressed = new AtomicLong();
+
+    private final View broadcastView = new View(UdpTransport.BROADCAST, null);
+    private final Map<InetAddress, View> groupViews = new ConcurrentHashMap<>();
+    // The number of views each address is in; the listener hears when it enters its first and leaves its last
+    private final Map<InetAddress, Integer> viewCounts = new ConcurrentHashMap<>();
+    private final TimingWheel<Peer> expiryWheel;
+
+    private volatile InetAddress localAddress;
+    private volatile SwimMembership swim; // Created when the SWIM mode is first used
+    private volatile long localAddressHash = 0;
+    private final AtomicLong syncRequestsSent = new AtomicLong();
+    private final AtomicLong peersLearnedBySync = new AtomicLong();
 
     public PeerDiscoveryService(UdpBroadcastService bcast, UdpMulticastService multi, Supplier<String> nicknameSupplier,
                                 int intervalMillis, PeerListener peerListener, ModeSelector modeSelector) {
@@ -49,6 +181,11 @@ public class PeerDiscoveryService {
         this.discoveryIntervalMillis = intervalMillis;
         this.peerListener = peerListener;
         this.modeSelector = modeSelector;
+        this.announceIntervalMillis = intervalMillis;
+        this.peerTimeoutNanos = timeoutFor(intervalMillis);
+        // One turn of the wheel covers the longest timeout, so a busy peer is re-filed about once per timeout
+        int slotCount = (int) (timeoutFor(Math.max(intervalMillis, MAX_ANNOUNCE_INTERVAL_MILLIS)) / EXPIRY_TICK_NANOS) + 2;
+        this.expiryWheel = new TimingWheel<>(slotCount, EXPIRY_TICK_NANOS, this::expiryDeadline);
 
         this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
             Thread t = new Thread(r, "Peer-Discovery-Thread");
@@ -57,45 +194,212 @@ public class PeerDiscoveryService {
         });
     }
 
+    /**
+     * Makes announces carry the latest reliable-delivery sequence of each stream as a heartbeat.
+     */
+    public void setReliableDelivery(ReliableDelivery reliableDelivery) {
+        this.reliableDelivery = reliableDelivery;
+    }
+
+    public void setAnnounceDecorator(AnnounceDecorator announceDecorator) {
+        this.announceDecorator = announceDecorator;
+    }
+
+    /**
+     * Sets this node's own address. It is part of the membership digest and is never learned as a peer.
+     */
+    public void setLocalAddress(InetAddress localAddress) {
+        this.localAddress = localAddress;
+        this.localAddressHash = (localAddress == null) ? 0 : addressHash(localAddress);
+    }
+
     public void start() {
-        broadcastHello();
-        scheduler.scheduleAtFixedRate(this::broadcastHello, discoveryIntervalMillis, discoveryIntervalMillis, TimeUnit.MILLISECONDS);
-        scheduler.scheduleAtFixedRate(this::checkForExpiredPeers, 1000, 1000, TimeUnit.MILLISECONDS);
+        lastRateUpdateNanos = System.nanoTime();
+        announceBurst();
+        scheduleNextAnnounce();
+        scheduler.scheduleAtFixedRate(this::checkForExpiredPeers, EXPIRY_TICK_NANOS, EXPIRY_TICK_NANOS, TimeUnit.NANOSECONDS);
+        scheduler.scheduleAtFixedRate(this::runSwimPeriod, SwimMembership.PROTOCOL_PERIOD_MILLIS,
+                SwimMembership.PROTOCOL_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     public void stop() {
         scheduler.shutdownNow();
     }
 
-    private void broadcastHello() {
+    /**
+     * Sends a few announces in quick succession, e.g. after joining a group, so that peers learn
+     * about this node without waiting for the regular interval.
+     */
+    public void announceBurst() {
+        for (long delay : JOIN_BURST_DELAYS_MILLIS) {
+            try {
+                scheduler.schedule(() -> broadcastHello(false), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                return; // Stopped
+            }
+        }
+    }
+
+    /**
+     * Records that a chat message was just sent to the broadcast segment or a group. Peers treat
+     * any message as a sign of life, so the next regular announce there may be skipped.
+     */
+    public void recordLocalChatSent(UdpTransport transport, InetAddress group) {
+        AnnounceTarget target = (transport == UdpTransport.MULTICAST)
+                ? groupTargets.computeIfAbsent(group, g -> new AnnounceTarget())
+                : broadcastTarget;
+        target.lastChatNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the current mean announce interval before jitter.
+     */
+    public long getAnnounceIntervalMillis() {
+        return announceIntervalMillis;
+    }
+
+    /**
+     * Returns the smoothed number of bytes per second this node spends on announces, including IP and UDP headers.
+     */
+    public double getDiscoveryBytesPerSecond() {
+        return discoveryBytesPerSecond;
+    }
+
+    public long getAnnouncesSent() {
+        return announcesSent.get();
+    }
+
+    public long getAnnouncesSuppressed() {
+        return announcesSuppressed.get();
+    }
+
+    private void scheduleNextAnnounce() {
+        long interval = computeAnnounceInterval();
+        announceIntervalMillis = interval;
+        peerTimeoutNanos = timeoutFor(interval);
+        // Uniform in [0.5, 1.5] of the interval, as in RTCP, so peers never fall into lockstep
+        long delay = (long) (interval * (0.5 + ThreadLocalRandom.current().nextDouble()));
+        try {
+            scheduler.schedule(() -> {
+                broadcastHello(true);
+                scheduleNextAnnounce();
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Spreads the bandwidth budget over every member of the largest known segment.
+     */
+    private long computeAnnounceInterval() {
+        int members = broadcastView.peers.size();
+        for (View view : groupViews.values()) members = Math.max(members, view.peers.size());
+        members++;
+        double announceBytes = averageAnnounceBytes > 0 ? averageAnnounceBytes : 100;
+        long budgetInterval = (long) (members * announceBytes * 1000 / DISCOVERY_BANDWIDTH_BUDGET);
+        return Math.min(MAX_ANNOUNCE_INTERVAL_MILLIS, Math.max(discoveryIntervalMillis, budgetInterval));
+    }
+
+    private static long timeoutFor(long announceIntervalMillis) {
+        // Peers may wait 1.5 intervals due to jitter, this leaves room for a few lost announces
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(MIN_PEER_TIMEOUT_MILLIS, announceIntervalMillis * 5L));
+    }
+
+    /**
+     * Returns true if this announce may be skipped because chat traffic went to the target within the current interval.
+     */
+    private boolean suppressAnnounce(AnnounceTarget target, long now) {
+        long lastChat = target.lastChatNanos;
+        if (lastChat != Long.MIN_VALUE && now - lastChat < TimeUnit.MILLISECONDS.toNanos(announceIntervalMillis)
+                && target.suppressedInARow < MAX_SUPPRESSED_ANNOUNCES) {
+            target.suppressedInARow++;
+            announcesSuppressed.incrementAndGet();
+            return true;
+        }
+        target.suppressedInARow = 0;
+        return false;
+    }
+
+    /**
+     * Accounts an announce of the given encoded size, as reported by the sender, sent to a number of
+     * destinations. Must run on the scheduler thread, which owns the bandwidth estimate.
+     */
+    private void recordAnnounceSent(int encodedBytes, int datagrams) {
+        int bytes = DATAGRAM_OVERHEAD_BYTES + encodedBytes;
+        averageAnnounceBytes = averageAnnounceBytes == 0 ? bytes * datagrams
+                : averageAnnounceBytes + SMOOTHING * (bytes * datagrams - averageAnnounceBytes);
+        announcesSent.incrementAndGet();
+        sentSinceRateUpdate += (long) bytes * datagrams;
+    }
+
+    private void updateDiscoveryRate(long now) {
+        double elapsedSeconds = (now - lastRateUpdateNanos) / 1e9;
+        if (elapsedSeconds <= 0) return;
+        double rate = sentSinceRateUpdate / elapsedSeconds;
+        discoveryBytesPerSecond = (discoveryBytesPerSecond == 0) ? rate : discoveryBytesPerSecond + 0.25 * (rate - discoveryBytesPerSecond);
+        sentSinceRateUpdate = 0;
+        lastRateUpdateNanos = now;
+    }
+
+    /**
+     * @param periodic true for the regular announce, which may be suppressed; false for burst announces.
+     */
+    private void broadcastHello(boolean periodic) {
         try {
+            long now = System.nanoTime();
             Map<String, String> headers = new HashMap<>();
             String currentNick = nicknameSupplier.get();
             if (currentNick != null && !currentNick.isBlank()) {
                 headers.put("nick", currentNick);
             }
             headers.put("id", MessageIds.next());
+            String capabilities = MessageProtocol.CAPABILITY_BINARY + "," + MessageProtocol.CAPABILITY_COMPRESSION;
+            headers.put(MessageProtocol.HEADER_CAPABILITIES, isSwimEnabled()
+                    ? capabilities + "," + MessageProtocol.CAPABILITY_SWIM
+                    : capabilities);
+            ReliableDelivery reliability = reliableDelivery;
+            AnnounceDecorator decorator = announceDecorator;
 
-            if (modeSelector.useBroadcast() && broadcastService != null) {
+            if (modeSelector.useBroadcast() && broadcastService != null && !(periodic && suppressAnnounce(broadcastTarget, now))) {
+                Map<String, String> bcHeaders = new HashMap<>(headers);
+                bcHeaders.put(HEADER_DIGEST, membershipDigest(broadcastView));
+                if (reliability != null) reliability.decorateAnnounce(UdpTransport.BROADCAST, null, bcHeaders);
+                if (decorator != null) decorator.decorateAnnounce(UdpTransport.BROADCAST, null, bcHeaders);
                 try {
                     // --- UPDATED to use the new command name ---
-                    broadcastService.send(MessageProtocol.CMD_ANNOUNCE_PRESENCE, headers, "");
+                    int destinations = broadcastService.getDestinationCount();
+                    broadcastService.send(MessageProtocol.CMD_ANNOUNCE_PRESENCE, bcHeaders, "")
+                            .whenCompleteAsync((bytes, error) -> {
+                                if (error != null) logSendFailure("broadcast HELLO", error);
+                                else recordAnnounceSent(bytes, destinations);
+                            }, scheduler);
                 } catch (Exception e) {
                     System.err.println("PeerDiscovery: Failed to send broadcast HELLO.");
                     e.printStackTrace();
                 }
             }
 
+            List<InetAddress> groups = modeSelector.currentMulticastGroups();
+            retainGroupViews(groups);
             if (modeSelector.useMulticast() && multicastService != null && multicastService.isJoined()) {
-                InetAddress group = modeSelector.currentMulticastGroup();
-                if (group != null) {
+                groupTargets.keySet().retainAll(groups);
+                for (InetAddress group : groups) {
+                    if (periodic && suppressAnnounce(groupTargets.computeIfAbsent(group, g -> new AnnounceTarget()), now)) continue;
                     Map<String, String> mcHeaders = new HashMap<>(headers);
-                    mcHeaders.put("grp", group.getHostAddress());
+                    mcHeaders.put("id", MessageIds.next()); // A peer in several groups must not drop the others as duplicates
+                    mcHeaders.put(HEADER_DIGEST, membershipDigest(viewOf(UdpTransport.MULTICAST, group)));
+                    if (reliability != null) reliability.decorateAnnounce(UdpTransport.MULTICAST, group, mcHeaders);
+                    if (decorator != null) decorator.decorateAnnounce(UdpTransport.MULTICAST, group, mcHeaders);
                     try {
                         // --- UPDATED to use the new command name ---
-                        multicastService.send(MessageProtocol.CMD_ANNOUNCE_PRESENCE, mcHeaders, "");
+                        multicastService.send(group, MessageProtocol.CMD_ANNOUNCE_PRESENCE, mcHeaders, "")
+                                .whenCompleteAsync((bytes, error) -> {
+                                    if (error != null) logSendFailure("multicast HELLO to " + group, error);
+                                    else recordAnnounceSent(bytes, 1);
+                                }, scheduler);
                     } catch (Exception e) {
-                        System.err.println("PeerDiscovery: Failed to send multicast HELLO.");
+                        System.err.println("PeerDiscovery: Failed to send multicast HELLO to " + group);
                         e.printStackTrace();
                     }
                 }
@@ -104,47 +408,414 @@ public class PeerDiscoveryService {
             System.err.println("PeerDiscovery: An unexpected error occurred in broadcastHello.");
             e.printStackTrace();
         }
+        if (periodic) updateDiscoveryRate(System.nanoTime());
     }
 
-    public void recordPeerActivity(UdpTransport transport, InetAddress address) {
-        String ip = address.getHostAddress();
-        Map<String, Long> peerMap = (transport == UdpTransport.MULTICAST) ? multicastPeers : broadcastPeers;
+    private <T> T logSendFailure(String what, Throwable error) {
+        System.err.println("PeerDiscovery: Failed to send " + what + ": " + error.getMessage());
+        return null;
+    }
 
-        boolean isNewPeer = peerMap.putIfAbsent(ip, System.currentTimeMillis()) == null;
-        if (isNewPeer && peerListener != null) {
-            peerListener.onPeerStatusChanged(ip, true);
-        } else {
-            peerMap.put(ip, System.currentTimeMillis());
+    /**
+     * Marks a peer as alive. Called for every received message, so an already known peer
+     * costs one map lookup and one volatile write.
+     */
+    public void recordPeerActivity(UdpTransport transport, InetAddress address, InetAddress group) {
+        View view = viewOf(transport, group);
+        if (view == null) return;
+        long now = System.nanoTime();
+        Peer peer = view.peers.get(address);
+        if (peer == null) {
+            peer = addPeer(view, address, now);
+            if (peer == null) return; // Another thread added it first, its timestamp is just as fresh
         }
+        peer.lastSeenNanos = now;
     }
 
-    private void checkForExpiredPeers() {
-        long now = System.currentTimeMillis();
-        long timeout = Math.max(10000, discoveryIntervalMillis * 5L);
+    /**
+     * Handles the discovery part of a PEER_ANNOUNCE: the sender's nickname and capabilities, and
+     * a membership sync request if its view differs from ours and is at least as large.
+     * Must be called after {@link #recordPeerActivity} for the same message.
+     */
+    public void onAnnounceReceived(UdpTransport transport, InetAddress group, InetAddress source, MessageProtocol.DecodedMessage message) {
+        View view = viewOf(transport, group);
+        if (view == null) return;
+        Peer peer = view.peers.get(source);
+        if (peer != null) {
+            String capabilities = message.header(MessageProtocol.HEADER_CAPABILITIES);
+            peer.supportsBinary = hasCapability(capabilities, MessageProtocol.CAPABILITY_BINARY);
+            peer.supportsCompression = hasCapability(capabilities, MessageProtocol.CAPABILITY_COMPRESSION);
+            peer.supportsSwim = hasCapability(capabilities, MessageProtocol.CAPABILITY_SWIM);
+            SwimMembership swimMembership = swim;
+            if (transport == UdpTransport.MULTICAST && swimMembership != null) {
+                if (peer.supportsSwim && isSwimEnabled()) {
+                    swimMembership.addMember(group, source);
+                } else {
+                    swimMembership.removeMember(source);
+                }
+            }
+            String nickname = message.header("nick");
+            if (nickname != null && !nickname.isBlank()) peer.nickname = nickname;
+        }
 
-        removeExpiredPeersFromMap(broadcastPeers, now, timeout);
-        removeExpiredPeersFromMap(multicastPeers, now, timeout);
+        String digest = message.header(HEADER_DIGEST);
+        if (digest == null) return; // Peer without membership sync
+        String ours = membershipDigest(view);
+        if (digest.equals(ours) || viewSize(digest) < viewSize(ours)) return;
+        long now = System.nanoTime();
+        long lastRequest = view.lastSyncRequestNanos;
+        if (lastRequest != Long.MIN_VALUE && now - lastRequest < TimeUnit.MILLISECONDS.toNanos(announceIntervalMillis)) return;
+        view.lastSyncRequestNanos = now;
+        requestSync(view, source);
+    }
+
+    /**
+     * Answers a sync request addressed to this node with the peers the requester did not list.
+     */
+    public void onSyncRequestReceived(UdpTransport transport, InetAddress group, InetAddress source, MessageProtocol.DecodedMessage message) {
+        InetAddress self = localAddress;
+        if (self == null || !message.headerEquals(HEADER_SYNC_TARGET, self.getHostAddress())) return;
+        String have = message.header(HEADER_SYNC_HAVE);
+        // Built on the discovery thread to keep the receive path short
+        try {
+            View view = viewOf(transport, group);
+            if (view != null) scheduler.execute(() -> sendSyncResponse(view, source, have));
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
     }
 
-    private void removeExpiredPeersFromMap(Map<String, Long> peerMap, long now, long timeout) {
-        List<String> expiredPeers = new ArrayList<>();
-        for (Map.Entry<String, Long> entry : peerMap.entrySet()) {
-            if ((now - entry.getValue()) > timeout) {
-                expiredPeers.add(entry.getKey());
+    /**
+     * Adds the peers listed in a sync response addressed to this node that it does not know yet.
+     */
+    public void onSyncResponseReceived(UdpTransport transport, InetAddress group, MessageProtocol.DecodedMessage message) {
+        InetAddress self = localAddress;
+        if (self == null || !message.headerEquals(HEADER_SYNC_TARGET, self.getHostAddress())) return;
+        View view = viewOf(transport, group);
+        if (view == null) return;
+        long now = System.nanoTime();
+        for (String line : message.payload().split("\n")) {
+            String[] fields = line.split(" ", 3);
+            if (fields.length < 2) continue;
+            try {
+                InetAddress address = NetworkUtils.parseAddressLiteral(fields[0]);
+                if (address == null) throw new IllegalArgumentException("not an address");
+                long ageNanos = TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(fields[1])));
+                if (address.equals(self) || ageNanos >= peerTimeoutNanos || view.peers.containsKey(address)) continue;
+                Peer peer = addPeer(view, address, now - ageNanos);
+                if (peer == null) continue;
+                peersLearnedBySync.incrementAndGet();
+                if (fields.length == 3 && !fields[2].isBlank()) {
+                    peer.nickname = fields[2];
+                    if (peerListener != null) peerListener.onPeerNicknameLearned(peer.ip, fields[2]);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("PeerDiscovery: Ignoring malformed sync entry '" + line + "': " + e.getMessage());
             }
         }
-        for (String ip : expiredPeers) {
-            peerMap.remove(ip);
-            if (peerListener != null) {
-                peerListener.onPeerStatusChanged(ip, false);
+    }
+
+    /**
+     * Handles a SWIM probe message. These may arrive on either socket since they are sent unicast,
+     * so the group is taken from the message itself.
+     */
+    public void onSwimMessage(InetAddress source, MessageProtocol.DecodedMessage message) {
+        SwimMembership swimMembership = swim;
+        if (swimMembership == null || !isSwimEnabled()) return;
+        InetAddress group = null;
+        for (InetAddress joined : modeSelector.currentMulticastGroups()) {
+            if (message.headerEquals("grp", joined.getHostAddress())) {
+                group = joined;
+                break;
             }
         }
+        if (group == null) return;
+        recordPeerActivity(UdpTransport.MULTICAST, source, group);
+        Peer peer = viewOf(UdpTransport.MULTICAST, group).peers.get(source);
+        if (peer != null) peer.supportsSwim = true;
+        swimMembership.onMessage(group, source, message);
+    }
+
+    /**
+     * Returns the SWIM failure detector, or null if the SWIM mode has not been used yet.
+     */
+    public SwimMembership getSwimMembership() {
+        return swim;
+    }
+
+    private boolean isSwimEnabled() {
+        return modeSelector.membershipMode() == MembershipMode.SWIM && modeSelector.useMulticast();
+    }
+
+    private void runSwimPeriod() {
+        try {
+            SwimMembership swimMembership = swim;
+            if (!isSwimEnabled()) {
+                if (swimMembership != null) swimMembership.clear();
+                return;
+            }
+            InetAddress self = localAddress;
+            if (self == null || multicastService == null) return;
+            if (swimMembership == null) {
+                swimMembership = new SwimMembership(self, new SwimHost(), scheduler);
+                swim = swimMembership;
+                for (View view : groupViews.values()) {
+                    for (Peer peer : view.peers.values()) {
+                        if (peer.supportsSwim) swimMembership.addMember(view.group, peer.address);
+                    }
+                }
+            }
+            swimMembership.retainGroups(modeSelector.currentMulticastGroups());
+            swimMembership.runProtocolPeriod();
+        } catch (Exception e) {
+            System.err.println("PeerDiscovery: An unexpected error occurred in the SWIM protocol period.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Peers monitored by SWIM never time out by silence; SWIM declares them dead instead.
+     */
+    private long expiryDeadline(Peer peer) {
+        SwimMembership swimMembership = swim;
+        if (peer.view.transport == UdpTransport.MULTICAST && swimMembership != null && swimMembership.isMember(peer.address)) {
+            return System.nanoTime() + peerTimeoutNanos;
+        }
+        return peer.lastSeenNanos + peerTimeoutNanos;
+    }
+
+    private final class SwimHost implements SwimMembership.Host {
+        @Override
+        public void send(InetAddress group, InetAddress member, String type, Map<String, String> headers) {
+            try {
+                multicastService.sendTo(group, member, type, headers, "")
+                        .exceptionally(error -> logSendFailure(type + " to " + member, error));
+            } catch (IOException e) {
+                System.err.println("PeerDiscovery: Failed to send " + type + " to " + member + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onMemberAlive(InetAddress group, InetAddress member) {
+            View view = viewOf(UdpTransport.MULTICAST, group);
+            Peer peer = view.peers.get(member);
+            if (peer == null) peer = addPeer(view, member, System.nanoTime());
+            if (peer != null) peer.supportsSwim = true;
+        }
+
+        @Override
+        public void onMemberDead(InetAddress member) {
+            for (View view : groupViews.values()) {
+                Peer peer = view.peers.get(member);
+                if (peer != null) removePeer(peer);
+            }
+        }
+    }
+
+    public long getSyncRequestsSent() {
+        return syncRequestsSent.get();
+    }
+
+    public long getPeersLearnedBySync() {
+        return peersLearnedBySync.get();
+    }
+
+    private void requestSync(View view, InetAddress responder) {
+        Map<InetAddress, Peer> peerMap = view.peers;
+        Map<String, String> headers = new HashMap<>();
+        headers.put("id", MessageIds.next());
+        headers.put(HEADER_SYNC_TARGET, responder.getHostAddress());
+        if (peerMap.size() <= MAX_LISTED_PEERS) {
+            StringBuilder have = new StringBuilder();
+            for (Peer peer : peerMap.values()) {
+                if (have.length() > 0) have.append(',');
+                have.append(peer.ip);
+            }
+            headers.put(HEADER_SYNC_HAVE, have.toString());
+        }
+        try {
+            sendDiscoveryMessage(view, MessageProtocol.CMD_PEER_SYNC_REQUEST, headers, "");
+            syncRequestsSent.incrementAndGet();
+        } catch (Exception e) {
+            System.err.println("PeerDiscovery: Failed to request membership sync from " + responder);
+            e.printStackTrace();
+        }
+    }
+
+    private void sendSyncResponse(View view, InetAddress requester, String have) {
+        HashSet<String> known = new HashSet<>();
+        if (have != null) Collections.addAll(known, have.split(","));
+        long now = System.nanoTime();
+        StringBuilder payload = new StringBuilder();
+        for (Peer peer : view.peers.values()) {
+            if (peer.address.equals(requester) || known.contains(peer.ip)) continue;
+            long ageSeconds = TimeUnit.NANOSECONDS.toSeconds(Math.max(0, now - peer.lastSeenNanos));
+            payload.append(peer.ip).append(' ').append(ageSeconds);
+            String nickname = peer.nickname;
+            if (nickname != null) payload.append(' ').append(nickname.replace('\n', ' '));
+            payload.append('\n');
+        }
+        if (payload.length() == 0) return; // The requester is missing nobody we know
+        Map<String, String> headers = new HashMap<>();
+        headers.put("id", MessageIds.next());
+        headers.put(HEADER_SYNC_TARGET, requester.getHostAddress());
+        try {
+            // Only the requester asked, so only it is sent the list
+            sendDiscoveryMessageTo(view, requester, MessageProtocol.CMD_PEER_SYNC_RESPONSE, headers, payload.toString());
+        } catch (Exception e) {
+            System.err.println("PeerDiscovery: Failed to answer membership sync from " + requester);
+            e.printStackTrace();
+        }
+    }
+
+    private void sendDiscoveryMessage(View view, String type, Map<String, String> headers, String payload) throws IOException {
+        InetAddress group = view.group;
+        if (view.transport == UdpTransport.MULTICAST) {
+            if (multicastService == null) return;
+            multicastService.send(group, type, headers, payload)
+                    .exceptionally(error -> logSendFailure(type + " to " + group, error));
+        } else if (broadcastService != null) {
+            broadcastService.send(type, headers, payload)
+                    .exceptionally(error -> logSendFailure("broadcast " + type, error));
+        }
+    }
+
+    private void sendDiscoveryMessageTo(View view, InetAddress peer, String type, Map<String, String> headers, String payload) throws IOException {
+        InetAddress group = view.group;
+        if (view.transport == UdpTransport.MULTICAST) {
+            if (multicastService == null) return;
+            multicastService.sendTo(group, peer, type, headers, payload)
+                    .exceptionally(error -> logSendFailure(type + " to " + peer + " in " + group, error));
+        } else if (broadcastService != null) {
+            broadcastService.sendTo(peer, type, headers, payload)
+                    .exceptionally(error -> logSendFailure(type + " to " + peer, error));
+        }
+    }
+
+    /**
+     * Inserts a new peer, or returns null if the address is already in the view.
+     */
+    private Peer addPeer(View view, InetAddress address, long lastSeenNanos) {
+        Peer newPeer = new Peer(view, address, lastSeenNanos);
+        if (view.peers.putIfAbsent(address, newPeer) != null) return null;
+        view.digest.accumulateAndGet(newPeer.addressHash, (a, b) -> a ^ b);
+        expiryWheel.schedule(newPeer);
+        // Notified inside compute, so the online and offline calls for an address cannot cross
+        viewCounts.compute(address, (a, count) -> {
+            if (count == null && peerListener != null) peerListener.onPeerStatusChanged(newPeer.ip, true);
+            return count == null ? 1 : count + 1;
+        });
+        return newPeer;
+    }
+
+    /**
+     * Returns {@code size-hash} of the membership view including this node, which is equal on
+     * two nodes exactly when they know the same members (up to 64-bit hash collisions).
+     */
+    private String membershipDigest(View view) {
+        long digest = view.digest.get() ^ localAddressHash;
+        return (view.peers.size() + 1) + "-" + Long.toHexString(digest);
+    }
+
+    private static int viewSize(String digest) {
+        int separator = digest.indexOf('-');
+        try {
+            return separator > 0 ? Integer.parseInt(digest, 0, separator, 10) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long addressHash(InetAddress address) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : address.getAddress()) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Returns true if there are active peers on the transport and all of them can read the binary format.
+     * A datagram reaches every peer of the transport, so one peer without support keeps everyone on text.
+     */
+    public boolean allPeersSupportBinary(UdpTransport transport) {
+        return allPeersSupport(transport, peer -> peer.supportsBinary);
+    }
+
+    /**
+     * Returns true if there are active peers on the transport and all of them can read compressed payloads.
+     * A datagram reaches every peer of the transport, so one peer without support disables compression.
+     */
+    public boolean allPeersSupportCompression(UdpTransport transport) {
+        return allPeersSupport(transport, peer -> peer.supportsCompression);
+    }
+
+    private boolean allPeersSupport(UdpTransport transport, Predicate<Peer> capability) {
+        boolean anyPeer = false;
+        for (View view : (transport == UdpTransport.MULTICAST) ? groupViews.values() : List.of(broadcastView)) {
+            for (Peer peer : view.peers.values()) {
+                if (!capability.test(peer)) return false;
+                anyPeer = true;
+            }
+        }
+        return anyPeer;
+    }
+
+    private static boolean hasCapability(String capabilities, String capability) {
+        if (capabilities == null) return false;
+        for (String entry : capabilities.split(",")) {
+            if (entry.trim().equals(capability)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the view of the broadcast segment or of a multicast group; null for multicast without a group.
+     */
+    private View viewOf(UdpTransport transport, InetAddress group) {
+        if (transport != UdpTransport.MULTICAST) return broadcastView;
+        return (group == null) ? null : groupViews.computeIfAbsent(group, g -> new View(UdpTransport.MULTICAST, g));
+    }
+
+    /**
+     * Drops the views of groups that have been left, reporting their peers as gone unless they are in another view.
+     */
+    private void retainGroupViews(List<InetAddress> groups) {
+        for (View view : groupViews.values()) {
+            if (groups.contains(view.group)) continue;
+            groupViews.remove(view.group, view);
+            view.peers.values().forEach(this::removePeer);
+        }
+    }
+
+    private void checkForExpiredPeers() {
+        try {
+            expiryWheel.advance(System.nanoTime(), this::removePeer);
+        } catch (Exception e) {
+            System.err.println("PeerDiscovery: An unexpected error occurred while expiring peers.");
+            e.printStackTrace();
+        }
+    }
+
+    private void removePeer(Peer peer) {
+        // The entry may already have been replaced by a newer one for the same address
+        if (!peer.view.peers.remove(peer.address, peer)) return;
+        peer.view.digest.accumulateAndGet(peer.addressHash, (a, b) -> a ^ b);
+        viewCounts.compute(peer.address, (a, count) -> {
+            if (count == null || count <= 1) {
+                if (peerListener != null) peerListener.onPeerStatusChanged(peer.ip, false);
+                return null;
+            }
+            return count - 1;
+        });
     }
 
     public List<String> getAllPeersSnapshot() {
         HashSet<String> allIps = new HashSet<>();
-        allIps.addAll(broadcastPeers.keySet());
-        allIps.addAll(multicastPeers.keySet());
+        for (InetAddress address : viewCounts.keySet()) allIps.add(address.getHostAddress());
         ArrayList<String> sortedList = new ArrayList<>(allIps);
         Collections.sort(sortedList);
         return sortedList;
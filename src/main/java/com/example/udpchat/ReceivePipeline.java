@@ -0,0 +1,185 @@
+// ReceivePipeline.java
+package com.example.udpchat;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The decode/dispatch stage of a {@link DatagramEngine}. The engine thread receives each datagram
+ * straight into a pooled buffer and hands it to one of several worker threads through that worker's
+ * ring buffer; the worker runs the channel's handler and returns the buffer to the pool.
+ * Datagrams are sharded by source address, so everything from one sender is handled by the same
+ * worker in arrival order. When a worker falls behind and its ring is full, new datagrams for it
+ * are dropped and counted instead of stalling the socket reads.
+ * {@link #dispatch} must only be called from the engine thread; the getters are thread-safe.
+ */
+public class ReceivePipeline {
+
+    /**
+     * A single-producer single-consumer ring. Only the engine thread advances the tail and only
+     * the worker thread advances the head, so neither needs a lock.
+     */
+    private static final class Worker {
+        final ByteBuffer[] buffers;
+        final int[] lengths;
+        final InetSocketAddress[] sources;
+        final DatagramEngine.DatagramHandler[] handlers;
+        final int mask;
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        volatile boolean waiting = false;
+        Thread thread;
+
+        Worker(int capacity) {
+            this.buffers = new ByteBuffer[capacity];
+            this.lengths = new int[capacity];
+            this.sources = new InetSocketAddress[capacity];
+            this.handlers = new DatagramEngine.DatagramHandler[capacity];
+            this.mask = capacity - 1;
+        }
+
+        int depth() {
+            return (int) (tail.get() - head.get());
+        }
+    }
+
+    private final Worker[] workers;
+    private final BufferPool bufferPool;
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile int peakQueueDepth = 0;
+    private volatile boolean running = false;
+
+    /**
+     * @param workerCount   The number of decode/dispatch threads.
+     * @param queueCapacity The ring size per worker, rounded up to a power of two. Also bounds the
+     *                      number of idle buffers kept in the pool.
+     * @param bufferSize    The size of the pooled receive buffers.
+     */
+    public ReceivePipeline(int workerCount, int queueCapacity, int bufferSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, queueCapacity) * 2 - 1);
+        this.workers = new Worker[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(capacity);
+        }
+        this.bufferPool = new BufferPool(bufferSize, capacity);
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[i];
+            worker.thread = new Thread(() -> runWorker(worker), "UDP-Receive-Thread-" + (i + 1));
+            worker.thread.setDaemon(true);
+            worker.thread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    /**
+     * Returns a cleared buffer to receive the next datagram into.
+     */
+    public ByteBuffer acquireBuffer() {
+        return bufferPool.acquire();
+    }
+
+    /**
+     * Hands a received datagram to the worker that owns its source address. The pipeline takes
+     * ownership of the buffer, even if the datagram is dropped.
+     */
+    public void dispatch(ByteBuffer buffer, int length, InetSocketAddress source, DatagramEngine.DatagramHandler handler) {
+        Worker worker = workers[shardOf(source)];
+        long tail = worker.tail.get();
+        int depth = (int) (tail - worker.head.get());
+        if (!running || depth == worker.buffers.length) {
+            droppedCount.incrementAndGet();
+            bufferPool.release(buffer);
+            return;
+        }
+        int slot = (int) tail & worker.mask;
+        worker.buffers[slot] = buffer;
+        worker.lengths[slot] = length;
+        worker.sources[slot] = source;
+        worker.handlers[slot] = handler;
+        worker.tail.set(tail + 1); // Publishes the slot
+        if (depth >= peakQueueDepth) peakQueueDepth = depth + 1;
+        if (worker.waiting) LockSupport.unpark(worker.thread);
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * Returns the number of datagrams waiting for a worker, over all workers.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) depth += worker.depth();
+        return depth;
+    }
+
+    /**
+     * Returns the largest number of datagrams that were ever waiting for a single worker.
+     */
+    public int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * Returns how many datagrams were dropped because their worker's ring was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private int shardOf(InetSocketAddress source) {
+        // Spreads adjacent IPv4 addresses, whose hash codes differ only in the low bits
+        int hash = source.getAddress().hashCode() * 0x9E3779B9;
+        return (hash >>> 16) % workers.length;
+    }
+
+    private void runWorker(Worker worker) {
+        while (running) {
+            long head = worker.head.get();
+            if (head == worker.tail.get()) {
+                worker.waiting = true;
+                // Re-check after announcing the wait, so a dispatch in between is not missed
+                if (head == worker.tail.get() && running) LockSupport.park(this);
+                worker.waiting = false;
+                continue;
+            }
+            int slot = (int) head & worker.mask;
+            ByteBuffer buffer = worker.buffers[slot];
+            InetSocketAddress source = worker.sources[slot];
+            DatagramEngine.DatagramHandler handler = worker.handlers[slot];
+            int length = worker.lengths[slot];
+            worker.buffers[slot] = null;
+            worker.sources[slot] = null;
+            worker.handlers[slot] = null;
+            try {
+                handler.onDatagram(buffer, length, source);
+            } catch (RuntimeException e) {
+                System.err.println("Datagram handler failed.");
+                e.printStackTrace();
+            }
+            bufferPool.release(buffer);
+            worker.head.set(head + 1); // Frees the slot
+            dispatchedCount.incrementAndGet();
+        }
+    }
+}
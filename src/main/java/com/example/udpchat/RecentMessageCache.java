@@ -1,35 +1,113 @@
 // RecentMessageCache.java
 package com.example.udpchat;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Remembers recently seen message ids in fixed memory.
+ * Ids are keyed by their 64-bit hash and stored in a ring of open-addressing tables, one per
+ * time bucket. Inserts go into the current bucket; when the clock moves into a new bucket the
+ * oldest table is replaced by a fresh one, so expiry costs one allocation per bucket period instead
+ * of a clearing pass on the receiving thread, and no per-entry objects exist.
+ * An id is remembered for at least {@code ttlMs}. A false positive requires a full 64-bit hash
+ * collision, so its probability per lookup is bounded by (stored ids) / 2^64.
+ * This class is lock-free and thread-safe.
+ */
 public class RecentMessageCache {
-    private final ConcurrentHashMap<String, Long> seen = new ConcurrentHashMap<>();
-    private final int maxSize;
-    private final long ttlMs;
+    private static final int BUCKET_COUNT = 4;
+    private static final int MAX_PROBES = 32;
+    private static final long EMPTY = 0;
 
+    /**
+     * The ids recorded in one time bucket. Replaced as a whole, so a table is never seen with the wrong epoch.
+     */
+    private record Bucket(long epoch, AtomicLongArray table) {
+    }
+
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(BUCKET_COUNT);
+    private final int capacity;
+    private final int mask;
+    private final long bucketNanos;
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    /**
+     * @param maxSize The number of ids expected within one bucket period; each table is sized for a load factor of 0.5.
+     * @param ttlMs   The minimum time an id is remembered.
+     */
     public RecentMessageCache(int maxSize, long ttlMs) {
-        this.maxSize = Math.max(256, maxSize);
-        this.ttlMs = Math.max(1000, ttlMs);
+        this.capacity = Integer.highestOneBit(Math.max(256, maxSize) * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        // (BUCKET_COUNT - 1) full buckets always cover the TTL
+        this.bucketNanos = Math.max(1000, ttlMs) * 1_000_000L / (BUCKET_COUNT - 1);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, new Bucket(Long.MIN_VALUE, new AtomicLongArray(capacity)));
+        }
+    }
+
+    /**
+     * @param idHash The 64-bit id hash from {@link MessageProtocol.DecodedMessage#idHash()}; 0 means no id.
+     * @return true if the id was seen within the TTL, otherwise records it and returns false.
+     */
+    public boolean isDuplicateAndRecord(long idHash) {
+        if (idHash == EMPTY) return false;
+        long epoch = System.nanoTime() / bucketNanos;
+        for (long older = epoch - BUCKET_COUNT + 1; older < epoch; older++) {
+            Bucket bucket = buckets.get(bucketIndex(older));
+            if (bucket.epoch() == older && contains(bucket.table(), idHash)) return true;
+        }
+        return insertIfAbsent(currentTable(epoch), idHash);
+    }
+
+    /**
+     * Returns how many ids could not be recorded because their probe sequence was full.
+     * Such ids are not deduplicated, so a growing count means maxSize is too small.
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    private AtomicLongArray currentTable(long epoch) {
+        int index = bucketIndex(epoch);
+        Bucket bucket = buckets.get(index);
+        while (bucket.epoch() < epoch) {
+            // The expired table is left to the garbage collector; a thread losing the race uses the winner's table
+            Bucket fresh = new Bucket(epoch, new AtomicLongArray(capacity));
+            if (buckets.compareAndSet(index, bucket, fresh)) return fresh.table();
+            bucket = buckets.get(index);
+        }
+        return bucket.table();
+    }
+
+    private boolean contains(AtomicLongArray table, long idHash) {
+        int slot = (int) idHash & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            long value = table.get(slot);
+            if (value == idHash) return true;
+            if (value == EMPTY) return false;
+            slot = (slot + 1) & mask;
+        }
+        return false;
     }
 
-    public boolean isDuplicateAndRecord(String id) {
-        if (id == null || id.isBlank()) return false;
-        long now = System.currentTimeMillis();
-        Long prev = seen.putIfAbsent(id, now + ttlMs);
-        if (prev != null) {
-            // Message ID is already in the cache. It's a duplicate.
-            return true;
+    private boolean insertIfAbsent(AtomicLongArray table, long idHash) {
+        int slot = (int) idHash & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            long value = table.get(slot);
+            if (value == idHash) return true;
+            if (value == EMPTY) {
+                if (table.compareAndSet(slot, EMPTY, idHash)) return false;
+                if (table.get(slot) == idHash) return true; // Lost the race to the same id
+                continue; // Lost the race to another id, re-examine this slot
+            }
+            slot = (slot + 1) & mask;
         }
-        pruneIfNeeded();
+        overflowCount.incrementAndGet();
         return false;
     }
 
-    private void pruneIfNeeded() {
-        if (seen.size() <= maxSize) return;
-        long now = System.currentTimeMillis();
-        seen.values().removeIf(expiryTime -> expiryTime < now);
+    private static int bucketIndex(long epoch) {
+        return (int) Math.floorMod(epoch, (long) BUCKET_COUNT);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,407 @@
+// ReliableDelivery.java
+package com.example.udpchat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An optional NACK-based reliability layer for chat messages.
+ * <p>
+ * Senders stamp every reliable message with a per-stream sequence number ({@code rseq}) and keep the
+ * last messages in a bounded retransmit buffer. A stream is the broadcast segment or one multicast group.
+ * Receivers track the highest contiguous sequence per sender node and stream; a gap, detected either from
+ * a later message or from the latest sequence piggybacked on {@code PEER_ANNOUNCE}, schedules a
+ * group-wide {@code NACK} after a random delay. Other receivers missing the same range suppress their own
+ * NACK when they see it, so the traffic does not grow with the group size as per-message ACKs would.
+ * A receiver stops tracking a stream that has been silent, announces included, for
+ * {@link #STREAM_IDLE_TIMEOUT_MILLIS}, so senders that left do not accumulate.
+ */
+public class ReliableDelivery {
+
+    /**
+     * Notified when messages could not be recovered.
+     */
+    public interface LossListener {
+        void onMessagesLost(UdpTransport transport, InetAddress group, String sourceIp, int count);
+    }
+
+    public static final String HEADER_SEQUENCE = "rseq";
+    public static final String BROADCAST_STREAM = "bcast";
+    public static final long STREAM_IDLE_TIMEOUT_MILLIS = 60_000;
+
+    private static final int RETRANSMIT_BUFFER_SIZE = 256;
+    private static final int MAX_NACK_RANGE = 64;
+    private static final int MAX_NACK_ATTEMPTS = 3;
+    private static final long NACK_MIN_DELAY_MS = 20;
+    private static final long NACK_MAX_DELAY_MS = 120;
+    private static final long NACK_RETRY_MS = 500;
+    private static final long RETRANSMIT_HOLDOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long EXPIRY_TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * A message kept for retransmission.
+     */
+    private record SentMessage(long sequence, String type, Map<String, String> headers, String payload) {
+    }
+
+    /**
+     * Sender-side state of one outgoing stream.
+     */
+    private static final class OutgoingStream {
+        private final SentMessage[] ring = new SentMessage[RETRANSMIT_BUFFER_SIZE];
+        private final long[] lastRetransmitNanos = new long[RETRANSMIT_BUFFER_SIZE];
+        private long lastSequence = 0;
+    }
+
+    /**
+     * Receiver-side state of one remote sender's stream. Guarded by its own monitor.
+     */
+    private static final class IncomingStream {
+        private final String key;
+        private final UdpTransport transport;
+        private final InetAddress group;
+        private final String sourceIp;
+        // Every sequence up to and including this one has been received or given up on
+        private long contiguous;
+        // Bit i set means sequence contiguous + 1 + i has been received
+        private final long[] window = new long[RETRANSMIT_BUFFER_SIZE / 64];
+        private long highestSeen;
+        private ScheduledFuture<?> pendingNack;
+        private int nackAttempts;
+        // Read by the expiry wheel without the monitor
+        private volatile long lastActivityNanos = System.nanoTime();
+
+        IncomingStream(String key, UdpTransport transport, InetAddress group, String sourceIp, long first) {
+            this.key = key;
+            this.transport = transport;
+            this.group = group;
+            this.sourceIp = sourceIp;
+            this.contiguous = first - 1;
+            this.highestSeen = first - 1;
+        }
+    }
+
+    private final UdpBroadcastService broadcastService;
+    private final UdpMulticastService multicastService;
+    private final LossListener lossListener;
+    private final Map<String, OutgoingStream> outgoingStreams = new ConcurrentHashMap<>();
+    private final Map<String, IncomingStream> incomingStreams = new ConcurrentHashMap<>();
+    private final TimingWheel<IncomingStream> expiryWheel = new TimingWheel<>(
+            (int) (TimeUnit.MILLISECONDS.toNanos(STREAM_IDLE_TIMEOUT_MILLIS) / EXPIRY_TICK_NANOS) + 2, EXPIRY_TICK_NANOS,
+            stream -> stream.lastActivityNanos + TimeUnit.MILLISECONDS.toNanos(STREAM_IDLE_TIMEOUT_MILLIS));
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean enabled;
+
+    public ReliableDelivery(UdpBroadcastService broadcastService, UdpMulticastService multicastService, boolean enabled, LossListener lossListener) {
+        this.broadcastService = broadcastService;
+        this.multicastService = multicastService;
+        this.enabled = enabled;
+        this.lossListener = lossListener;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Reliable-Delivery-Thread");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(this::expireIdleStreams, EXPIRY_TICK_NANOS, EXPIRY_TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Sends a message, stamping it with a stream sequence number and keeping it for retransmission
+     * if reliable mode is enabled.
+     *
+     * @param group The multicast group, or null for broadcast.
+     */
+    public CompletableFuture<Integer> send(UdpTransport transport, InetAddress group, String type,
+                                        Map<String, String> headers, String payload) throws IOException {
+        if (enabled) {
+            OutgoingStream stream = outgoingStreams.computeIfAbsent(streamKey(transport, group), k -> new OutgoingStream());
+            synchronized (stream) {
+                long sequence = ++stream.lastSequence;
+                headers.put(HEADER_SEQUENCE, Long.toString(sequence));
+                int slot = (int) (sequence % RETRANSMIT_BUFFER_SIZE);
+                stream.ring[slot] = new SentMessage(sequence, type, new HashMap<>(headers), payload);
+                stream.lastRetransmitNanos[slot] = System.nanoTime();
+            }
+        }
+        return transmit(transport, group, type, headers, payload);
+    }
+
+    /**
+     * Adds the latest sent sequence of a stream to an outgoing announce, serving as a heartbeat
+     * that lets receivers detect the loss of the most recent messages.
+     */
+    public void decorateAnnounce(UdpTransport transport, InetAddress group, Map<String, String> headers) {
+        OutgoingStream stream = outgoingStreams.get(streamKey(transport, group));
+        if (stream == null) return;
+        synchronized (stream) {
+            if (stream.lastSequence > 0) headers.put(HEADER_SEQUENCE, Long.toString(stream.lastSequence));
+        }
+    }
+
+    /**
+     * Tracks the sequence of a received chat message or announce. Must be called after duplicate filtering.
+     */
+    public void onMessageReceived(UdpTransport transport, InetAddress group, String sourceIp, MessageProtocol.DecodedMessage message) {
+        String sequenceHeader = message.header(HEADER_SEQUENCE);
+        if (sequenceHeader == null || !message.hasCompactId()) return;
+        long sequence;
+        try {
+            sequence = Long.parseLong(sequenceHeader);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        boolean isHeartbeat = MessageProtocol.CMD_ANNOUNCE_PRESENCE.equals(message.type());
+        String key = incomingKey(message.idNode(), transport, group);
+        // Start tracking from the first message seen; history before joining is not recovered
+        IncomingStream stream = incomingStreams.computeIfAbsent(key, k -> {
+            IncomingStream newStream = new IncomingStream(k, transport, group, sourceIp, isHeartbeat ? sequence + 1 : sequence);
+            expiryWheel.schedule(newStream);
+            return newStream;
+        });
+        stream.lastActivityNanos = System.nanoTime();
+        synchronized (stream) {
+            if (isHeartbeat) {
+                stream.highestSeen = Math.max(stream.highestSeen, sequence);
+            } else {
+                markReceived(stream, sequence);
+            }
+            if (stream.highestSeen > stream.contiguous && stream.pendingNack == null) {
+                scheduleNack(key, stream, randomDelay(NACK_MIN_DELAY_MS, NACK_MAX_DELAY_MS));
+            }
+        }
+    }
+
+    /**
+     * Stops tracking the incoming streams of a group that has been left.
+     */
+    public void forgetGroup(InetAddress group) {
+        String suffix = "/" + group.getHostAddress();
+        incomingStreams.entrySet().removeIf(entry -> {
+            if (!entry.getKey().endsWith(suffix)) return false;
+            cancelPendingNack(entry.getValue());
+            return true;
+        });
+    }
+
+    /**
+     * Stops tracking all incoming streams, e.g. after traffic was deliberately ignored for a while.
+     */
+    public void resetIncomingStreams() {
+        incomingStreams.values().forEach(this::cancelPendingNack);
+        incomingStreams.clear();
+    }
+
+    private void expireIdleStreams() {
+        try {
+            expiryWheel.advance(System.nanoTime(), stream -> {
+                // A stream already dropped by forgetGroup or resetIncomingStreams is not in the map
+                if (incomingStreams.remove(stream.key, stream)) cancelPendingNack(stream);
+            });
+        } catch (Exception e) {
+            System.err.println("ReliableDelivery: An unexpected error occurred while expiring streams.");
+            e.printStackTrace();
+        }
+    }
+
+    private void cancelPendingNack(IncomingStream stream) {
+        synchronized (stream) {
+            if (stream.pendingNack != null) stream.pendingNack.cancel(false);
+            stream.pendingNack = null;
+        }
+    }
+
+    /**
+     * Handles a NACK seen on the network: retransmits if it targets this node, otherwise uses it to
+     * suppress an identical NACK of our own.
+     */
+    public void onNackReceived(UdpTransport transport, InetAddress group, MessageProtocol.DecodedMessage message) {
+        long node;
+        long from;
+        long to;
+        try {
+            node = Long.parseUnsignedLong(message.header("node"), 16);
+            from = Long.parseLong(message.header("from"));
+            to = Long.parseLong(message.header("to"));
+        } catch (RuntimeException e) {
+            return;
+        }
+        if (node == MessageIds.localNodeId()) {
+            retransmit(transport, group, from, to);
+            return;
+        }
+        IncomingStream stream = incomingStreams.get(incomingKey(node, transport, group));
+        if (stream == null) return;
+        synchronized (stream) {
+            if (stream.pendingNack != null && from <= stream.contiguous + 1 && to >= stream.contiguous + 1) {
+                // Someone else asked for the same range; wait for the retransmission instead
+                stream.pendingNack.cancel(false);
+                stream.pendingNack = null;
+                scheduleNack(incomingKey(node, transport, group), stream, NACK_RETRY_MS);
+            }
+        }
+    }
+
+    private void markReceived(IncomingStream stream, long sequence) {
+        stream.highestSeen = Math.max(stream.highestSeen, sequence);
+        long offset = sequence - stream.contiguous - 1;
+        if (offset < 0) return; // Old or already delivered
+        if (offset >= RETRANSMIT_BUFFER_SIZE) {
+            // Too far ahead to recover the gap from the sender's buffer; skip to the window start
+            giveUpUpTo(stream, sequence - RETRANSMIT_BUFFER_SIZE);
+            offset = sequence - stream.contiguous - 1;
+        }
+        stream.window[(int) (offset >>> 6)] |= 1L << (offset & 63);
+        advanceContiguous(stream);
+    }
+
+    private void advanceContiguous(IncomingStream stream) {
+        while ((stream.window[0] & 1L) != 0) {
+            shiftWindow(stream);
+            stream.contiguous++;
+            stream.nackAttempts = 0;
+        }
+        if (stream.contiguous >= stream.highestSeen && stream.pendingNack != null) {
+            stream.pendingNack.cancel(false);
+            stream.pendingNack = null;
+        }
+    }
+
+    private void giveUpUpTo(IncomingStream stream, long sequence) {
+        int lost = 0;
+        while (stream.contiguous < sequence) {
+            if ((stream.window[0] & 1L) == 0) lost++;
+            shiftWindow(stream);
+            stream.contiguous++;
+        }
+        stream.nackAttempts = 0;
+        advanceContiguous(stream);
+        if (lost > 0 && lossListener != null) {
+            lossListener.onMessagesLost(stream.transport, stream.group, stream.sourceIp, lost);
+        }
+    }
+
+    private static void shiftWindow(IncomingStream stream) {
+        long[] window = stream.window;
+        for (int i = 0; i < window.length; i++) {
+            long carry = (i + 1 < window.length) ? window[i + 1] << 63 : 0;
+            window[i] = (window[i] >>> 1) | carry;
+        }
+    }
+
+    private void scheduleNack(String key, IncomingStream stream, long delayMs) {
+        try {
+            stream.pendingNack = scheduler.schedule(() -> fireNack(key, stream), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            stream.pendingNack = null; // Scheduler is shutting down
+        }
+    }
+
+    private void fireNack(String key, IncomingStream stream) {
+        long from;
+        long to;
+        synchronized (stream) {
+            stream.pendingNack = null;
+            if (stream.contiguous >= stream.highestSeen) return;
+            if (++stream.nackAttempts > MAX_NACK_ATTEMPTS) {
+                // The sender no longer has the range or is unreachable; accept the loss and move on
+                long end = stream.contiguous + 1;
+                while (end <= stream.highestSeen && !isReceived(stream, end)) end++;
+                giveUpUpTo(stream, end - 1);
+                if (stream.highestSeen > stream.contiguous) scheduleNack(key, stream, randomDelay(NACK_MIN_DELAY_MS, NACK_MAX_DELAY_MS));
+                return;
+            }
+            from = stream.contiguous + 1;
+            to = from;
+            while (to < stream.highestSeen && to - from + 1 < MAX_NACK_RANGE && !isReceived(stream, to + 1)) to++;
+            scheduleNack(key, stream, NACK_RETRY_MS);
+        }
+        long node = Long.parseUnsignedLong(key.substring(0, key.indexOf('/')), 16);
+        Map<String, String> headers = new HashMap<>();
+        headers.put("id", MessageIds.next());
+        headers.put("node", Long.toHexString(node));
+        headers.put("from", Long.toString(from));
+        headers.put("to", Long.toString(to));
+        try {
+            transmit(stream.transport, stream.group, MessageProtocol.CMD_NACK, headers, "")
+                    .exceptionally(error -> logFailure("NACK", error));
+        } catch (IOException e) {
+            logFailure("NACK", e);
+        }
+    }
+
+    private static boolean isReceived(IncomingStream stream, long sequence) {
+        long offset = sequence - stream.contiguous - 1;
+        if (offset < 0) return true;
+        if (offset >= RETRANSMIT_BUFFER_SIZE) return false;
+        return (stream.window[(int) (offset >>> 6)] & (1L << (offset & 63))) != 0;
+    }
+
+    private void retransmit(UdpTransport transport, InetAddress group, long from, long to) {
+        OutgoingStream stream = outgoingStreams.get(streamKey(transport, group));
+        if (stream == null) return;
+        long now = System.nanoTime();
+        for (long sequence = from; sequence <= to && sequence - from < MAX_NACK_RANGE; sequence++) {
+            SentMessage sent;
+            synchronized (stream) {
+                int slot = (int) (sequence % RETRANSMIT_BUFFER_SIZE);
+                sent = stream.ring[slot];
+                if (sent == null || sent.sequence() != sequence) continue;
+                // Several receivers may NACK the same range at once; one retransmission serves them all
+                if (now - stream.lastRetransmitNanos[slot] < RETRANSMIT_HOLDOFF_NANOS) continue;
+                stream.lastRetransmitNanos[slot] = now;
+            }
+            try {
+                transmit(transport, group, sent.type(), new HashMap<>(sent.headers()), sent.payload())
+                        .exceptionally(error -> logFailure("retransmission", error));
+            } catch (IOException e) {
+                logFailure("retransmission", e);
+            }
+        }
+    }
+
+    private CompletableFuture<Integer> transmit(UdpTransport transport, InetAddress group, String type,
+                                             Map<String, String> headers, String payload) throws IOException {
+        if (transport == UdpTransport.MULTICAST) {
+            return multicastService.send(group, type, headers, payload);
+        }
+        return broadcastService.send(type, headers, payload);
+    }
+
+    private static String streamKey(UdpTransport transport, InetAddress group) {
+        return transport == UdpTransport.MULTICAST ? group.getHostAddress() : BROADCAST_STREAM;
+    }
+
+    private static String incomingKey(long node, UdpTransport transport, InetAddress group) {
+        return Long.toHexString(node) + "/" + streamKey(transport, group);
+    }
+
+    private static long randomDelay(long min, long max) {
+        return ThreadLocalRandom.current().nextLong(min, max + 1);
+    }
+
+    private <T> T logFailure(String what, Throwable error) {
+        System.err.println("ReliableDelivery: Failed to send " + what + ": " + error.getMessage());
+        return null;
+    }
+}
@@ -0,0 +1,204 @@
+// SourceRateLimiter.java
+package com.example.udpchat;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of received messages per source address and message type with token buckets,
+ * and reports sources that keep flooding so they can be blocked.
+ * <p>
+ * Each bucket is a single long, its theoretical arrival time (the generic cell rate algorithm, which
+ * admits exactly what a token bucket with the same rate and burst admits), updated with a CAS, so
+ * checks take no lock. Sources are kept in striped maps keyed by address. Whichever thread finds
+ * the sweep interval elapsed removes the sources that have been idle longer than
+ * {@link #IDLE_EVICTION_NANOS}, so the state stays bounded without a timer thread.
+ * A source whose messages are throttled {@code blockThreshold} times within a second is reported
+ * to the {@link FloodListener} once per block duration.
+ * This class is thread-safe.
+ */
+public class SourceRateLimiter {
+
+    /**
+     * A token bucket: a sustained rate and the number of messages that may arrive at once.
+     */
+    public record Limit(double perSecond, int burst) {
+        /**
+         * Returns the limit for traffic where every message arrives {@code copies} times.
+         */
+        public Limit times(int copies) {
+            return new Limit(perSecond * copies, burst * copies);
+        }
+    }
+
+    /**
+     * Notified, on a receive thread, when a source exceeds the flood threshold.
+     */
+    public interface FloodListener {
+        void onSourceFlooding(InetAddress source, long blockMillis);
+    }
+
+    private static final int STRIPE_COUNT = 16;
+    private static final long IDLE_EVICTION_NANOS = 60_000_000_000L;
+    private static final long SWEEP_INTERVAL_NANOS = 10_000_000_000L;
+    private static final long STRIKE_WINDOW_NANOS = 1_000_000_000L;
+    // Idle times are only needed to the second; skipping the write spares a volatile store per message
+    private static final long LAST_SEEN_GRANULARITY_NANOS = 1_000_000_000L;
+
+    /**
+     * The buckets of one source, one per limited type plus one for all other types.
+     */
+    private static final class Source {
+        final AtomicLongArray arrivalTimes;
+        final AtomicInteger strikes = new AtomicInteger();
+        volatile long strikeWindowStart;
+        volatile long lastSeenNanos;
+        volatile long reportedUntilNanos;
+
+        Source(int bucketCount, long now) {
+            this.arrivalTimes = new AtomicLongArray(bucketCount);
+            for (int i = 0; i < bucketCount; i++) arrivalTimes.set(i, now);
+            this.strikeWindowStart = now;
+            this.lastSeenNanos = now;
+            this.reportedUntilNanos = now;
+        }
+    }
+
+    private final Map<String, Integer> bucketByType = new HashMap<>();
+    // Per bucket: the time one message adds to the arrival time, and how far ahead of now it may run
+    private final long[] intervalNanos;
+    private final long[] toleranceNanos;
+    private final int blockThreshold;
+    private final long blockMillis;
+    private final FloodListener floodListener;
+    private final List<ConcurrentHashMap<InetAddress, Source>> stripes = new ArrayList<>(STRIPE_COUNT);
+    private final AtomicLong nextSweepNanos = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+    private final LongAdder throttledCount = new LongAdder();
+    private final LongAdder floodReportCount = new LongAdder();
+
+    /**
+     * @param limitsByType   The limits of specific message types.
+     * @param defaultLimit   The limit shared by all other message types.
+     * @param blockThreshold The number of throttled messages within a second after which a source is reported.
+     * @param blockMillis    How long a reported source should be blocked; it is not reported again meanwhile.
+     * @param floodListener  Notified of sources exceeding the threshold; may be null.
+     */
+    public SourceRateLimiter(Map<String, Limit> limitsByType, Limit defaultLimit, int blockThreshold,
+                             long blockMillis, FloodListener floodListener) {
+        int bucketCount = limitsByType.size() + 1;
+        this.intervalNanos = new long[bucketCount];
+        this.toleranceNanos = new long[bucketCount];
+        int bucket = 0;
+        for (Map.Entry<String, Limit> entry : limitsByType.entrySet()) {
+            bucketByType.put(entry.getKey(), bucket);
+            configure(bucket++, entry.getValue());
+        }
+        configure(bucket, defaultLimit);
+        this.blockThreshold = Math.max(1, blockThreshold);
+        this.blockMillis = blockMillis;
+        this.floodListener = floodListener;
+        for (int i = 0; i < STRIPE_COUNT; i++) stripes.add(new ConcurrentHashMap<>());
+    }
+
+    private void configure(int bucket, Limit limit) {
+        intervalNanos[bucket] = (long) (1_000_000_000L / Math.max(limit.perSecond(), 1e-3));
+        toleranceNanos[bucket] = intervalNanos[bucket] * (Math.max(1, limit.burst()) - 1);
+    }
+
+    /**
+     * Takes a token for a message from a source.
+     *
+     * @return true if the message is within the limits, false if it should be dropped.
+     */
+    public boolean tryAcquire(InetAddress source, String type) {
+        return tryAcquire(source, type, true);
+    }
+
+    /**
+     * Takes a token for a message from a source.
+     *
+     * @param countStrike false if a throttled message should not count towards the flood threshold.
+     * @return true if the message is within the limits, false if it should be dropped.
+     */
+    public boolean tryAcquire(InetAddress source, String type, boolean countStrike) {
+        long now = System.nanoTime();
+        if (now - nextSweepNanos.get() > 0) sweep(now);
+
+        ConcurrentHashMap<InetAddress, Source> stripe = stripes.get((source.hashCode() * 0x9E3779B9 >>> 16) & (STRIPE_COUNT - 1));
+        Source state = stripe.get(source);
+        if (state == null) state = stripe.computeIfAbsent(source, s -> new Source(intervalNanos.length, now));
+        if (now - state.lastSeenNanos > LAST_SEEN_GRANULARITY_NANOS) state.lastSeenNanos = now;
+
+        Integer typeBucket = type == null ? null : bucketByType.get(type);
+        int bucket = typeBucket != null ? typeBucket : intervalNanos.length - 1;
+        long interval = intervalNanos[bucket];
+        long tolerance = toleranceNanos[bucket];
+        while (true) {
+            long arrival = state.arrivalTimes.get(bucket);
+            long earliest = Math.max(arrival, now);
+            if (earliest - now > tolerance) break; // Bucket empty
+            if (state.arrivalTimes.compareAndSet(bucket, arrival, earliest + interval)) return true;
+        }
+
+        throttledCount.increment();
+        if (countStrike) recordStrike(source, state, now);
+        return false;
+    }
+
+    private void recordStrike(InetAddress source, Source state, long now) {
+        if (now - state.reportedUntilNanos < 0) return; // Already reported, and about to be blocked
+        if (now - state.strikeWindowStart > STRIKE_WINDOW_NANOS) {
+            // Racing resets only lose a few strikes
+            state.strikeWindowStart = now;
+            state.strikes.set(0);
+        }
+        if (state.strikes.incrementAndGet() < blockThreshold) return;
+        state.reportedUntilNanos = now + blockMillis * 1_000_000L;
+        state.strikes.set(0);
+        floodReportCount.increment();
+        if (floodListener != null) floodListener.onSourceFlooding(source, blockMillis);
+    }
+
+    private void sweep(long now) {
+        long due = nextSweepNanos.get();
+        if (now - due <= 0 || !nextSweepNanos.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) return;
+        for (ConcurrentHashMap<InetAddress, Source> stripe : stripes) {
+            for (Iterator<Source> it = stripe.values().iterator(); it.hasNext(); ) {
+                Source state = it.next();
+                if (now - state.lastSeenNanos > IDLE_EVICTION_NANOS && now - state.reportedUntilNanos > 0) it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns how many messages were dropped for exceeding a limit.
+     */
+    public long getThrottledCount() {
+        return throttledCount.sum();
+    }
+
+    /**
+     * Returns how many times a source was reported for flooding.
+     */
+    public long getFloodReportCount() {
+        return floodReportCount.sum();
+    }
+
+    /**
+     * Returns the number of sources with live buckets.
+     */
+    public int getTrackedSourceCount() {
+        int count = 0;
+        for (ConcurrentHashMap<InetAddress, Source> stripe : stripes) count += stripe.size();
+        return count;
+    }
+}
@@ -0,0 +1,498 @@
+// SwimMembership.java
+package com.example.udpchat;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SWIM-style failure detection for multicast group members.
+ * Every protocol period this node pings one member, walking a shuffled member list round-robin.
+ * A member that does not ack in time is probed indirectly through {@link #INDIRECT_PROBES} other
+ * members; if that fails too it becomes suspect, and it is declared dead only if it does not refute
+ * the suspicion within a timeout that grows with log(group size). Membership changes are
+ * piggybacked on the probe traffic, so each node sends a constant number of messages per period
+ * regardless of the group size. Dead members leave a tombstone with their incarnation for
+ * {@link #TOMBSTONE_TTL_MILLIS}, so that older updates still being piggybacked cannot revive them;
+ * only a higher incarnation or a message from the member itself does.
+ * This class is thread-safe.
+ */
+public class SwimMembership {
+
+    /**
+     * Connects the protocol to the network and to the peer list.
+     */
+    public interface Host {
+
+        /**
+         * Sends a SWIM message unicast to a member through the group it was seen in.
+         */
+        void send(InetAddress group, InetAddress member, String type, Map<String, String> headers);
+
+        /**
+         * Called when a member is learned from a SWIM message or another member's update.
+         */
+        void onMemberAlive(InetAddress group, InetAddress member);
+
+        /**
+         * Called when a member has been declared dead.
+         */
+        void onMemberDead(InetAddress member);
+    }
+
+    private enum State { ALIVE, SUSPECT }
+
+    private static final class Member {
+        final InetAddress address;
+        InetAddress group;
+        int incarnation;
+        State state = State.ALIVE;
+        long suspectSinceNanos;
+
+        Member(InetAddress address, InetAddress group, int incarnation) {
+            this.address = address;
+            this.group = group;
+            this.incarnation = incarnation;
+        }
+    }
+
+    /**
+     * A membership change waiting to be piggybacked, sent a bounded number of times.
+     */
+    private record Update(char kind, String address, int incarnation, int remaining) {
+        Update sent() {
+            return new Update(kind, address, incarnation, remaining - 1);
+        }
+    }
+
+    /**
+     * The incarnation a member was declared dead at.
+     */
+    private record Tombstone(int incarnation, long diedNanos) {
+    }
+
+    public static final long PROTOCOL_PERIOD_MILLIS = 1000;
+    private static final long PING_TIMEOUT_MILLIS = 300;
+    private static final int INDIRECT_PROBES = 3;
+    private static final int SUSPICION_MULTIPLIER = 4;
+    private static final int DISSEMINATION_MULTIPLIER = 4;
+    private static final int MAX_PIGGYBACKED_UPDATES = 6;
+    private static final long TOMBSTONE_TTL_MILLIS = 60_000;
+    private static final int MAX_TOMBSTONES = 1024;
+
+    private static final char ALIVE = 'a';
+    private static final char SUSPECT = 's';
+    private static final char DEAD = 'd';
+
+    private static final String HEADER_SEQUENCE = "seq";
+    private static final String HEADER_TARGET = "tgt";
+    private static final String HEADER_VIA = "via";
+    private static final String HEADER_UPDATES = "upd";
+    private static final String HEADER_INCARNATION = "inc";
+
+    private final InetAddress localAddress;
+    private final String localIp;
+    private final Host host;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<InetAddress, Member> members = new HashMap<>();
+    // Insertion-ordered, so the oldest tombstone is always first
+    private final LinkedHashMap<InetAddress, Tombstone> tombstones = new LinkedHashMap<>();
+    // Keyed by address so a newer update about a member replaces the older one
+    private final LinkedHashMap<String, Update> pendingUpdates = new LinkedHashMap<>();
+    private final List<Member> probeOrder = new ArrayList<>();
+    private int probeIndex = 0;
+    private int incarnation = 0;
+
+    private Member probeTarget;
+    private int probeSequence = 0;
+    private boolean probeAcked = true;
+
+    private long probesSent = 0;
+    private long indirectProbesSent = 0;
+    private long suspicionsRaised = 0;
+    private long membersDeclaredDead = 0;
+    private long refutations = 0;
+
+    public SwimMembership(InetAddress localAddress, Host host, ScheduledExecutorService scheduler) {
+        this.localAddress = localAddress;
+        this.localIp = localAddress.getHostAddress();
+        this.host = host;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Adds a member seen directly, e.g. from its announce. Known members only get their group refreshed.
+     */
+    public synchronized void addMember(InetAddress group, InetAddress address) {
+        if (address.equals(localAddress)) return;
+        tombstones.remove(address); // Seen directly, so it is alive again
+        Member member = members.get(address);
+        if (member != null) {
+            member.group = group;
+            return;
+        }
+        member = new Member(address, group, 0);
+        members.put(address, member);
+        insertIntoProbeOrder(member);
+        queueUpdate(ALIVE, member.address.getHostAddress(), 0);
+    }
+
+    /**
+     * Forgets a member without declaring it dead, e.g. because it left our groups.
+     */
+    public synchronized void removeMember(InetAddress address) {
+        Member member = members.remove(address);
+        if (member != null) removeFromProbeOrder(member);
+    }
+
+    /**
+     * Forgets members that were only seen in groups this node is no longer part of.
+     */
+    public synchronized void retainGroups(Collection<InetAddress> groups) {
+        List<Member> gone = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (!groups.contains(member.group)) gone.add(member);
+        }
+        for (Member member : gone) {
+            removeMember(member.address);
+        }
+    }
+
+    public synchronized boolean isMember(InetAddress address) {
+        return members.containsKey(address);
+    }
+
+    public synchronized void clear() {
+        members.clear();
+        tombstones.clear();
+        probeOrder.clear();
+        pendingUpdates.clear();
+        probeTarget = null;
+        probeAcked = true;
+    }
+
+    public synchronized int size() {
+        return members.size();
+    }
+
+    /**
+     * Runs one protocol period: settles the previous probe and suspicions, then probes the next member.
+     */
+    public synchronized void runProtocolPeriod() {
+        long now = System.nanoTime();
+        if (probeTarget != null && !probeAcked && members.get(probeTarget.address) == probeTarget) {
+            suspect(probeTarget, probeTarget.incarnation);
+        }
+        probeTarget = null;
+        expireSuspicions(now);
+
+        Member target = nextProbeTarget();
+        if (target == null) return;
+        probeTarget = target;
+        probeAcked = false;
+        int sequence = ++probeSequence;
+        Map<String, String> headers = new HashMap<>();
+        headers.put(HEADER_SEQUENCE, Integer.toString(sequence));
+        sendWithUpdates(target.group, target.address, MessageProtocol.CMD_SWIM_PING, headers);
+        probesSent++;
+        try {
+            scheduler.schedule(() -> probeIndirectly(target, sequence), PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Handles a SWIM message. The group is the one the message was addressed to.
+     */
+    public synchronized void onMessage(InetAddress group, InetAddress source, MessageProtocol.DecodedMessage message) {
+        if (!members.containsKey(source) && !source.equals(localAddress)) {
+            addMember(group, source);
+            host.onMemberAlive(group, source);
+        }
+        // The sender's own incarnation refutes suspicions about it as soon as we hear from it
+        String senderIncarnation = message.header(HEADER_INCARNATION);
+        if (senderIncarnation != null) {
+            applyUpdates(group, ALIVE + "/" + source.getHostAddress() + "/" + senderIncarnation);
+        }
+        applyUpdates(group, message.header(HEADER_UPDATES));
+        String sequence = message.header(HEADER_SEQUENCE);
+        if (sequence == null) return;
+
+        switch (message.type()) {
+            case MessageProtocol.CMD_SWIM_PING -> {
+                Map<String, String> headers = new HashMap<>();
+                headers.put(HEADER_SEQUENCE, sequence);
+                String via = message.header(HEADER_VIA);
+                if (via != null) headers.put(HEADER_VIA, via);
+                sendWithUpdates(group, source, MessageProtocol.CMD_SWIM_ACK, headers);
+            }
+            case MessageProtocol.CMD_SWIM_PING_REQ -> {
+                InetAddress target = parseAddress(message.header(HEADER_TARGET));
+                if (target == null) return;
+                Map<String, String> headers = new HashMap<>();
+                headers.put(HEADER_SEQUENCE, sequence);
+                headers.put(HEADER_VIA, source.getHostAddress());
+                sendWithUpdates(group, target, MessageProtocol.CMD_SWIM_PING, headers);
+            }
+            case MessageProtocol.CMD_SWIM_ACK -> {
+                InetAddress requester = parseAddress(message.header(HEADER_VIA));
+                if (requester != null) {
+                    // We probed on behalf of the requester: relay the ack
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put(HEADER_SEQUENCE, sequence);
+                    headers.put(HEADER_TARGET, source.getHostAddress());
+                    sendWithUpdates(group, requester, MessageProtocol.CMD_SWIM_ACK, headers);
+                    return;
+                }
+                String relayedFor = message.header(HEADER_TARGET);
+                Member target = probeTarget;
+                if (target == null || !sequence.equals(Integer.toString(probeSequence))) return;
+                if (relayedFor == null ? source.equals(target.address) : relayedFor.equals(target.address.getHostAddress())) {
+                    probeAcked = true;
+                }
+            }
+            default -> {}
+        }
+    }
+
+    public synchronized long getProbesSent() {
+        return probesSent;
+    }
+
+    public synchronized long getIndirectProbesSent() {
+        return indirectProbesSent;
+    }
+
+    public synchronized long getSuspicionsRaised() {
+        return suspicionsRaised;
+    }
+
+    public synchronized long getMembersDeclaredDead() {
+        return membersDeclaredDead;
+    }
+
+    public synchronized long getRefutations() {
+        return refutations;
+    }
+
+    private synchronized void probeIndirectly(Member target, int sequence) {
+        if (probeTarget != target || probeSequence != sequence || probeAcked) return;
+        List<Member> helpers = new ArrayList<>(members.values());
+        helpers.remove(target);
+        Collections.shuffle(helpers, ThreadLocalRandom.current());
+        for (int i = 0; i < Math.min(INDIRECT_PROBES, helpers.size()); i++) {
+            Member helper = helpers.get(i);
+            Map<String, String> headers = new HashMap<>();
+            headers.put(HEADER_SEQUENCE, Integer.toString(sequence));
+            headers.put(HEADER_TARGET, target.address.getHostAddress());
+            sendWithUpdates(helper.group, helper.address, MessageProtocol.CMD_SWIM_PING_REQ, headers);
+            indirectProbesSent++;
+        }
+    }
+
+    /**
+     * Returns the next member in the shuffled round-robin order, reshuffling after each full pass.
+     */
+    private Member nextProbeTarget() {
+        if (probeOrder.isEmpty()) return null;
+        if (probeIndex >= probeOrder.size()) {
+            Collections.shuffle(probeOrder, ThreadLocalRandom.current());
+            probeIndex = 0;
+        }
+        return probeOrder.get(probeIndex++);
+    }
+
+    /**
+     * New members go to a random position of the rest of the pass, as in SWIM, so they are probed within one pass.
+     */
+    private void insertIntoProbeOrder(Member member) {
+        int position = probeIndex + ThreadLocalRandom.current().nextInt(probeOrder.size() - probeIndex + 1);
+        probeOrder.add(position, member);
+    }
+
+    private void removeFromProbeOrder(Member member) {
+        int position = probeOrder.indexOf(member);
+        if (position < 0) return;
+        probeOrder.remove(position);
+        if (position < probeIndex) probeIndex--;
+    }
+
+    private void suspect(Member member, int atIncarnation) {
+        if (member.state == State.SUSPECT && member.incarnation >= atIncarnation) return;
+        member.state = State.SUSPECT;
+        member.incarnation = atIncarnation;
+        member.suspectSinceNanos = System.nanoTime();
+        suspicionsRaised++;
+        queueUpdate(SUSPECT, member.address.getHostAddress(), atIncarnation);
+    }
+
+    private void expireSuspicions(long now) {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos((long) (SUSPICION_MULTIPLIER * scaledLog(members.size() + 1) * PROTOCOL_PERIOD_MILLIS));
+        List<Member> dead = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.state == State.SUSPECT && now - member.suspectSinceNanos >= timeoutNanos) dead.add(member);
+        }
+        for (Member member : dead) {
+            declareDead(member);
+        }
+    }
+
+    private void declareDead(Member member) {
+        members.remove(member.address);
+        recordTombstone(member.address, member.incarnation);
+        removeFromProbeOrder(member);
+        membersDeclaredDead++;
+        queueUpdate(DEAD, member.address.getHostAddress(), member.incarnation);
+        host.onMemberDead(member.address);
+    }
+
+    private void recordTombstone(InetAddress address, int atIncarnation) {
+        long now = System.nanoTime();
+        Tombstone previous = tombstones.remove(address);
+        tombstones.put(address, new Tombstone(previous != null ? Math.max(previous.incarnation(), atIncarnation) : atIncarnation, now));
+        expireTombstones(now);
+    }
+
+    private void expireTombstones(long now) {
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(TOMBSTONE_TTL_MILLIS);
+        Iterator<Tombstone> oldest = tombstones.values().iterator();
+        while (oldest.hasNext()) {
+            Tombstone tombstone = oldest.next();
+            if (tombstones.size() <= MAX_TOMBSTONES && now - tombstone.diedNanos() < ttlNanos) return;
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Returns true if the member was declared dead at or after the incarnation, so an update at it is stale.
+     */
+    private boolean isBuried(InetAddress address, int atIncarnation) {
+        Tombstone tombstone = tombstones.get(address);
+        if (tombstone == null) return false;
+        if (System.nanoTime() - tombstone.diedNanos() >= TimeUnit.MILLISECONDS.toNanos(TOMBSTONE_TTL_MILLIS)) {
+            tombstones.remove(address);
+            return false;
+        }
+        return atIncarnation <= tombstone.incarnation();
+    }
+
+    /**
+     * Applies piggybacked updates of the form {@code kind/address/incarnation,...}.
+     */
+    private void applyUpdates(InetAddress group, String updates) {
+        if (updates == null || updates.isEmpty()) return;
+        for (String update : updates.split(",")) {
+            String[] fields = update.split("/");
+            if (fields.length != 3 || fields[0].length() != 1) continue;
+            char kind = fields[0].charAt(0);
+            int updateIncarnation;
+            try {
+                updateIncarnation = Integer.parseInt(fields[2]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (fields[1].equals(localIp)) {
+                if (kind != ALIVE && updateIncarnation >= incarnation) {
+                    // Refute: only we may raise our own incarnation
+                    incarnation = updateIncarnation + 1;
+                    refutations++;
+                    queueUpdate(ALIVE, localIp, incarnation);
+                }
+                continue;
+            }
+            InetAddress address = parseAddress(fields[1]);
+            if (address == null) continue;
+            Member member = members.get(address);
+            switch (kind) {
+                case ALIVE -> {
+                    if (member == null) {
+                        if (isBuried(address, updateIncarnation)) continue; // A stale update about a dead member
+                        tombstones.remove(address);
+                        member = new Member(address, group, updateIncarnation);
+                        members.put(address, member);
+                        insertIntoProbeOrder(member);
+                        host.onMemberAlive(group, address);
+                    } else if (updateIncarnation > member.incarnation) {
+                        member.incarnation = updateIncarnation;
+                        member.state = State.ALIVE;
+                    } else {
+                        continue; // Nothing new, do not re-disseminate
+                    }
+                    queueUpdate(ALIVE, fields[1], updateIncarnation);
+                }
+                case SUSPECT -> {
+                    if (member != null && (updateIncarnation > member.incarnation
+                            || (updateIncarnation == member.incarnation && member.state == State.ALIVE))) {
+                        suspect(member, updateIncarnation);
+                    }
+                }
+                case DEAD -> {
+                    if (member == null) {
+                        // Not known here, but remembered so that older updates about it do not add it
+                        if (!isBuried(address, updateIncarnation)) recordTombstone(address, updateIncarnation);
+                    } else if (updateIncarnation >= member.incarnation) {
+                        declareDead(member);
+                    }
+                }
+                default -> {}
+            }
+        }
+    }
+
+    private void queueUpdate(char kind, String address, int atIncarnation) {
+        int transmissions = (int) Math.ceil(DISSEMINATION_MULTIPLIER * scaledLog(members.size() + 1));
+        pendingUpdates.remove(address); // Re-inserted at the end, ahead of nothing older
+        pendingUpdates.put(address, new Update(kind, address, atIncarnation, transmissions));
+    }
+
+    private void sendWithUpdates(InetAddress group, InetAddress member, String type, Map<String, String> headers) {
+        Member recipient = members.get(member);
+        boolean recipientSuspected = recipient != null && recipient.state == State.SUSPECT;
+        if (!pendingUpdates.isEmpty() || recipientSuspected) {
+            StringBuilder piggyback = new StringBuilder();
+            int count = 0;
+            if (recipientSuspected) {
+                // Always tell a suspect about it, so it can refute before the suspicion times out
+                piggyback.append(SUSPECT).append('/').append(recipient.address.getHostAddress()).append('/').append(recipient.incarnation);
+                count++;
+            }
+            Iterator<Map.Entry<String, Update>> entries = pendingUpdates.entrySet().iterator();
+            List<Update> resent = new ArrayList<>();
+            while (entries.hasNext() && count < MAX_PIGGYBACKED_UPDATES) {
+                Update update = entries.next().getValue();
+                entries.remove();
+                if (count++ > 0) piggyback.append(',');
+                piggyback.append(update.kind()).append('/').append(update.address()).append('/').append(update.incarnation());
+                if (update.remaining() > 1) resent.add(update.sent());
+            }
+            // Updates that still need transmissions go to the back, so all pending updates take turns
+            for (Update update : resent) pendingUpdates.put(update.address(), update);
+            headers.put(HEADER_UPDATES, piggyback.toString());
+        }
+        if (incarnation > 0) headers.put(HEADER_INCARNATION, Integer.toString(incarnation));
+        host.send(group, member, type, headers);
+    }
+
+    /**
+     * The log(group size) factor for timeouts and retransmissions, at least 1 for small groups.
+     */
+    private static double scaledLog(int n) {
+        return Math.max(1, Math.log10(n));
+    }
+
+    private static InetAddress parseAddress(String ip) {
+        return NetworkUtils.parseAddressLiteral(ip);
+    }
+}
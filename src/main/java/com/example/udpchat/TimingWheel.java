@@ -0,0 +1,103 @@
+// TimingWheel.java
+package com.example.udpchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * A hashed timing wheel for entries whose deadline may move forward while they are scheduled,
+ * such as peers that expire unless they keep sending. Postponing a deadline costs the owner
+ * nothing but updating its own timestamp: when an entry's slot comes up, the wheel re-reads
+ * the deadline and either expires the entry or files it into the slot of its new deadline.
+ * Each entry is therefore visited about once per deadline period instead of on every tick.
+ * {@link #schedule} is thread-safe; {@link #advance} must be called from a single thread.
+ *
+ * @param <T> The entry type.
+ */
+public class TimingWheel<T> {
+
+    private final List<List<T>> slots;
+    private final long tickNanos;
+    private final ToLongFunction<T> deadlineNanos;
+    private final Queue<T> newEntries = new ConcurrentLinkedQueue<>();
+    private List<T> spare = new ArrayList<>();
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param slotCount     The number of slots; deadlines further away than slotCount ticks are re-checked early.
+     * @param tickNanos     The resolution of the wheel.
+     * @param deadlineNanos Reads the current {@link System#nanoTime()} deadline of an entry.
+     */
+    public TimingWheel(int slotCount, long tickNanos, ToLongFunction<T> deadlineNanos) {
+        int count = Math.max(2, slotCount);
+        this.slots = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.tickNanos = tickNanos;
+        this.deadlineNanos = deadlineNanos;
+        this.currentTick = Math.floorDiv(System.nanoTime(), tickNanos);
+    }
+
+    /**
+     * Adds an entry. It is filed into its slot on the next {@link #advance}.
+     */
+    public void schedule(T entry) {
+        newEntries.add(entry);
+    }
+
+    /**
+     * Moves the wheel forward to {@code nowNanos} and hands every entry whose deadline has passed to {@code expired}.
+     */
+    public void advance(long nowNanos, Consumer<T> expired) {
+        T entry;
+        while ((entry = newEntries.poll()) != null) {
+            file(entry);
+            size++;
+        }
+        long targetTick = Math.floorDiv(nowNanos, tickNanos);
+        // After a long stall one full turn visits every slot
+        long firstTick = Math.max(currentTick + 1, targetTick - slots.size() + 1);
+        for (long tick = firstTick; tick <= targetTick; tick++) {
+            currentTick = tick;
+            int index = slotIndex(tick);
+            List<T> due = slots.get(index);
+            if (due.isEmpty()) continue;
+            slots.set(index, spare); // Entries are re-filed while the due list is walked
+            for (T candidate : due) {
+                if (deadlineNanos.applyAsLong(candidate) - nowNanos <= 0) {
+                    size--;
+                    expired.accept(candidate);
+                } else {
+                    file(candidate);
+                }
+            }
+            due.clear();
+            spare = due;
+        }
+        currentTick = Math.max(currentTick, targetTick);
+    }
+
+    /**
+     * Returns the number of filed entries; entries scheduled since the last advance are not counted.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void file(T entry) {
+        long deadlineTick = Math.floorDiv(deadlineNanos.applyAsLong(entry), tickNanos);
+        // Never file into the slot being processed or behind it, and never more than one turn ahead
+        long tick = Math.min(Math.max(deadlineTick, currentTick + 1), currentTick + slots.size() - 1);
+        slots.get(slotIndex(tick)).add(entry);
+    }
+
+    private int slotIndex(long tick) {
+        return (int) Math.floorMod(tick, (long) slots.size());
+    }
+}
@@ -2,28 +2,45 @@
 package com.example.udpchat;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
 
 /**
  * Manages sending and receiving UDP broadcast packets.
+ * Receiving is driven by a shared {@link DatagramEngine}.
  */
 public class UdpBroadcastService {
 
+    private final DatagramEngine engine;
+    private final DatagramSender sender;
     private final int port;
     private final NetworkUtils.InterfaceInfo networkInterface;
     private final UdpMessageListener messageListener;
+    // One view per receive thread, since datagrams from different sources are decoded concurrently
+    private final ThreadLocal<MessageProtocol.DecodedMessage> decodedView = ThreadLocal.withInitial(MessageProtocol.DecodedMessage::new);
+    private final FragmentReassembler reassembler = new FragmentReassembler();
 
-    private DatagramSocket receiveSocket;
-    private DatagramSocket sendSocket;
-    private ExecutorService networkExecutor;
+    private DatagramChannel receiveChannel;
+    private DatagramChannel sendChannel;
+    private InetSocketAddress[] destinations;
+    private volatile MessageProtocol.WireFormat wireFormat = MessageProtocol.WireFormat.TEXT;
+    private volatile BooleanSupplier peersSupportBinary = () -> false;
+    private volatile BooleanSupplier peersSupportCompression = () -> false;
+    private volatile SourceFilter sourceFilter = new SourceFilter();
+    private volatile SourceRateLimiter rateLimiter; // Null if not limited
     private static final InetAddress LIMITED_BROADCAST_ADDRESS;
+    /**
+     * The most datagrams a message is sent as; a receiver on the subnet gets every copy.
+     */
+    public static final int MAX_DESTINATION_COUNT = 2;
 
     static {
         InetAddress address = null;
@@ -36,66 +53,131 @@ public class UdpBroadcastService {
         LIMITED_BROADCAST_ADDRESS = address;
     }
 
-    public UdpBroadcastService(int port, NetworkUtils.InterfaceInfo networkInterface, UdpMessageListener messageListener) {
+    public UdpBroadcastService(DatagramEngine engine, DatagramSender sender, int port, NetworkUtils.InterfaceInfo networkInterface, UdpMessageListener messageListener) {
+        this.engine = engine;
+        this.sender = sender;
         this.port = port;
         this.networkInterface = networkInterface;
         this.messageListener = messageListener;
     }
 
-    public void start() throws SocketException {
-        receiveSocket = new DatagramSocket(null);
-        receiveSocket.setReuseAddress(true);
-        receiveSocket.bind(new InetSocketAddress(port));
-
-        sendSocket = new DatagramSocket(null);
-        sendSocket.setReuseAddress(true);
-        sendSocket.setBroadcast(true);
-        sendSocket.bind(new InetSocketAddress(networkInterface.address(), 0));
-
-        networkExecutor = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "UDP-Broadcast-Receiver-Thread");
-            t.setDaemon(true);
-            return t;
-        });
-        networkExecutor.submit(this::listenForPackets);
+    public void setWireFormat(MessageProtocol.WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
     }
 
-    private void listenForPackets() {
-        byte[] buffer = new byte[2048];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        while (receiveSocket != null && !receiveSocket.isClosed()) {
-            try {
-                receiveSocket.receive(packet);
-                if (messageListener != null) {
-                    MessageProtocol.DecodedMessage decoded = MessageProtocol.decode(packet.getData(), packet.getLength());
-                    if (decoded != null) {
-                        messageListener.onMessageReceived(UdpTransport.BROADCAST, packet.getAddress(), decoded, null);
-                    }
-                }
-            } catch (IOException e) {
-                if (!receiveSocket.isClosed()) {
-                    System.err.println("Error receiving broadcast packet.");
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * Sets the check consulted before each send when the wire format is binary; text is used while it returns false.
+     */
+    public void setBinarySupport(BooleanSupplier peersSupportBinary) {
+        this.peersSupportBinary = peersSupportBinary;
     }
 
-    public void stop() {
-        if (receiveSocket != null && !receiveSocket.isClosed()) receiveSocket.close();
-        if (sendSocket != null && !sendSocket.isClosed()) sendSocket.close();
-        if (networkExecutor != null) networkExecutor.shutdownNow();
+    /**
+     * Sets the check consulted before each send when the wire format is
+     * {@link MessageProtocol.WireFormat#BINARY_COMPRESSED}; plain binary is used while it returns false.
+     */
+    public void setCompressionSupport(BooleanSupplier peersSupportCompression) {
+        this.peersSupportCompression = peersSupportCompression;
     }
 
-    public void send(String type, Map<String, String> headers, String payload) throws IOException {
-        byte[] data = MessageProtocol.encode(type, headers, payload);
+    /**
+     * Sets the filter that drops datagrams by source address before they are reassembled or decoded.
+     */
+    public void setSourceFilter(SourceFilter sourceFilter) {
+        this.sourceFilter = sourceFilter;
+    }
 
-        if (networkInterface.broadcast() != null) {
-            sendSocket.send(new DatagramPacket(data, data.length, networkInterface.broadcast(), port));
+    /**
+     * Sets the per-source limits applied to fragments and decoded messages before they are handled.
+     */
+    public void setRateLimiter(SourceRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    private MessageProtocol.WireFormat outgoingWireFormat() {
+        MessageProtocol.WireFormat format = wireFormat;
+        if (format != MessageProtocol.WireFormat.TEXT && !peersSupportBinary.getAsBoolean()) {
+            return MessageProtocol.WireFormat.TEXT;
+        }
+        if (format == MessageProtocol.WireFormat.BINARY_COMPRESSED && !peersSupportCompression.getAsBoolean()) {
+            return MessageProtocol.WireFormat.BINARY;
         }
+        return format;
+    }
+
+    public void start() throws IOException {
+        receiveChannel = DatagramChannel.open();
+        receiveChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        receiveChannel.bind(new InetSocketAddress(port));
+        engine.register(receiveChannel, this::onDatagram);
 
+        sendChannel = DatagramChannel.open();
+        sendChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        sendChannel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        sendChannel.bind(new InetSocketAddress(networkInterface.address(), 0));
+
+        List<InetSocketAddress> targets = new ArrayList<>(2);
+        if (networkInterface.broadcast() != null) {
+            targets.add(new InetSocketAddress(networkInterface.broadcast(), port));
+        }
         if (LIMITED_BROADCAST_ADDRESS != null && (networkInterface.broadcast() == null || !networkInterface.broadcast().equals(LIMITED_BROADCAST_ADDRESS))) {
-            sendSocket.send(new DatagramPacket(data, data.length, LIMITED_BROADCAST_ADDRESS, port));
+            targets.add(new InetSocketAddress(LIMITED_BROADCAST_ADDRESS, port));
+        }
+        destinations = targets.toArray(new InetSocketAddress[0]);
+    }
+
+    private void onDatagram(ByteBuffer buffer, int length, InetSocketAddress source) {
+        if (sourceFilter.drops(source.getAddress())) return;
+        SourceRateLimiter limiter = rateLimiter;
+        if (MessageProtocol.isFragment(buffer, length)) {
+            // Limited after duplicates are discarded; throttling the rest of a message in progress is not flooding
+            buffer = reassembler.accept(source.getAddress(), buffer, length, limiter == null ? null
+                    : continuesMessage -> limiter.tryAcquire(source.getAddress(), MessageProtocol.CMD_FRAGMENT, !continuesMessage));
+            if (buffer == null) return; // Message not complete yet
+            length = buffer.limit();
+        }
+        MessageProtocol.DecodedMessage decoded = decodedView.get();
+        if (messageListener != null && decoded.wrap(buffer, 0, length)) {
+            if (limiter != null && !limiter.tryAcquire(source.getAddress(), decoded.type())) return;
+            messageListener.onMessageReceived(UdpTransport.BROADCAST, source.getAddress(), decoded, null);
+        }
+    }
+
+    public void stop() {
+        if (receiveChannel != null) engine.unregister(receiveChannel);
+        try {
+            if (sendChannel != null) sendChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns how many datagrams each message is sent as (subnet and limited broadcast).
+     */
+    public int getDestinationCount() {
+        InetSocketAddress[] targets = destinations;
+        return targets == null ? 0 : targets.length;
+    }
+
+    /**
+     * Queues a message for the subnet and limited broadcast addresses. The message is encoded once
+     * on the sender thread; the headers map must not be modified afterwards.
+     *
+     * @return A future completed with the number of bytes sent to each address once the datagram has been sent.
+     */
+    public CompletableFuture<Integer> send(String type, Map<String, String> headers, String payload) throws IOException {
+        if (sendChannel == null || !sendChannel.isOpen()) throw new IOException("Broadcast service is not started");
+        return sender.submit(sendChannel, outgoingWireFormat(), type, headers, payload, destinations);
+    }
+
+    /**
+     * Queues a message for a single peer on the subnet, sent unicast to its port.
+     *
+     * @return A future completed with the number of bytes sent once the datagram has been sent.
+     */
+    public CompletableFuture<Integer> sendTo(InetAddress peer, String type, Map<String, String> headers, String payload) throws IOException {
+        if (sendChannel == null || !sendChannel.isOpen()) throw new IOException("Broadcast service is not started");
+        return sender.submit(sendChannel, outgoingWireFormat(), type, headers, payload, new InetSocketAddress(peer, port));
+    }
+}
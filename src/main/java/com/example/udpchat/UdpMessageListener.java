@@ -10,11 +10,13 @@ import java.net.InetAddress;
 public interface UdpMessageListener {
 
     /**
-     * Called when a new message is received and successfully parsed.
+     * Called when a new message is received and successfully parsed. Messages from one source address
+     * arrive in order on one thread; messages from different sources may be delivered concurrently.
      *
      * @param transport The transport type (BROADCAST or MULTICAST) on which the message arrived.
      * @param source    The IP address of the sender.
-     * @param message   The parsed message object containing type, headers, and payload.
+     * @param message   The parsed message view containing type, headers, and payload. It is backed by the
+     *                  receive buffer and only valid until this method returns; use {@code copy()} to retain it.
      * @param group     The multicast group address if the transport was MULTICAST, otherwise null.
      */
     void onMessageReceived(UdpTransport transport, InetAddress source, MessageProtocol.DecodedMessage message, InetAddress group);
@@ -2,148 +2,269 @@
 package com.example.udpchat;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
 
 /**
  * Manages joining, leaving, sending, and receiving UDP multicast packets.
+ * Any number of groups can be joined concurrently on one channel; received messages are
+ * routed by their {@code grp} header to the listener registered for that group.
+ * Receiving is driven by a shared {@link DatagramEngine}.
  */
 public class UdpMulticastService {
 
+    /**
+     * The state of one joined group.
+     */
+    private static final class Membership {
+        final InetAddress group;
+        final String address;
+        final InetSocketAddress destination;
+        final MembershipKey key;
+        final UdpMessageListener listener;
+        volatile boolean isHost;
+
+        Membership(InetAddress group, int port, MembershipKey key, UdpMessageListener listener, boolean isHost) {
+            this.group = group;
+            this.address = group.getHostAddress();
+            this.destination = new InetSocketAddress(group, port);
+            this.key = key;
+            this.listener = listener;
+            this.isHost = isHost;
+        }
+    }
+
+    private final DatagramEngine engine;
+    private final DatagramSender sender;
     private final int port;
-    private InetAddress currentGroup;
     private final NetworkUtils.InterfaceInfo networkInterface;
-    private final UdpMessageListener messageListener;
+    private final UdpMessageListener defaultListener;
+    // One view per receive thread, since datagrams from different sources are decoded concurrently
+    private final ThreadLocal<MessageProtocol.DecodedMessage> decodedView = ThreadLocal.withInitial(MessageProtocol.DecodedMessage::new);
+    private final FragmentReassembler reassembler = new FragmentReassembler();
+    // Read on every received packet, written only on join/leave
+    private final List<Membership> memberships = new CopyOnWriteArrayList<>();
 
-    private MulticastSocket socket;
-    private ExecutorService networkExecutor;
-    private volatile boolean isJoined = false;
-    private volatile boolean isHost = false;
+    private DatagramChannel channel;
     private int timeToLive = 1;
+    private volatile MessageProtocol.WireFormat wireFormat = MessageProtocol.WireFormat.TEXT;
+    private volatile BooleanSupplier peersSupportBinary = () -> false;
+    private volatile BooleanSupplier peersSupportCompression = () -> false;
+    private volatile SourceFilter sourceFilter = new SourceFilter();
+    private volatile SourceRateLimiter rateLimiter; // Null if not limited
 
-    public UdpMulticastService(int port, InetAddress initialGroup, NetworkUtils.InterfaceInfo networkInterface, UdpMessageListener messageListener) {
+    public UdpMulticastService(DatagramEngine engine, DatagramSender sender, int port, NetworkUtils.InterfaceInfo networkInterface, UdpMessageListener defaultListener) {
+        this.engine = engine;
+        this.sender = sender;
         this.port = port;
-        this.currentGroup = initialGroup;
         this.networkInterface = networkInterface;
-        this.messageListener = messageListener;
+        this.defaultListener = defaultListener;
+    }
+
+    public synchronized void setHostStatus(InetAddress group, boolean isHost) {
+        Membership membership = findMembership(group);
+        if (membership != null) membership.isHost = isHost;
     }
 
-    public synchronized void setHostStatus(boolean isHost) {
-        this.isHost = isHost;
+    public void setWireFormat(MessageProtocol.WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    /**
+     * Sets the check consulted before each send when the wire format is binary; text is used while it returns false.
+     */
+    public void setBinarySupport(BooleanSupplier peersSupportBinary) {
+        this.peersSupportBinary = peersSupportBinary;
+    }
+
+    /**
+     * Sets the check consulted before each send when the wire format is
+     * {@link MessageProtocol.WireFormat#BINARY_COMPRESSED}; plain binary is used while it returns false.
+     */
+    public void setCompressionSupport(BooleanSupplier peersSupportCompression) {
+        this.peersSupportCompression = peersSupportCompression;
+    }
+
+    /**
+     * Sets the filter that drops datagrams by source address before they are reassembled or decoded.
+     */
+    public void setSourceFilter(SourceFilter sourceFilter) {
+        this.sourceFilter = sourceFilter;
+    }
+
+    /**
+     * Sets the per-source limits applied to fragments and decoded messages before they are handled.
+     */
+    public void setRateLimiter(SourceRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    private MessageProtocol.WireFormat outgoingWireFormat() {
+        MessageProtocol.WireFormat format = wireFormat;
+        if (format != MessageProtocol.WireFormat.TEXT && !peersSupportBinary.getAsBoolean()) {
+            return MessageProtocol.WireFormat.TEXT;
+        }
+        if (format == MessageProtocol.WireFormat.BINARY_COMPRESSED && !peersSupportCompression.getAsBoolean()) {
+            return MessageProtocol.WireFormat.BINARY;
+        }
+        return format;
     }
 
     public synchronized void setTtl(int ttl) {
         this.timeToLive = Math.max(1, Math.min(ttl, 32));
-        if (socket != null && !socket.isClosed()) {
+        if (channel != null && channel.isOpen()) {
             try {
-                socket.setTimeToLive(this.timeToLive);
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, this.timeToLive);
             } catch (IOException e) {
-                System.err.println("Warning: Could not set TTL on multicast socket.");
+                System.err.println("Warning: Could not set TTL on multicast channel.");
                 e.printStackTrace();
             }
         }
     }
 
-    public synchronized boolean isJoined() {
-        return isJoined;
+    public boolean isJoined() {
+        return !memberships.isEmpty();
     }
 
-    public synchronized void joinOrSwitchGroup(InetAddress newGroup) throws IOException {
-        if (newGroup == null) throw new IOException("Multicast group cannot be null.");
-        if (isJoined && currentGroup != null && currentGroup.equals(newGroup)) return;
-        if (isJoined) leaveGroup();
-        this.currentGroup = newGroup;
-        joinGroup();
+    public boolean isJoined(InetAddress group) {
+        return findMembership(group) != null;
     }
 
-    private synchronized void joinGroup() throws IOException {
-        if (isJoined) return;
-
-        try {
-            socket = new MulticastSocket(port);
-            System.out.println("[DEBUG] MulticastSocket created successfully on port " + port);
-
-            System.out.println("[DEBUG] -> Configuring: setReuseAddress(true)...");
-            socket.setReuseAddress(true);
-
-            System.out.println("[DEBUG] -> Configuring: setNetworkInterface for " + networkInterface.nif().getDisplayName() + "...");
-            socket.setNetworkInterface(networkInterface.nif());
+    public List<InetAddress> getJoinedGroups() {
+        List<InetAddress> groups = new ArrayList<>(memberships.size());
+        for (Membership membership : memberships) groups.add(membership.group);
+        return groups;
+    }
 
-            System.out.println("[DEBUG] -> Configuring: setTimeToLive(" + timeToLive + ")...");
-            socket.setTimeToLive(timeToLive);
+    /**
+     * Joins a group, delivering its messages to the default listener.
+     */
+    public void joinGroup(InetAddress group, boolean isHost) throws IOException {
+        joinGroup(group, isHost, defaultListener);
+    }
 
-            System.out.println("[DEBUG] -> Configuring: setLoopbackMode(false)...");
-            socket.setLoopbackMode(false);
+    /**
+     * Joins a group in addition to the groups already joined.
+     *
+     * @param listener Receives the messages addressed to this group.
+     */
+    public synchronized void joinGroup(InetAddress group, boolean isHost, UdpMessageListener listener) throws IOException {
+        if (group == null) throw new IOException("Multicast group cannot be null.");
+        if (findMembership(group) != null) return;
+        if (channel == null || !channel.isOpen()) openChannel();
 
-            System.out.println("[DEBUG] -> Joining group " + currentGroup + " via interface " + networkInterface.nif().getName() + "...");
-            socket.joinGroup(new InetSocketAddress(currentGroup, port), networkInterface.nif());
-            System.out.println("[DEBUG] -> SUCCESSFULLY joined group.");
+        MembershipKey key = channel.join(group, networkInterface.nif());
+        memberships.add(new Membership(group, port, key, listener, isHost));
+        System.out.println("[DEBUG] Joined group " + group + " via interface " + networkInterface.nif().getName());
+    }
 
+    private void openChannel() throws IOException {
+        try {
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(port));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface.nif());
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, timeToLive);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+            engine.register(channel, this::onDatagram);
+            System.out.println("[DEBUG] Multicast channel opened on port " + port);
         } catch (IOException e) {
-            System.err.println("!!! ERROR during multicast socket setup or join.");
+            System.err.println("!!! ERROR during multicast channel setup.");
             e.printStackTrace();
+            if (channel != null) channel.close();
+            channel = null;
             throw e; // Re-throw to notify the caller
         }
+    }
 
-        networkExecutor = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "UDP-Multicast-Receiver-Thread");
-            t.setDaemon(true);
-            return t;
-        });
-        isJoined = true;
-        networkExecutor.submit(this::listenForPackets);
+    public synchronized void leaveGroup(InetAddress group) {
+        Membership membership = findMembership(group);
+        if (membership == null) return;
+        memberships.remove(membership);
+        membership.key.drop();
+        System.out.println("[DEBUG] Successfully left group " + group);
+        if (memberships.isEmpty()) closeChannel();
     }
 
-    public synchronized void leaveGroup() throws IOException {
-        if (!isJoined) return;
-        isJoined = false;
-        try {
-            if (socket != null) {
-                socket.leaveGroup(new InetSocketAddress(currentGroup, port), networkInterface.nif());
-                System.out.println("[DEBUG] Successfully left group " + currentGroup);
-            }
-        } catch (IOException e) {
-            System.err.println("Error while trying to leave multicast group.");
-            e.printStackTrace();
-        } finally {
-            if (socket != null && !socket.isClosed()) socket.close();
-            if (networkExecutor != null) networkExecutor.shutdownNow();
-            socket = null;
+    public synchronized void leaveAllGroups() {
+        for (Membership membership : memberships) {
+            membership.key.drop();
         }
+        memberships.clear();
+        closeChannel();
     }
 
-    private void listenForPackets() {
-        byte[] buffer = new byte[2048];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        while (isJoined && socket != null && !socket.isClosed()) {
-            try {
-                socket.receive(packet);
-                if (messageListener != null) {
-                    MessageProtocol.DecodedMessage decoded = MessageProtocol.decode(packet.getData(), packet.getLength());
-                    if (decoded != null) {
-                        messageListener.onMessageReceived(UdpTransport.MULTICAST, packet.getAddress(), decoded, currentGroup);
-                    }
-                }
-            } catch (IOException e) {
-                if (isJoined) {
-                    System.err.println("Error receiving multicast packet.");
-                    e.printStackTrace();
+    private void closeChannel() {
+        if (channel != null) engine.unregister(channel);
+        channel = null;
+    }
+
+    private void onDatagram(ByteBuffer buffer, int length, InetSocketAddress source) {
+        if (sourceFilter.drops(source.getAddress())) return;
+        SourceRateLimiter limiter = rateLimiter;
+        if (MessageProtocol.isFragment(buffer, length)) {
+            // Limited after duplicates are discarded; throttling the rest of a message in progress is not flooding
+            buffer = reassembler.accept(source.getAddress(), buffer, length, limiter == null ? null
+                    : continuesMessage -> limiter.tryAcquire(source.getAddress(), MessageProtocol.CMD_FRAGMENT, !continuesMessage));
+            if (buffer == null) return; // Message not complete yet
+            length = buffer.limit();
+        }
+        MessageProtocol.DecodedMessage decoded = decodedView.get();
+        if (!decoded.wrap(buffer, 0, length)) return;
+        if (limiter != null && !limiter.tryAcquire(source.getAddress(), decoded.type())) return;
+        for (Membership membership : memberships) {
+            if (decoded.headerEquals("grp", membership.address)) {
+                if (membership.listener != null) {
+                    membership.listener.onMessageReceived(UdpTransport.MULTICAST, source.getAddress(), decoded, membership.group);
                 }
+                return;
             }
         }
     }
 
-    public synchronized void send(String type, Map<String, String> headers, String payload) throws IOException {
-        if (!isJoined || socket == null) throw new IOException("Not joined to a multicast group");
-        if (isHost) headers.put("host", "1");
-        headers.put("grp", currentGroup.getHostAddress());
-        byte[] data = MessageProtocol.encode(type, headers, payload);
-        DatagramPacket packet = new DatagramPacket(data, data.length, currentGroup, port);
-        socket.send(packet);
+    /**
+     * Queues a message for a joined group. The message is encoded on the sender thread;
+     * the headers map must not be modified afterwards.
+     *
+     * @return A future completed with the number of bytes sent once the datagram has been sent.
+     */
+    public CompletableFuture<Integer> send(InetAddress group, String type, Map<String, String> headers, String payload) throws IOException {
+        Membership membership = findMembership(group);
+        if (membership == null || !membership.key.isValid()) throw new IOException("Not joined to multicast group " + group);
+        if (membership.isHost) headers.put("host", "1");
+        headers.put("grp", membership.address);
+        return sender.submit((DatagramChannel) membership.key.channel(), outgoingWireFormat(), type, headers, payload, membership.destination);
+    }
+
+    /**
+     * Queues a message for a single member of a joined group. The datagram is sent unicast to the
+     * member's port and carries the group header, so the member routes it like a group message.
+     *
+     * @return A future completed with the number of bytes sent once the datagram has been sent.
+     */
+    public CompletableFuture<Integer> sendTo(InetAddress group, InetAddress member, String type, Map<String, String> headers, String payload) throws IOException {
+        Membership membership = findMembership(group);
+        if (membership == null || !membership.key.isValid()) throw new IOException("Not joined to multicast group " + group);
+        headers.put("grp", membership.address);
+        return sender.submit((DatagramChannel) membership.key.channel(), outgoingWireFormat(), type, headers, payload,
+                new InetSocketAddress(member, port));
+    }
+
+    private Membership findMembership(InetAddress group) {
+        for (Membership membership : memberships) {
+            if (membership.group.equals(group)) return membership;
+        }
+        return null;
     }
-}
\ No newline at end of file
+}
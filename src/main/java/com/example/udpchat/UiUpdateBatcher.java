@@ -0,0 +1,138 @@
+// UiUpdateBatcher.java
+package com.example.udpchat;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Collects UI updates from any thread and applies them on the JavaFX application thread in batches.
+ * At most one flush is queued with {@link Platform#runLater} at a time, so a burst of events costs
+ * one FX event instead of one per event. A flush appends each history's new messages in one batch
+ * and scrolls at most once per history, applies only the latest state of each participant, and runs
+ * each requested refresh once. If more messages are pending than the batch size allows, the rest is left to a follow-up
+ * flush so the FX thread can render in between.
+ * This class is thread-safe.
+ */
+public class UiUpdateBatcher {
+
+    private record PendingMessage(MessageHistory target, ChatMessage message) {
+    }
+
+    private final Queue<PendingMessage> pendingMessages = new ConcurrentLinkedQueue<>();
+    // The latest state per participant; true if present
+    private final Map<String, Boolean> pendingParticipants = new ConcurrentHashMap<>();
+    private final Set<Runnable> pendingRefreshes = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ObservableList<String> participants;
+    private final Consumer<MessageHistory> messagesAddedListener;
+    private final int maxBatchSize;
+
+    /**
+     * @param participants          The participant list to apply participant changes to.
+     * @param maxBatchSize          The maximum number of chat messages added per flush.
+     * @param messagesAddedListener Called on the FX thread once per flush for every history whose window received messages, e.g. to scroll it.
+     */
+    public UiUpdateBatcher(ObservableList<String> participants, int maxBatchSize,
+                           Consumer<MessageHistory> messagesAddedListener) {
+        this.participants = participants;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.messagesAddedListener = messagesAddedListener;
+    }
+
+    /**
+     * Queues a message to be appended to a history. Messages are appended in the order they were queued.
+     */
+    public void addMessage(MessageHistory target, ChatMessage message) {
+        pendingMessages.add(new PendingMessage(target, message));
+        scheduleFlush();
+    }
+
+    /**
+     * Queues a participant change; only the latest change per participant is applied.
+     */
+    public void updateParticipant(String ip, boolean present) {
+        pendingParticipants.put(ip, present);
+        scheduleFlush();
+    }
+
+    /**
+     * Queues a task that recomputes some UI state from the model. Requests for the same task instance
+     * are coalesced, so callers should pass a task stored in a field rather than a new lambda each time.
+     */
+    public void refresh(Runnable task) {
+        pendingRefreshes.add(task);
+        scheduleFlush();
+    }
+
+    /**
+     * Drops all queued updates, e.g. when the lists they target are cleared.
+     */
+    public void clear() {
+        pendingMessages.clear();
+        pendingParticipants.clear();
+        pendingRefreshes.clear();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::flush);
+        }
+    }
+
+    private void flush() {
+        // Cleared first: anything queued from now on schedules another flush
+        flushScheduled.set(false);
+
+        Map<MessageHistory, List<ChatMessage>> messagesByTarget = new IdentityHashMap<>();
+        PendingMessage pending;
+        for (int i = 0; i < maxBatchSize && (pending = pendingMessages.poll()) != null; i++) {
+            messagesByTarget.computeIfAbsent(pending.target(), t -> new ArrayList<>()).add(pending.message());
+        }
+        for (Map.Entry<MessageHistory, List<ChatMessage>> entry : messagesByTarget.entrySet()) {
+            boolean shown = entry.getKey().appendAll(entry.getValue());
+            if (shown && messagesAddedListener != null) messagesAddedListener.accept(entry.getKey());
+        }
+
+        if (!pendingParticipants.isEmpty()) applyParticipantChanges();
+
+        for (Runnable task : new ArrayList<>(pendingRefreshes)) {
+            pendingRefreshes.remove(task);
+            task.run();
+        }
+
+        if (!pendingMessages.isEmpty()) scheduleFlush();
+    }
+
+    private void applyParticipantChanges() {
+        Map<String, Boolean> changes = new LinkedHashMap<>();
+        for (String ip : pendingParticipants.keySet()) {
+            Boolean present = pendingParticipants.remove(ip);
+            if (present != null) changes.put(ip, present);
+        }
+        Set<String> current = new HashSet<>(participants);
+        List<String> added = new ArrayList<>();
+        Set<String> removed = new HashSet<>();
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            if (change.getValue()) {
+                if (current.add(change.getKey())) added.add(change.getKey());
+            } else if (current.remove(change.getKey())) {
+                removed.add(change.getKey());
+            }
+        }
+        if (!removed.isEmpty()) participants.removeIf(removed::contains);
+        if (!added.isEmpty()) participants.addAll(added);
+    }
+}
@@ -0,0 +1,138 @@
+// GroupBanListTest.java
+package com.example.udpchat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupBanListTest {
+
+    @TempDir
+    Path directory;
+
+    private static InetAddress address(String ip) throws UnknownHostException {
+        return InetAddress.getByName(ip);
+    }
+
+    private static boolean sync(GroupBanList host, GroupBanList member) {
+        Map<String, String> headers = new HashMap<>();
+        String payload = host.buildSyncResponse(member.version(), headers);
+        if (payload == null) return false;
+        return member.applySync(GroupBanList.parseVersion(headers.get(GroupBanList.HEADER_VERSION)),
+                GroupBanList.parseVersion(headers.get(GroupBanList.HEADER_BASE_VERSION)), payload);
+    }
+
+    @Test
+    void appliesChangesInOrder() throws UnknownHostException {
+        GroupBanList member = new GroupBanList();
+        assertEquals(GroupBanList.Result.APPLIED, member.applyRemote(1, true, "10.0.0.5"));
+        assertEquals(GroupBanList.Result.APPLIED, member.applyRemote(2, true, "10.0.1.0/24"));
+        assertEquals(2, member.version());
+        assertTrue(member.isBlocked(address("10.0.0.5")));
+        assertTrue(member.isBlocked(address("10.0.1.77")));
+        assertEquals(GroupBanList.Result.APPLIED, member.applyRemote(3, false, "10.0.0.5"));
+        assertFalse(member.isBlocked(address("10.0.0.5")));
+    }
+
+    @Test
+    void rejectsStaleAndReplayedChanges() throws UnknownHostException {
+        GroupBanList member = new GroupBanList();
+        member.applyRemote(1, true, "10.0.0.5");
+        member.applyRemote(2, false, "10.0.0.5");
+        // A replay of the signed ban must not undo the later unban
+        assertEquals(GroupBanList.Result.STALE, member.applyRemote(1, true, "10.0.0.5"));
+        assertEquals(GroupBanList.Result.STALE, member.applyRemote(2, true, "10.0.0.5"));
+        assertFalse(member.isBlocked(address("10.0.0.5")));
+        assertEquals(2, member.version());
+    }
+
+    @Test
+    void reportsGapWithoutApplying() throws UnknownHostException {
+        GroupBanList member = new GroupBanList();
+        member.applyRemote(1, true, "10.0.0.5");
+        assertEquals(GroupBanList.Result.GAP, member.applyRemote(3, true, "10.0.0.6"));
+        assertFalse(member.isBlocked(address("10.0.0.6")));
+        assertEquals(1, member.version());
+    }
+
+    @Test
+    void closesGapWithDeltaSync() throws UnknownHostException {
+        GroupBanList host = new GroupBanList();
+        GroupBanList member = new GroupBanList();
+        for (int i = 1; i <= 20; i++) host.applyLocal(true, "10.0.0." + i);
+        for (int i = 1; i <= 20; i++) member.applyRemote(i, true, "10.0.0." + i);
+        host.applyLocal(true, "10.0.1.1");
+        host.applyLocal(false, "10.0.0.3");
+
+        Map<String, String> headers = new HashMap<>();
+        String payload = host.buildSyncResponse(member.version(), headers);
+        assertEquals("20", headers.get(GroupBanList.HEADER_BASE_VERSION));
+        assertEquals("+10.0.1.1\n-10.0.0.3\n", payload);
+        assertTrue(member.applySync(22, 20, payload));
+
+        assertEquals(host.snapshot().entries(), member.snapshot().entries());
+        assertTrue(member.isBlocked(address("10.0.1.1")));
+        assertFalse(member.isBlocked(address("10.0.0.3")));
+        assertEquals(GroupBanList.Result.STALE, member.applyRemote(22, true, "10.0.0.3"));
+    }
+
+    @Test
+    void sendsWholeListToNewMember() {
+        GroupBanList host = new GroupBanList();
+        host.applyLocal(true, "10.0.0.1");
+        host.applyLocal(true, "10.0.0.2");
+        host.applyLocal(false, "10.0.0.1");
+        host.applyLocal(true, "10.0.0.9");
+        GroupBanList member = new GroupBanList();
+        assertTrue(sync(host, member));
+        assertEquals(host.version(), member.version());
+        assertEquals(host.snapshot().entries(), member.snapshot().entries());
+        assertFalse(sync(host, member));
+    }
+
+    @Test
+    void ignoresDeltaBuiltForAnotherVersion() {
+        GroupBanList member = new GroupBanList();
+        member.applyRemote(1, true, "10.0.0.1");
+        assertFalse(member.applySync(5, 3, "+10.0.0.9\n"));
+        assertFalse(member.applySync(1, -1, "10.0.0.9"));
+        assertEquals(List.of("10.0.0.1"), member.snapshot().entries());
+    }
+
+    @Test
+    void hostContinuesSavedVersionAfterRestart() throws UnknownHostException {
+        Path file = directory.resolve("bans");
+        GroupBanList host = new GroupBanList(file);
+        host.applyLocal(true, "10.0.0.1");
+        host.applyLocal(true, "10.0.0.2");
+        host.applyLocal(false, "10.0.0.1");
+
+        GroupBanList restarted = new GroupBanList(file);
+        assertEquals(3, restarted.version());
+        assertEquals(List.of("10.0.0.2"), restarted.snapshot().entries());
+        assertEquals(4, restarted.applyLocal(true, "10.0.0.3"));
+        assertTrue(new GroupBanList(file).isBlocked(address("10.0.0.3")));
+    }
+
+    @Test
+    void startsEmptyFromUnreadableFile() throws Exception {
+        Path file = directory.resolve("bans");
+        Files.writeString(file, "not a version\n10.0.0.1\n");
+        GroupBanList list = new GroupBanList(file);
+        assertEquals(0, list.version());
+        assertTrue(list.snapshot().entries().isEmpty());
+        assertNull(list.buildSyncResponse(0, new HashMap<>()));
+    }
+}
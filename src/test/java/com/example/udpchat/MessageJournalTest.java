@@ -0,0 +1,141 @@
+// MessageJournalTest.java
+package com.example.udpchat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageJournalTest {
+
+    private static final int SEGMENT_SIZE = 64 << 10;
+    private static final String ROOM = "239.1.2.3";
+
+    @TempDir
+    Path directory;
+
+    private MessageJournal open() throws IOException {
+        return new MessageJournal(directory, SEGMENT_SIZE, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    private static ChatMessage message(int number) {
+        return new ChatMessage("alice", "10.0.0.1", "message " + number, "12:00:0" + number, false);
+    }
+
+    private static List<String> texts(List<ChatMessage> messages) {
+        List<String> texts = new ArrayList<>();
+        for (ChatMessage message : messages) texts.add(message.text());
+        return texts;
+    }
+
+    /**
+     * Simulates a crash after a clean close: removes the index that close left for the newest segment,
+     * so the next open has to scan it.
+     */
+    private void forgetCleanClose() throws IOException {
+        Path newestIndex = null;
+        try (DirectoryStream<Path> indexes = Files.newDirectoryStream(directory, "*.idx")) {
+            for (Path index : indexes) {
+                if (newestIndex == null || index.compareTo(newestIndex) > 0) newestIndex = index;
+            }
+        }
+        Files.delete(newestIndex);
+    }
+
+    private void overwrite(long position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d.seg", 0)), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    @Test
+    void reopensAllMessagesAfterCleanClose() throws IOException {
+        try (MessageJournal journal = open()) {
+            for (int i = 1; i <= 3; i++) journal.append(ROOM, message(i));
+        }
+        try (MessageJournal journal = open()) {
+            assertEquals(List.of("message 1", "message 2", "message 3"), texts(journal.lastMessages(ROOM, 10)));
+        }
+    }
+
+    @Test
+    void discardsRecordWithTornBody() throws IOException {
+        long lastPosition;
+        try (MessageJournal journal = open()) {
+            journal.append(ROOM, message(1));
+            journal.append(ROOM, message(2));
+            lastPosition = journal.append(ROOM, message(3));
+        }
+        forgetCleanClose();
+        // The length was written but part of the body was not: the CRC no longer matches
+        overwrite(lastPosition + 30, new byte[]{0x55, 0x55, 0x55, 0x55});
+
+        try (MessageJournal journal = open()) {
+            assertEquals(List.of("message 1", "message 2"), texts(journal.lastMessages(ROOM, 10)));
+            assertEquals(lastPosition, journal.getEndPosition());
+            assertEquals(lastPosition, journal.append(ROOM, message(4)));
+        }
+        try (MessageJournal journal = open()) {
+            assertEquals(List.of("message 1", "message 2", "message 4"), texts(journal.lastMessages(ROOM, 10)));
+        }
+    }
+
+    @Test
+    void discardsGarbageAfterLastRecord() throws IOException {
+        long endPosition;
+        try (MessageJournal journal = open()) {
+            journal.append(ROOM, message(1));
+            journal.append(ROOM, message(2));
+            endPosition = journal.getEndPosition();
+        }
+        forgetCleanClose();
+        // A length that points past the segment, followed by stale bytes
+        overwrite(endPosition, new byte[]{0x7F, 0x00, 0x00, 0x00, 0x12, 0x34, 0x56, 0x78, 0x01});
+
+        try (MessageJournal journal = open()) {
+            assertEquals(endPosition, journal.getEndPosition());
+            journal.append(ROOM, message(3));
+        }
+        forgetCleanClose();
+        try (MessageJournal journal = open()) {
+            assertEquals(List.of("message 1", "message 2", "message 3"), texts(journal.lastMessages(ROOM, 10)));
+        }
+    }
+
+    @Test
+    void recoversAcrossSegmentsWithoutCleanClose() throws IOException {
+        int count = 3000;
+        try (MessageJournal journal = open()) {
+            for (int i = 0; i < count; i++) journal.append(i % 2 == 0 ? ROOM : "broadcast", message(i));
+            assertTrue(journal.getSegmentCount() > 1);
+        }
+        forgetCleanClose();
+
+        try (MessageJournal journal = open()) {
+            List<MessageJournal.Entry> entries = new ArrayList<>();
+            long position = MessageJournal.NO_POSITION;
+            List<MessageJournal.Entry> chunk;
+            while (!(chunk = journal.readAfter(position, 500)).isEmpty()) {
+                entries.addAll(chunk);
+                position = chunk.get(chunk.size() - 1).position();
+            }
+            assertEquals(count, entries.size());
+            assertEquals("message " + (count - 1), entries.get(count - 1).message().text());
+            List<ChatMessage> last = journal.lastMessages(ROOM, 2);
+            assertEquals(List.of("message " + (count - 4), "message " + (count - 2)), texts(last));
+            assertNotEquals(null, journal.read(entries.get(0).position()));
+        }
+    }
+}
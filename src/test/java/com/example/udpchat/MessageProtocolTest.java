@@ -0,0 +1,125 @@
+// MessageProtocolTest.java
+package com.example.udpchat;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageProtocolTest {
+
+    private static Map<String, String> headers() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("id", MessageIds.next());
+        headers.put("ts", "1700000000123");
+        headers.put("nick", "Zoë | admin=1");
+        headers.put("empty", "");
+        return headers;
+    }
+
+    private static void assertDecodesTo(MessageProtocol.DecodedMessage decoded, String type, Map<String, String> headers, String payload) {
+        assertNotNull(decoded);
+        assertEquals(type, decoded.type());
+        headers.forEach((key, value) -> assertEquals(value, decoded.header(key), key));
+        assertNull(decoded.header("missing"));
+        assertEquals(payload, decoded.payload());
+    }
+
+    @ParameterizedTest
+    @EnumSource(MessageProtocol.WireFormat.class)
+    void roundTripsEveryFormat(MessageProtocol.WireFormat format) {
+        Map<String, String> headers = headers();
+        String payload = "Hello | world = 100% \n\t ünïcödé 🎉";
+        byte[] encoded = MessageProtocol.encode(format, MessageProtocol.CMD_POST_USER_MESSAGE, headers, payload);
+        assertDecodesTo(MessageProtocol.decode(encoded, encoded.length), MessageProtocol.CMD_POST_USER_MESSAGE, headers, payload);
+    }
+
+    @ParameterizedTest
+    @EnumSource(MessageProtocol.WireFormat.class)
+    void encodesIntoBufferLikeIntoArray(MessageProtocol.WireFormat format) {
+        Random random = new Random(42);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MessageProtocol.MAX_UNFRAGMENTED_SIZE);
+        for (int i = 0; i < 200; i++) {
+            Map<String, String> headers = headers();
+            String payload = "message " + i + " " + "abc ".repeat(random.nextInt(300));
+            byte[] expected = MessageProtocol.encode(format, MessageProtocol.CMD_POST_USER_MESSAGE, headers, payload);
+            boolean fits = MessageProtocol.encode(format, MessageProtocol.CMD_POST_USER_MESSAGE, headers, payload, buffer);
+            assertEquals(expected.length <= buffer.capacity(), fits);
+            if (!fits) continue;
+            byte[] actual = new byte[buffer.remaining()];
+            buffer.get(actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    void compressesLargePayloads() {
+        Map<String, String> headers = headers();
+        String payload = "Exception in thread \"main\" java.lang.NullPointerException\n".repeat(40);
+        byte[] plain = MessageProtocol.encode(MessageProtocol.WireFormat.BINARY, MessageProtocol.CMD_POST_USER_MESSAGE, headers, payload);
+        byte[] compressed = MessageProtocol.encode(MessageProtocol.WireFormat.BINARY_COMPRESSED, MessageProtocol.CMD_POST_USER_MESSAGE, headers, payload);
+        assertTrue(compressed.length < plain.length / 4);
+        assertDecodesTo(MessageProtocol.decode(compressed, compressed.length), MessageProtocol.CMD_POST_USER_MESSAGE, headers, payload);
+    }
+
+    @Test
+    void sendsTypesWithoutBinaryOrdinalAsText() {
+        byte[] encoded = MessageProtocol.encode(MessageProtocol.WireFormat.BINARY, "CUSTOM_TYPE", Map.of("k", "v"), "p");
+        assertEquals(MessageProtocol.encode("CUSTOM_TYPE", Map.of("k", "v"), "p").length, encoded.length);
+        assertDecodesTo(MessageProtocol.decode(encoded, encoded.length), "CUSTOM_TYPE", Map.of("k", "v"), "p");
+    }
+
+    @Test
+    void reassemblesFragmentedMessage() {
+        Map<String, String> headers = headers();
+        String payload = "x".repeat(300_000) + "end";
+        ByteBuffer encoded = ByteBuffer.allocate(MessageProtocol.MAX_FRAGMENTED_MESSAGE_SIZE);
+        assertTrue(MessageProtocol.encode(MessageProtocol.WireFormat.BINARY, MessageProtocol.CMD_POST_USER_MESSAGE, headers, payload, encoded));
+        int count = MessageProtocol.fragmentCount(encoded.limit());
+        assertTrue(count > 1);
+
+        FragmentReassembler reassembler = new FragmentReassembler();
+        ByteBuffer fragment = ByteBuffer.allocate(MessageProtocol.MAX_UNFRAGMENTED_SIZE);
+        ByteBuffer complete = null;
+        // In reverse, so the reassembly buffer has to take the last chunk first
+        for (int index = count - 1; index >= 0; index--) {
+            MessageProtocol.writeFragment(fragment, 7, encoded, index, count);
+            assertTrue(MessageProtocol.isFragment(fragment, fragment.limit()));
+            assertNull(complete);
+            complete = reassembler.accept(InetAddress.getLoopbackAddress(), fragment, fragment.limit(), null);
+        }
+        assertNotNull(complete);
+        MessageProtocol.DecodedMessage decoded = new MessageProtocol.DecodedMessage();
+        assertTrue(decoded.wrap(complete, 0, complete.limit()));
+        assertDecodesTo(decoded, MessageProtocol.CMD_POST_USER_MESSAGE, headers, payload);
+
+        // A late duplicate of a completed message is ignored
+        MessageProtocol.writeFragment(fragment, 7, encoded, 0, count);
+        assertNull(reassembler.accept(InetAddress.getLoopbackAddress(), fragment, fragment.limit(), null));
+        assertEquals(0, reassembler.getPendingBytes());
+    }
+
+    @Test
+    void rejectsAndCountsMalformedDatagrams() {
+        long before = MessageProtocol.getMalformedCount();
+        MessageProtocol.DecodedMessage decoded = new MessageProtocol.DecodedMessage();
+        byte[] truncatedBinary = {(byte) 0xC7, 1, 1, 0, 5};
+        assertFalse(decoded.wrap(ByteBuffer.wrap(truncatedBinary), 0, truncatedBinary.length));
+        byte[] valid = MessageProtocol.encode(MessageProtocol.WireFormat.BINARY, MessageProtocol.CMD_POST_USER_MESSAGE, headers(), "text");
+        // Cut inside the headers
+        assertFalse(decoded.wrap(ByteBuffer.wrap(valid), 0, valid.length - 10));
+        assertEquals(before + 2, MessageProtocol.getMalformedCount());
+    }
+}